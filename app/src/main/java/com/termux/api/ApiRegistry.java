@@ -0,0 +1,461 @@
+package com.termux.api;
+
+import android.Manifest;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.JsonWriter;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.termux.api.activities.TermuxApiPermissionActivity;
+import com.termux.api.apis.AudioAPI;
+import com.termux.api.apis.BatteryStatusAPI;
+import com.termux.api.apis.BrightnessAPI;
+import com.termux.api.apis.CallLogAPI;
+import com.termux.api.apis.CameraInfoAPI;
+import com.termux.api.apis.CameraPhotoAPI;
+import com.termux.api.apis.ClipboardAPI;
+import com.termux.api.apis.ContactListAPI;
+import com.termux.api.apis.DialogAPI;
+import com.termux.api.apis.DownloadAPI;
+import com.termux.api.apis.FingerprintAPI;
+import com.termux.api.apis.GeofenceAPI;
+import com.termux.api.apis.InfraredAPI;
+import com.termux.api.apis.JobSchedulerAPI;
+import com.termux.api.apis.KeystoreAPI;
+import com.termux.api.apis.LocationAPI;
+import com.termux.api.apis.MediaPlayerAPI;
+import com.termux.api.apis.MediaScannerAPI;
+import com.termux.api.apis.MicRecorderAPI;
+import com.termux.api.apis.NfcAPI;
+import com.termux.api.apis.NotificationAPI;
+import com.termux.api.apis.NotificationListAPI;
+import com.termux.api.apis.SAFAPI;
+import com.termux.api.apis.SensorAPI;
+import com.termux.api.apis.ShareAPI;
+import com.termux.api.apis.SmsInboxAPI;
+import com.termux.api.apis.SmsSendAPI;
+import com.termux.api.apis.SpeechToTextAPI;
+import com.termux.api.apis.StorageGetAPI;
+import com.termux.api.apis.TelephonyAPI;
+import com.termux.api.apis.TextToSpeechAPI;
+import com.termux.api.apis.ToastAPI;
+import com.termux.api.apis.TorchAPI;
+import com.termux.api.apis.UsbAPI;
+import com.termux.api.apis.VibrateAPI;
+import com.termux.api.apis.VolumeAPI;
+import com.termux.api.apis.WallpaperAPI;
+import com.termux.api.apis.WifiAPI;
+import com.termux.api.util.ResultReturner;
+import com.termux.shared.logger.Logger;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the API handlers keyed by their `api_method` extra. Each handler declares the
+ * permissions it requires, how the call is executed and what it outputs.
+ *
+ * The registry is built once and shared by {@link TermuxApiReceiver}, for both broadcasts and the
+ * calls that {@link SocketListener} dispatches in-process.
+ */
+public class ApiRegistry {
+
+    /** How an API call is executed once it has been received. */
+    public enum ExecutionMode {
+        /** The call is completed on the receiving thread. */
+        INLINE,
+        /** The result is written on a worker thread by {@link com.termux.api.util.ResultReturner}. */
+        WORKER,
+        /** The call is passed on to a service. */
+        SERVICE,
+        /** The call is passed on to an activity, which usually requires user interaction. */
+        ACTIVITY
+    }
+
+    /** What an API call writes to its output socket. */
+    public enum OutputType {
+        /** Nothing, the output socket is only closed when done. */
+        NONE,
+        /** Plain text, usually a message. */
+        TEXT,
+        /** A single JSON value. */
+        JSON,
+        /** Raw bytes, like the content of a file. */
+        BINARY,
+        /** Output that keeps coming until the call is stopped or a limit is reached. */
+        STREAM,
+        /** A file descriptor passed as ancillary data. */
+        FILE_DESCRIPTOR
+    }
+
+    /** The call of an API. */
+    public interface ApiCall {
+        void onReceive(@NonNull TermuxApiReceiver receiver, @NonNull Context context, @NonNull Intent intent);
+    }
+
+    /**
+     * Check that must pass before an API is called, for requirements that are not runtime
+     * permissions and must be granted in a special way.
+     *
+     * A precondition that fails must return a result for the call, like
+     * {@link TermuxApiPermissionActivity#checkAndRequestPermissions(Context, Intent, String...)}
+     * does, as the client waits for one otherwise.
+     */
+    public interface Precondition {
+        /** @return Returns {@code true} if the call may proceed. */
+        boolean check(@NonNull Context context, @NonNull Intent intent);
+    }
+
+    /** Hook that is notified of API calls, for example to collect statistics. */
+    public interface Instrumentation {
+        /** Called after the handler was called on the receiving thread. */
+        void onDispatched(@NonNull ApiHandler handler, long durationNanos);
+
+        /** Called after the result of a call was written, or writing it failed. */
+        void onResult(@NonNull ApiHandler handler, long durationMillis, boolean success);
+
+        /** Called if a call was rejected because the concurrency limit of the handler was reached. */
+        void onRejected(@NonNull ApiHandler handler);
+    }
+
+    private static final String LOG_TAG = "ApiRegistry";
+
+    private static final Map<String, ApiHandler> HANDLERS = Collections.unmodifiableMap(buildHandlers());
+
+    @Nullable
+    private static volatile Instrumentation sInstrumentation;
+
+    /** Get the handler of an `api_method`, or {@code null} if it is not known. */
+    @Nullable
+    public static ApiHandler get(@Nullable String apiMethod) {
+        return apiMethod == null ? null : HANDLERS.get(apiMethod);
+    }
+
+    /** Get all registered handlers. */
+    @NonNull
+    public static Collection<ApiHandler> getHandlers() {
+        return HANDLERS.values();
+    }
+
+    /** Set the {@link Instrumentation} hook, or {@code null} to remove it. */
+    public static void setInstrumentation(@Nullable Instrumentation instrumentation) {
+        sInstrumentation = instrumentation;
+    }
+
+    @NonNull
+    private static Map<String, ApiHandler> buildHandlers() {
+        Map<String, ApiHandler> handlers = new HashMap<>();
+        register(handlers, "AudioInfo", ExecutionMode.WORKER, OutputType.JSON, AudioAPI::onReceive)
+                .setSideEffectFree();
+        register(handlers, "BatteryStatus", ExecutionMode.WORKER, OutputType.JSON, BatteryStatusAPI::onReceive)
+                .setSideEffectFree();
+        register(handlers, "Brightness", ExecutionMode.INLINE, OutputType.NONE, BrightnessAPI::onReceive)
+                .setPrecondition(ApiRegistry::checkCanWriteSettings);
+        register(handlers, "CameraInfo", ExecutionMode.WORKER, OutputType.JSON, CameraInfoAPI::onReceive)
+                .setSideEffectFree();
+        register(handlers, "CameraPhoto", ExecutionMode.WORKER, OutputType.TEXT, CameraPhotoAPI::onReceive,
+                Manifest.permission.CAMERA)
+                .setBlocking();
+        register(handlers, "CallLog", ExecutionMode.WORKER, OutputType.JSON,
+                (receiver, context, intent) -> CallLogAPI.onReceive(context, intent),
+                Manifest.permission.READ_CALL_LOG)
+                .setSideEffectFree();
+        register(handlers, "Clipboard", ExecutionMode.WORKER, OutputType.TEXT, ClipboardAPI::onReceive);
+        register(handlers, "ContactList", ExecutionMode.WORKER, OutputType.JSON, ContactListAPI::onReceive,
+                Manifest.permission.READ_CONTACTS)
+                .setSideEffectFree();
+        register(handlers, "Dialog", ExecutionMode.ACTIVITY, OutputType.JSON,
+                (receiver, context, intent) -> DialogAPI.onReceive(context, intent))
+                .setBlocking();
+        register(handlers, "Download", ExecutionMode.WORKER, OutputType.TEXT, DownloadAPI::onReceive);
+        register(handlers, "Fingerprint", ExecutionMode.ACTIVITY, OutputType.JSON,
+                (receiver, context, intent) -> FingerprintAPI.onReceive(context, intent))
+                .setBlocking();
+        register(handlers, "Geofence", ExecutionMode.WORKER, OutputType.JSON, GeofenceAPI::onReceive,
+                Manifest.permission.ACCESS_FINE_LOCATION);
+        register(handlers, "InfraredFrequencies", ExecutionMode.WORKER, OutputType.JSON, InfraredAPI::onReceiveCarrierFrequency,
+                Manifest.permission.TRANSMIT_IR)
+                .setSideEffectFree();
+        register(handlers, "InfraredTransmit", ExecutionMode.WORKER, OutputType.TEXT, InfraredAPI::onReceiveTransmit,
+                Manifest.permission.TRANSMIT_IR);
+        register(handlers, "JobScheduler", ExecutionMode.WORKER, OutputType.TEXT, JobSchedulerAPI::onReceive);
+        register(handlers, "Keystore", ExecutionMode.WORKER, OutputType.JSON,
+                (receiver, context, intent) -> KeystoreAPI.onReceive(receiver, intent));
+        register(handlers, "Location", ExecutionMode.WORKER, OutputType.STREAM, LocationAPI::onReceive,
+                Manifest.permission.ACCESS_FINE_LOCATION);
+        register(handlers, "MediaPlayer", ExecutionMode.SERVICE, OutputType.TEXT,
+                (receiver, context, intent) -> MediaPlayerAPI.onReceive(context, intent));
+        register(handlers, "MediaScanner", ExecutionMode.WORKER, OutputType.TEXT, MediaScannerAPI::onReceive);
+        register(handlers, "MicRecorder", ExecutionMode.SERVICE, OutputType.TEXT,
+                (receiver, context, intent) -> MicRecorderAPI.onReceive(context, intent),
+                Manifest.permission.RECORD_AUDIO);
+        register(handlers, "Nfc", ExecutionMode.ACTIVITY, OutputType.JSON,
+                (receiver, context, intent) -> NfcAPI.onReceive(context, intent))
+                .setBlocking();
+        register(handlers, "NotificationList", ExecutionMode.WORKER, OutputType.JSON, NotificationListAPI::onReceive)
+                .setPrecondition(ApiRegistry::checkNotificationListenerEnabled)
+                .setSideEffectFree();
+        register(handlers, "Notification", ExecutionMode.WORKER, OutputType.NONE, NotificationAPI::onReceiveShowNotification);
+        register(handlers, "NotificationChannel", ExecutionMode.WORKER, OutputType.TEXT, NotificationAPI::onReceiveChannel);
+        register(handlers, "NotificationRemove", ExecutionMode.WORKER, OutputType.NONE, NotificationAPI::onReceiveRemoveNotification);
+        register(handlers, "NotificationReply", ExecutionMode.WORKER, OutputType.NONE, NotificationAPI::onReceiveReplyToNotification);
+        register(handlers, "SAF", ExecutionMode.WORKER, OutputType.BINARY, SAFAPI::onReceive);
+        register(handlers, "Sensor", ExecutionMode.SERVICE, OutputType.STREAM,
+                (receiver, context, intent) -> SensorAPI.onReceive(context, intent));
+        register(handlers, "Share", ExecutionMode.ACTIVITY, OutputType.TEXT, ShareAPI::onReceive);
+        register(handlers, "SmsInbox", ExecutionMode.WORKER, OutputType.JSON, SmsInboxAPI::onReceive,
+                Manifest.permission.READ_SMS, Manifest.permission.READ_CONTACTS)
+                .setSideEffectFree();
+        register(handlers, "SmsSend", ExecutionMode.WORKER, OutputType.TEXT, SmsSendAPI::onReceive,
+                Manifest.permission.READ_PHONE_STATE, Manifest.permission.SEND_SMS);
+        register(handlers, "StorageGet", ExecutionMode.ACTIVITY, OutputType.TEXT, StorageGetAPI::onReceive);
+        register(handlers, "SpeechToText", ExecutionMode.SERVICE, OutputType.STREAM,
+                (receiver, context, intent) -> SpeechToTextAPI.onReceive(context, intent),
+                Manifest.permission.RECORD_AUDIO);
+        register(handlers, "TelephonyCall", ExecutionMode.ACTIVITY, OutputType.TEXT, TelephonyAPI::onReceiveTelephonyCall,
+                Manifest.permission.CALL_PHONE);
+        register(handlers, "TelephonyCellInfo", ExecutionMode.WORKER, OutputType.JSON, TelephonyAPI::onReceiveTelephonyCellInfo,
+                Manifest.permission.ACCESS_COARSE_LOCATION)
+                .setSideEffectFree();
+        register(handlers, "TelephonyDeviceInfo", ExecutionMode.WORKER, OutputType.JSON, TelephonyAPI::onReceiveTelephonyDeviceInfo,
+                Manifest.permission.READ_PHONE_STATE)
+                .setSideEffectFree();
+        register(handlers, "TextToSpeech", ExecutionMode.SERVICE, OutputType.TEXT,
+                (receiver, context, intent) -> TextToSpeechAPI.onReceive(context, intent));
+        register(handlers, "Toast", ExecutionMode.WORKER, OutputType.NONE,
+                (receiver, context, intent) -> ToastAPI.onReceive(context, intent));
+        register(handlers, "Torch", ExecutionMode.INLINE, OutputType.NONE, TorchAPI::onReceive);
+        register(handlers, "Usb", ExecutionMode.SERVICE, OutputType.FILE_DESCRIPTOR,
+                (receiver, context, intent) -> UsbAPI.onReceive(context, intent))
+                .setBlocking();
+        register(handlers, "Vibrate", ExecutionMode.INLINE, OutputType.NONE, VibrateAPI::onReceive);
+        register(handlers, "Volume", ExecutionMode.WORKER, OutputType.JSON, VolumeAPI::onReceive);
+        register(handlers, "Wallpaper", ExecutionMode.SERVICE, OutputType.TEXT,
+                (receiver, context, intent) -> WallpaperAPI.onReceive(context, intent));
+        register(handlers, "WifiConnectionInfo", ExecutionMode.WORKER, OutputType.JSON, WifiAPI::onReceiveWifiConnectionInfo)
+                .setSideEffectFree();
+        register(handlers, "WifiScanInfo", ExecutionMode.WORKER, OutputType.JSON, WifiAPI::onReceiveWifiScanInfo,
+                Manifest.permission.ACCESS_FINE_LOCATION)
+                .setSideEffectFree();
+        register(handlers, "WifiEnable", ExecutionMode.WORKER, OutputType.NONE, WifiAPI::onReceiveWifiEnable);
+        return handlers;
+    }
+
+    @NonNull
+    private static ApiHandler register(@NonNull Map<String, ApiHandler> handlers, @NonNull String name,
+                                       @NonNull ExecutionMode executionMode, @NonNull OutputType outputType,
+                                       @NonNull ApiCall call, @NonNull String... permissions) {
+        ApiHandler handler = new ApiHandler(name, executionMode, outputType, call, permissions);
+        handlers.put(name, handler);
+        return handler;
+    }
+
+    private static boolean checkCanWriteSettings(@NonNull Context context, @NonNull Intent intent) {
+        if (Settings.System.canWrite(context)) return true;
+
+        // returns a result unless WRITE_SETTINGS is reported as granted without being usable
+        if (TermuxApiPermissionActivity.checkAndRequestPermissions(context, intent, Manifest.permission.WRITE_SETTINGS))
+            ResultReturner.returnData(context, intent, out -> out.println("Please enable permission for Termux:API"));
+        Toast.makeText(context, "Please enable permission for Termux:API", Toast.LENGTH_LONG).show();
+
+        // user must enable WRITE_SETTINGS permission this special way
+        Intent settingsIntent = new Intent(Settings.ACTION_MANAGE_WRITE_SETTINGS);
+        context.startActivity(settingsIntent);
+        return false;
+    }
+
+    private static boolean checkNotificationListenerEnabled(@NonNull Context context, @NonNull Intent intent) {
+        ComponentName cn = new ComponentName(context, NotificationListAPI.NotificationService.class);
+        String flat = Settings.Secure.getString(context.getContentResolver(), "enabled_notification_listeners");
+        if (flat != null && flat.contains(cn.flattenToString())) return true;
+
+        ResultReturner.returnData(context, intent, new ResultReturner.ResultJsonWriter() {
+            @Override
+            public void writeJson(JsonWriter out) throws Exception {
+                out.beginObject().name("error").value("Please give Termux:API Notification Access").endObject();
+            }
+        });
+
+        Toast.makeText(context,"Please give Termux:API Notification Access", Toast.LENGTH_LONG).show();
+        context.startActivity(new Intent("android.settings.ACTION_NOTIFICATION_LISTENER_SETTINGS").addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+        return false;
+    }
+
+
+
+    /** A registered API and its statistics. */
+    public static class ApiHandler {
+
+        private final String mName;
+        private final ExecutionMode mExecutionMode;
+        private final OutputType mOutputType;
+        private final ApiCall mCall;
+        private final String[] mPermissions;
+        private Precondition mPrecondition;
+        private boolean mBlocking;
+        private boolean mSideEffectFree;
+
+        /** The maximum number of results of this API written at the same time, or 0 for no limit. */
+        private volatile int mConcurrencyLimit = 0;
+        private final AtomicInteger mActiveCount = new AtomicInteger();
+        private final AtomicLong mCallCount = new AtomicLong();
+        private final AtomicLong mRejectedCount = new AtomicLong();
+
+        private ApiHandler(@NonNull String name, @NonNull ExecutionMode executionMode,
+                           @NonNull OutputType outputType, @NonNull ApiCall call, @NonNull String[] permissions) {
+            mName = name;
+            mExecutionMode = executionMode;
+            mOutputType = outputType;
+            mCall = call;
+            mPermissions = permissions;
+        }
+
+        @NonNull
+        private ApiHandler setPrecondition(@NonNull Precondition precondition) {
+            mPrecondition = precondition;
+            return this;
+        }
+
+        /** Mark the results of this API as only reading data, without changing anything. */
+        @NonNull
+        private ApiHandler setSideEffectFree() {
+            mSideEffectFree = true;
+            return this;
+        }
+
+        /** Mark the results of this API as waiting for the user or a device before they are written. */
+        @NonNull
+        private ApiHandler setBlocking() {
+            mBlocking = true;
+            return this;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        @NonNull
+        public ExecutionMode getExecutionMode() {
+            return mExecutionMode;
+        }
+
+        @NonNull
+        public OutputType getOutputType() {
+            return mOutputType;
+        }
+
+        /**
+         * Check if writing a result of this API may wait for the user or a device for a long time,
+         * so it must not wait in a queue behind other results or hold up the results queued behind it.
+         */
+        public boolean isBlocking() {
+            return mBlocking;
+        }
+
+        /**
+         * Check if writing a result of this API only reads data, so it may be computed before the
+         * output is connected, even if the client is gone by then.
+         */
+        public boolean isSideEffectFree() {
+            return mSideEffectFree;
+        }
+
+        @NonNull
+        public String[] getPermissions() {
+            return mPermissions.clone();
+        }
+
+        /** Set the maximum number of results of this API written at the same time, or 0 for no limit. */
+        public void setConcurrencyLimit(int concurrencyLimit) {
+            mConcurrencyLimit = Math.max(0, concurrencyLimit);
+        }
+
+        public int getConcurrencyLimit() {
+            return mConcurrencyLimit;
+        }
+
+        /** Get the number of results of this API that are being written. */
+        public int getActiveCount() {
+            return mActiveCount.get();
+        }
+
+        /** Get the number of calls that passed the permission checks. */
+        public long getCallCount() {
+            return mCallCount.get();
+        }
+
+        /** Get the number of results that were rejected because of the concurrency limit. */
+        public long getRejectedCount() {
+            return mRejectedCount.get();
+        }
+
+        /**
+         * Check the preconditions and permissions of the API and call it if they are met.
+         *
+         * @return Returns {@code true} if the API was called.
+         */
+        public boolean handle(@NonNull TermuxApiReceiver receiver, @NonNull Context context, @NonNull Intent intent) {
+            if (mPrecondition != null && !mPrecondition.check(context, intent))
+                return false;
+            if (mPermissions.length > 0 &&
+                    !TermuxApiPermissionActivity.checkAndRequestPermissions(context, intent, mPermissions))
+                return false;
+
+            mCallCount.incrementAndGet();
+            long start = System.nanoTime();
+            mCall.onReceive(receiver, context, intent);
+            long duration = System.nanoTime() - start;
+
+            Logger.logVerbose(LOG_TAG, "Dispatched \"" + mName + "\" in " + (duration / 1000) + "us");
+            Instrumentation instrumentation = sInstrumentation;
+            if (instrumentation != null) instrumentation.onDispatched(this, duration);
+            return true;
+        }
+
+        /**
+         * Start writing a result of this API. Must be followed by {@link #releaseResult(long, boolean)}
+         * if it returns {@code true}.
+         *
+         * @return Returns {@code false} if the concurrency limit is reached.
+         */
+        public boolean acquireResult() {
+            while (true) {
+                int active = mActiveCount.get();
+                int limit = mConcurrencyLimit;
+                if (limit > 0 && active >= limit) {
+                    mRejectedCount.incrementAndGet();
+                    Logger.logInfo(LOG_TAG, "Rejected \"" + mName + "\" result as " + active + " are already being written");
+                    Instrumentation instrumentation = sInstrumentation;
+                    if (instrumentation != null) instrumentation.onRejected(this);
+                    return false;
+                }
+                if (mActiveCount.compareAndSet(active, active + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Finish writing a result of this API that was started with {@link #acquireResult()}.
+         *
+         * @param startTime The {@link SystemClock#elapsedRealtime()} when writing was started.
+         */
+        public void releaseResult(long startTime, boolean success) {
+            mActiveCount.decrementAndGet();
+            Instrumentation instrumentation = sInstrumentation;
+            if (instrumentation != null)
+                instrumentation.onResult(this, SystemClock.elapsedRealtime() - startTime, success);
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.termux.api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary framed request for {@link SocketListener}, as an alternative to the `am`-style command
+ * line parsed by {@link SocketCommandParser}.
+ *
+ * A text request starts with its length as an unsigned 16-bit integer. A binary request starts
+ * with a zero length followed by {@link #MAGIC}, so that it cannot be mistaken for a text request.
+ * All integers are big endian and strings are UTF-8 encoded.
+ *
+ * ```
+ * u16     0
+ * u8[4]   "TAPI"
+ * u8      version, currently 1
+ * body    request body
+ * ```
+ *
+ * The request body, which is also used for the requests of a {@link SocketSession}, is:
+ *
+ * ```
+ * string  action, or a length of -1 if not set
+ * i32     number of extras
+ * extra[] extras
+ * ```
+ *
+ * Each extra is a `u8` type from the `TYPE_*` constants, a `string` key and the value. A `string`
+ * is an `i32` byte length followed by the bytes. Arrays are an `i32` element count followed by
+ * the elements.
+ *
+ * The response is the same as for text requests, a null byte if the request was dispatched or an
+ * error message otherwise.
+ */
+public class SocketBinaryRequest {
+
+    public static final String MAGIC = "TAPI";
+    public static final int VERSION = 1;
+
+    public static final int TYPE_STRING = 1;
+    public static final int TYPE_STRING_ARRAY = 2;
+    public static final int TYPE_INT = 3;
+    public static final int TYPE_LONG = 4;
+    public static final int TYPE_FLOAT = 5;
+    public static final int TYPE_BOOLEAN = 6;
+    public static final int TYPE_INT_ARRAY = 7;
+    public static final int TYPE_LONG_ARRAY = 8;
+    public static final int TYPE_BYTE_ARRAY = 9;
+
+    /**
+     * The maximum number of bytes read for the values of a request. Many APIs pass the extras on
+     * to a service or activity, so they are bound by the binder transaction limit anyway, but the
+     * lengths are checked against this before allocating so that a bad length cannot exhaust the
+     * memory.
+     */
+    public static final int MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+
+    private final DataInputStream mIn;
+    private int mRemaining = MAX_REQUEST_SIZE;
+
+    private String mAction;
+    private final Map<String, Object> mExtras = new LinkedHashMap<>();
+
+    private SocketBinaryRequest(@NonNull DataInputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Read a binary request after its zero length prefix and {@link #MAGIC}.
+     *
+     * @throws InvalidRequestException If the request is malformed.
+     * @throws IOException If reading from the stream failed.
+     */
+    @NonNull
+    public static SocketBinaryRequest read(@NonNull DataInputStream in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new InvalidRequestException("Unsupported binary request version: " + version);
+        return readBody(in);
+    }
+
+    /**
+     * Read a request body.
+     *
+     * @throws InvalidRequestException If the request is malformed.
+     * @throws IOException If reading from the stream failed.
+     */
+    @NonNull
+    public static SocketBinaryRequest readBody(@NonNull DataInputStream in) throws IOException {
+        SocketBinaryRequest request = new SocketBinaryRequest(in);
+        request.readRequest();
+        return request;
+    }
+
+    /** Read the magic that follows the zero length prefix of a binary request or session. */
+    @NonNull
+    public static String readMagic(@NonNull DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length()];
+        in.readFully(magic);
+        return new String(magic, StandardCharsets.US_ASCII);
+    }
+
+    /** Get the action of the request, if set. */
+    @Nullable
+    public String getAction() {
+        return mAction;
+    }
+
+    /** Get the extras of the request keyed by name. */
+    @NonNull
+    public Map<String, Object> getExtras() {
+        return mExtras;
+    }
+
+    private void readRequest() throws IOException {
+        mAction = readString(true);
+
+        int count = readCount(1);
+        for (int i = 0; i < count; i++) {
+            int type = mIn.readUnsignedByte();
+            String key = readString(false);
+            mExtras.put(key, readValue(type, key));
+        }
+    }
+
+    @NonNull
+    private Object readValue(int type, @NonNull String key) throws IOException {
+        switch (type) {
+            case TYPE_STRING:
+                return readString(false);
+            case TYPE_STRING_ARRAY: {
+                String[] strings = new String[readCount(4)];
+                for (int i = 0; i < strings.length; i++) strings[i] = readString(false);
+                return strings;
+            }
+            case TYPE_INT:
+                return mIn.readInt();
+            case TYPE_LONG:
+                return mIn.readLong();
+            case TYPE_FLOAT:
+                return mIn.readFloat();
+            case TYPE_BOOLEAN:
+                return mIn.readUnsignedByte() != 0;
+            case TYPE_INT_ARRAY: {
+                int[] ints = new int[readCount(4)];
+                for (int i = 0; i < ints.length; i++) ints[i] = mIn.readInt();
+                return ints;
+            }
+            case TYPE_LONG_ARRAY: {
+                long[] longs = new long[readCount(8)];
+                for (int i = 0; i < longs.length; i++) longs[i] = mIn.readLong();
+                return longs;
+            }
+            case TYPE_BYTE_ARRAY: {
+                byte[] bytes = new byte[readCount(1)];
+                mIn.readFully(bytes);
+                return bytes;
+            }
+            default:
+                throw new InvalidRequestException("Unsupported extra type " + type + " for \"" + key + "\"");
+        }
+    }
+
+    @Nullable
+    private String readString(boolean nullable) throws IOException {
+        int length = mIn.readInt();
+        if (length == -1 && nullable) return null;
+        byte[] bytes = new byte[checkLength(length, 1)];
+        mIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readCount(int elementSize) throws IOException {
+        return checkLength(mIn.readInt(), elementSize);
+    }
+
+    /** Check that the number of elements of the size fits in what is left of the request size. */
+    private int checkLength(int length, int elementSize) throws InvalidRequestException {
+        if (length < 0 || (long) length * elementSize > mRemaining)
+            throw new InvalidRequestException("Invalid length " + length + " in binary request");
+        mRemaining -= length * elementSize;
+        return length;
+    }
+
+    /** Thrown if a binary request is malformed. The message is returned to the client. */
+    public static class InvalidRequestException extends IOException {
+        public InvalidRequestException(String message) {
+            super(message);
+        }
+    }
+
+}
@@ -0,0 +1,613 @@
+package com.termux.api;
+
+import android.content.Intent;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Single-pass parser for the `am`-style command line sent by `termux-api` clients to
+ * {@link SocketListener}.
+ *
+ * The supported options are `-e`/`--es <key> "<value>"`, `--esa <key> "<v1>,<v2>"`,
+ * `--ez <key> <bool>`, `--ei <key> <int>`, `--ef <key> <float>`, `--eia <key> <i1>,<i2>`,
+ * `--ela <key> <l1>,<l2>` and `-a <action>`. The results and error messages are the same as the
+ * regex based parser this replaced, which removed every option type from the command line in a
+ * separate pass, in the order above, and then reported whatever was left over.
+ */
+public class SocketCommandParser {
+
+    // Extra types, in the order their values were put in the intent. If the same key is used for
+    // multiple types, the value of the type that comes last wins.
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_STRING_ARRAY = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_BOOLEAN = 3;
+    private static final int TYPE_FLOAT = 4;
+    private static final int TYPE_INT_ARRAY = 5;
+    private static final int TYPE_LONG_ARRAY = 6;
+    private static final int TYPE_ANY = -1;
+
+    // Errors, in the order they are reported. Only the first error of each kind is reported.
+    private static final int ERROR_BOOLEAN = 0;
+    private static final int ERROR_INT = 1;
+    private static final int ERROR_FLOAT = 2;
+    private static final int ERROR_INT_ARRAY = 3;
+    private static final int ERROR_LONG_ARRAY = 4;
+    private static final int ERROR_UNSUPPORTED_TYPE = 5;
+    private static final int ERROR_UNSUPPORTED_OPTIONS = 6;
+
+    private String mCmdline;
+    private int mLength;
+    private int mPos = 0;
+    private boolean mAmbiguous = false;
+
+    private final Map<String, Object> mExtras = new LinkedHashMap<>();
+    private final Map<String, Integer> mExtraTypes = new LinkedHashMap<>();
+    private final String[] mErrors = new String[ERROR_UNSUPPORTED_OPTIONS + 1];
+    private String mAction = null;
+
+    /** The text that is not part of any extra, built lazily as it is rare for valid requests. */
+    private StringBuilder mLeftover = null;
+    private int mLeftoverStart = 0;
+
+    private SocketCommandParser(@NonNull String cmdline) {
+        mCmdline = cmdline;
+        mLength = cmdline.length();
+    }
+
+    /** Parse the command line. Check {@link #getErrors()} before using the result. */
+    @NonNull
+    public static SocketCommandParser parse(@NonNull String cmdline) {
+        SocketCommandParser parser = new SocketCommandParser(cmdline);
+        if (parser.parseExtras()) {
+            parser.parseLeftover(parser.mLeftover);
+            return parser;
+        }
+
+        // Option names are used where they could be matched differently depending on the order
+        // in which the extra types are parsed, so parse each type in a separate pass like the
+        // regex based parser did. This is only the case for malformed command lines.
+        parser = new SocketCommandParser(cmdline);
+        parser.removeExtras(TYPE_STRING);
+        parser.removeExtras(TYPE_BOOLEAN);
+        parser.removeExtras(TYPE_INT);
+        parser.removeExtras(TYPE_FLOAT);
+        parser.removeExtras(TYPE_INT_ARRAY);
+        parser.removeExtras(TYPE_LONG_ARRAY);
+        parser.parseLeftover(parser.mCmdline);
+        return parser;
+    }
+
+    /** Get the action set with `-a`, if any. */
+    @Nullable
+    public String getAction() {
+        return mAction;
+    }
+
+    /** Get the parsed extras keyed by name. */
+    @NonNull
+    public Map<String, Object> getExtras() {
+        return mExtras;
+    }
+
+    /**
+     * Get the newline terminated error messages in the order they are reported, or {@code null}
+     * if the command line was parsed successfully.
+     */
+    @Nullable
+    public String getErrors() {
+        StringBuilder errors = null;
+        for (String error : mErrors) {
+            if (error == null) continue;
+            if (errors == null) errors = new StringBuilder();
+            errors.append(error).append('\n');
+        }
+        return errors != null ? errors.toString() : null;
+    }
+
+    /** Set the action and extras of the parsed command line on the intent. */
+    public void fillIntent(@NonNull Intent intent) {
+        if (mAction != null) intent.setAction(mAction);
+        putExtras(intent, mExtras);
+    }
+
+    /** Put extras of the types supported by the socket protocols in the intent. */
+    public static void putExtras(@NonNull Intent intent, @NonNull Map<String, Object> extras) {
+        for (Map.Entry<String, Object> e : extras.entrySet()) {
+            Object value = e.getValue();
+            if (value instanceof String) intent.putExtra(e.getKey(), (String) value);
+            else if (value instanceof String[]) intent.putExtra(e.getKey(), (String[]) value);
+            else if (value instanceof Integer) intent.putExtra(e.getKey(), (int) (Integer) value);
+            else if (value instanceof Boolean) intent.putExtra(e.getKey(), (boolean) (Boolean) value);
+            else if (value instanceof Float) intent.putExtra(e.getKey(), (float) (Float) value);
+            else if (value instanceof int[]) intent.putExtra(e.getKey(), (int[]) value);
+            else if (value instanceof long[]) intent.putExtra(e.getKey(), (long[]) value);
+            else if (value instanceof Long) intent.putExtra(e.getKey(), (long) (Long) value);
+            else if (value instanceof byte[]) intent.putExtra(e.getKey(), (byte[]) value);
+            else throw new IllegalArgumentException("Unsupported extra type for \"" + e.getKey() + "\": " +
+                        (value == null ? "null" : value.getClass().getName()));
+        }
+    }
+
+
+
+    /**
+     * Parse the extras of all types in a single pass over the tokens.
+     *
+     * @return Returns {@code false} if `-e` occurs anywhere other than in option names and string
+     * values, in which case the result may differ from parsing each type in a separate pass.
+     */
+    private boolean parseExtras() {
+        while (true) {
+            skipSpaces();
+            if (mPos >= mLength) break;
+
+            int start = mPos;
+            int end = tokenEnd(start);
+            boolean isTokenStart = start == 0 || mCmdline.charAt(start - 1) == ' ';
+            if (isTokenStart && matchExtra(start, end, TYPE_ANY)) {
+                // The extra is removed from the command line, the text before it is left over.
+                appendLeftover(start);
+                mLeftoverStart = mPos;
+            } else {
+                checkAmbiguous(start, end);
+                mPos = end;
+            }
+            if (mAmbiguous) return false;
+        }
+        appendLeftover(mLength);
+        return true;
+    }
+
+    /**
+     * Remove the extras of the type from anywhere in the command line, like a regex `replaceAll()`
+     * would. String arrays are removed together with strings.
+     */
+    private void removeExtras(int type) {
+        boolean removed = false;
+        mLeftover = null;
+        mLeftoverStart = 0;
+        int start = mCmdline.indexOf('-');
+        while (start >= 0) {
+            if (matchExtra(start, tokenEnd(start), type)) {
+                appendLeftover(start);
+                mLeftoverStart = mPos;
+                removed = true;
+                start = mCmdline.indexOf('-', mPos);
+            } else {
+                start = mCmdline.indexOf('-', start + 1);
+            }
+        }
+
+        if (removed) {
+            appendLeftover(mLength);
+            mCmdline = mLeftover != null ? mLeftover.toString() : "";
+            mLength = mCmdline.length();
+        }
+        mLeftover = null;
+    }
+
+    /**
+     * Parse the extra at the position if it is of the type.
+     *
+     * @return Returns {@code true} if the extra was matched, even if its value was invalid, in
+     * which case an error is set.
+     */
+    private boolean matchExtra(int start, int end, int type) {
+        switch (optionAt(start, end)) {
+            case "-e":
+            case "--es":
+                return isType(type, TYPE_STRING) && parseStringExtra(start, end, false);
+            case "--esa":
+                return isType(type, TYPE_STRING) && parseStringExtra(start, end, true);
+            case "--ez":
+                return isType(type, TYPE_BOOLEAN) && parseBooleanExtra(start, end);
+            case "--ei":
+                return isType(type, TYPE_INT) && parseIntExtra(start, end);
+            case "--ef":
+                return isType(type, TYPE_FLOAT) && parseFloatExtra(start, end);
+            case "--eia":
+                return isType(type, TYPE_INT_ARRAY) && parseIntArrayExtra(start, end);
+            case "--ela":
+                return isType(type, TYPE_LONG_ARRAY) && parseLongArrayExtra(start, end);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isType(int type, int expectedType) {
+        return type == TYPE_ANY || type == expectedType;
+    }
+
+    /** Mark the command line as ambiguous if the text could be the start of an extra. */
+    private void checkAmbiguous(int start, int end) {
+        for (int i = start; i + 1 < end; i++) {
+            if (mCmdline.charAt(i) == '-' && mCmdline.charAt(i + 1) == 'e') {
+                mAmbiguous = true;
+                return;
+            }
+        }
+    }
+
+    /** Get the option name of the token, without allocating for tokens that are not options. */
+    @NonNull
+    private String optionAt(int start, int end) {
+        int length = end - start;
+        if (length < 2 || length > 5 || mCmdline.charAt(start) != '-') return "";
+        return mCmdline.substring(start, end);
+    }
+
+    private boolean parseStringExtra(int start, int optionEnd, boolean isArray) {
+        int keyStart = skipSpaces(optionEnd);
+        if (keyStart == optionEnd || keyStart >= mLength) return false;
+        int keyEnd = tokenEnd(keyStart);
+        int quote = skipSpaces(keyEnd);
+        if (quote == keyEnd || quote >= mLength || mCmdline.charAt(quote) != '"') return false;
+
+        // The value ends at the first quote that is not escaped with a backslash.
+        int valueEnd = quote + 1;
+        while (true) {
+            valueEnd = mCmdline.indexOf('"', valueEnd);
+            if (valueEnd < 0) return false;
+            if (mCmdline.charAt(valueEnd - 1) != '\\') break;
+            valueEnd++;
+        }
+
+        checkAmbiguous(keyStart, keyEnd);
+        String key = mCmdline.substring(keyStart, keyEnd);
+        if (isArray) {
+            putExtra(key, splitStringArray(quote + 1, valueEnd), TYPE_STRING_ARRAY);
+        } else {
+            putExtra(key, unescapeQuotes(quote + 1, valueEnd), TYPE_STRING);
+        }
+        mPos = valueEnd + 1;
+        return true;
+    }
+
+    /** Unescape all `\"` in the value. */
+    @NonNull
+    private String unescapeQuotes(int start, int end) {
+        int escape = mCmdline.indexOf("\\\"", start);
+        if (escape < 0 || escape + 1 >= end) return mCmdline.substring(start, end);
+
+        StringBuilder value = new StringBuilder(end - start);
+        int from = start;
+        while (escape >= 0 && escape + 1 < end) {
+            value.append(mCmdline, from, escape).append('"');
+            from = escape + 2;
+            escape = mCmdline.indexOf("\\\"", from);
+        }
+        return value.append(mCmdline, from, end).toString();
+    }
+
+    /**
+     * Split the value at commas that are not escaped with a backslash and unescape the first `\,`
+     * of each element. Trailing empty elements are dropped, like {@link String#split(String)} does.
+     */
+    @NonNull
+    private String[] splitStringArray(int start, int end) {
+        ArrayList<String> list = new ArrayList<>();
+        int from = start;
+        for (int i = start; i < end; i++) {
+            if (mCmdline.charAt(i) == ',' && (i == start || mCmdline.charAt(i - 1) != '\\')) {
+                list.add(unescapeFirstComma(from, i));
+                from = i + 1;
+            }
+        }
+        if (list.isEmpty()) return new String[]{unescapeFirstComma(start, end)};
+
+        list.add(unescapeFirstComma(from, end));
+        int size = list.size();
+        while (size > 0 && list.get(size - 1).isEmpty()) size--;
+        return list.subList(0, size).toArray(new String[0]);
+    }
+
+    @NonNull
+    private String unescapeFirstComma(int start, int end) {
+        int escape = mCmdline.indexOf("\\,", start);
+        if (escape < 0 || escape + 1 >= end) return mCmdline.substring(start, end);
+        return mCmdline.substring(start, escape) + mCmdline.substring(escape + 1, end);
+    }
+
+    private boolean parseBooleanExtra(int start, int optionEnd) {
+        int keyStart = skipSpaces(optionEnd);
+        if (keyStart == optionEnd || keyStart >= mLength) return false;
+        int keyEnd = tokenEnd(keyStart);
+        int valueStart = skipSpaces(keyEnd);
+        if (valueStart == keyEnd || valueStart >= mLength) return false;
+        int valueEnd = tokenEnd(valueStart);
+        checkAmbiguous(keyStart, valueEnd);
+        mPos = valueEnd;
+
+        String value = mCmdline.substring(valueStart, valueEnd).toLowerCase();
+        Boolean arg = null;
+        if ("true".equals(value) || "t".equals(value)) {
+            arg = true;
+        } else if ("false".equals(value) || "f".equals(value)) {
+            arg = false;
+        } else {
+            try {
+                arg = Integer.decode(value) != 0;
+            } catch (NumberFormatException ex) {
+                // Ignore
+            }
+        }
+
+        if (arg == null) {
+            setError(ERROR_BOOLEAN, "Invalid boolean extra: ", start, valueEnd);
+        } else {
+            putExtra(mCmdline.substring(keyStart, keyEnd), arg, TYPE_BOOLEAN);
+        }
+        return true;
+    }
+
+    private boolean parseIntExtra(int start, int optionEnd) {
+        int valueStart = numberValueStart(optionEnd);
+        if (valueStart < 0) return false;
+        int valueEnd = integerEnd(valueStart);
+        if (valueEnd < 0) return false;
+        mPos = valueEnd;
+
+        String key = keyBefore(optionEnd);
+        try {
+            putExtra(key, Integer.parseInt(mCmdline.substring(valueStart, valueEnd)), TYPE_INT);
+        } catch (NumberFormatException e) {
+            setError(ERROR_INT, "Invalid integer extra: ", start, valueEnd);
+        }
+        return true;
+    }
+
+    private boolean parseFloatExtra(int start, int optionEnd) {
+        int valueStart = numberValueStart(optionEnd);
+        if (valueStart < 0) return false;
+        int integerEnd = integerEnd(valueStart);
+        if (integerEnd < 0 || integerEnd + 1 >= mLength || mCmdline.charAt(integerEnd) != '.' ||
+                !isDigit(mCmdline.charAt(integerEnd + 1))) return false;
+        int valueEnd = integerEnd + 2;
+        while (valueEnd < mLength && isDigit(mCmdline.charAt(valueEnd))) valueEnd++;
+        mPos = valueEnd;
+
+        String key = keyBefore(optionEnd);
+        try {
+            putExtra(key, Float.parseFloat(mCmdline.substring(valueStart, valueEnd)), TYPE_FLOAT);
+        } catch (NumberFormatException e) {
+            setError(ERROR_FLOAT, "Invalid float extra: ", start, valueEnd);
+        }
+        return true;
+    }
+
+    private boolean parseIntArrayExtra(int start, int optionEnd) {
+        int valueStart = numberValueStart(optionEnd);
+        if (valueStart < 0) return false;
+        int valueEnd = integerListEnd(valueStart);
+        if (valueEnd < 0) return false;
+        mPos = valueEnd;
+
+        String key = keyBefore(optionEnd);
+        try {
+            int[] ints = new int[countListElements(valueStart, valueEnd)];
+            int from = valueStart;
+            for (int i = 0; i < ints.length; i++) {
+                int to = listElementEnd(from, valueEnd);
+                ints[i] = Integer.parseInt(mCmdline.substring(from, to));
+                from = to + 1;
+            }
+            putExtra(key, ints, TYPE_INT_ARRAY);
+        } catch (NumberFormatException e) {
+            setError(ERROR_INT_ARRAY, "Invalid int array extra: ", start, valueEnd);
+        }
+        return true;
+    }
+
+    private boolean parseLongArrayExtra(int start, int optionEnd) {
+        int valueStart = numberValueStart(optionEnd);
+        if (valueStart < 0) return false;
+        int valueEnd = integerListEnd(valueStart);
+        if (valueEnd < 0) return false;
+        mPos = valueEnd;
+
+        String key = keyBefore(optionEnd);
+        try {
+            long[] longs = new long[countListElements(valueStart, valueEnd)];
+            int from = valueStart;
+            for (int i = 0; i < longs.length; i++) {
+                int to = listElementEnd(from, valueEnd);
+                longs[i] = Long.parseLong(mCmdline.substring(from, to));
+                from = to + 1;
+            }
+            putExtra(key, longs, TYPE_LONG_ARRAY);
+        } catch (NumberFormatException e) {
+            setError(ERROR_LONG_ARRAY, "Invalid long array extra: ", start, valueEnd);
+        }
+        return true;
+    }
+
+    /** Get the start of the value after the option and key tokens, or `-1` if there is none. */
+    private int numberValueStart(int optionEnd) {
+        int keyStart = skipSpaces(optionEnd);
+        if (keyStart == optionEnd || keyStart >= mLength) return -1;
+        int keyEnd = tokenEnd(keyStart);
+        int valueStart = skipSpaces(keyEnd);
+        if (valueStart == keyEnd || valueStart >= mLength) return -1;
+        return valueStart;
+    }
+
+    @NonNull
+    private String keyBefore(int optionEnd) {
+        int keyStart = skipSpaces(optionEnd);
+        int keyEnd = tokenEnd(keyStart);
+        checkAmbiguous(keyStart, keyEnd);
+        return mCmdline.substring(keyStart, keyEnd);
+    }
+
+    /** Get the end of the `-?[0-9]+` at the position, or `-1` if there is none. */
+    private int integerEnd(int start) {
+        int i = start;
+        if (i < mLength && mCmdline.charAt(i) == '-') i++;
+        if (i >= mLength || !isDigit(mCmdline.charAt(i))) return -1;
+        while (i < mLength && isDigit(mCmdline.charAt(i))) i++;
+        return i;
+    }
+
+    /** Get the end of the `-?[0-9]+(?:,-?[0-9]+)*` at the position, or `-1` if there is none. */
+    private int integerListEnd(int start) {
+        int end = integerEnd(start);
+        if (end < 0) return -1;
+        while (end < mLength && mCmdline.charAt(end) == ',') {
+            int next = integerEnd(end + 1);
+            if (next < 0) break;
+            end = next;
+        }
+        return end;
+    }
+
+    private int countListElements(int start, int end) {
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (mCmdline.charAt(i) == ',') count++;
+        }
+        return count;
+    }
+
+    private int listElementEnd(int start, int end) {
+        int i = mCmdline.indexOf(',', start);
+        return i < 0 || i > end ? end : i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void putExtra(@NonNull String key, @NonNull Object value, int type) {
+        Integer existingType = mExtraTypes.get(key);
+        if (existingType != null && existingType > type) return;
+        mExtras.put(key, value);
+        mExtraTypes.put(key, type);
+    }
+
+    private void setError(int error, @NonNull String message, int start, int end) {
+        if (mErrors[error] == null) mErrors[error] = message + mCmdline.substring(start, end);
+    }
+
+
+
+    private void appendLeftover(int end) {
+        if (end <= mLeftoverStart) return;
+        if (mLeftover == null) mLeftover = new StringBuilder();
+        mLeftover.append(mCmdline, mLeftoverStart, end);
+    }
+
+    /**
+     * Parse the actions in the text that is not part of any extra and report what is left after
+     * that. Actions and unsupported extra types are matched anywhere in the text, like the regex
+     * based parser did.
+     */
+    private void parseLeftover(@Nullable CharSequence text) {
+        if (text == null || text.length() == 0) return;
+
+        String leftover = removeActions(text);
+        leftover = removeUnsupportedTypes(leftover);
+
+        // check if there are any non-whitespace characters left after parsing all the options
+        StringBuilder options = null;
+        for (int i = 0; i < leftover.length(); i++) {
+            char c = leftover.charAt(i);
+            if (isRegexWhitespace(c)) continue;
+            if (options == null) options = new StringBuilder();
+            options.append(c);
+        }
+        if (options != null) {
+            mErrors[ERROR_UNSUPPORTED_OPTIONS] = "Unsupported options: " + options;
+        }
+    }
+
+    /** Remove all matches of `-a *([^ ]+)`, the last one sets the action. */
+    @NonNull
+    private String removeActions(@NonNull CharSequence text) {
+        StringBuilder result = new StringBuilder(text.length());
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            if (text.charAt(i) == '-' && i + 1 < length && text.charAt(i + 1) == 'a') {
+                int valueStart = i + 2;
+                while (valueStart < length && text.charAt(valueStart) == ' ') valueStart++;
+                int valueEnd = valueStart;
+                while (valueEnd < length && text.charAt(valueEnd) != ' ') valueEnd++;
+                if (valueEnd > valueStart) {
+                    mAction = text.subSequence(valueStart, valueEnd).toString();
+                    i = valueEnd;
+                    continue;
+                }
+            }
+            result.append(text.charAt(i++));
+        }
+        return result.toString();
+    }
+
+    /** Remove all matches of `--e[^izs ] +[^ ]+ +[^ ]+`, the first one is reported. */
+    @NonNull
+    private String removeUnsupportedTypes(@NonNull String text) {
+        StringBuilder result = null;
+        int length = text.length();
+        int from = 0;
+        int i = text.indexOf("--e");
+        while (i >= 0 && i + 3 < length) {
+            int end = -1;
+            char type = text.charAt(i + 3);
+            if (type != 'i' && type != 'z' && type != 's' && type != ' ') {
+                int keyStart = i + 4;
+                while (keyStart < length && text.charAt(keyStart) == ' ') keyStart++;
+                int keyEnd = keyStart;
+                while (keyEnd < length && text.charAt(keyEnd) != ' ') keyEnd++;
+                int valueStart = keyEnd;
+                while (valueStart < length && text.charAt(valueStart) == ' ') valueStart++;
+                int valueEnd = valueStart;
+                while (valueEnd < length && text.charAt(valueEnd) != ' ') valueEnd++;
+                if (keyStart > i + 4 && keyEnd > keyStart && valueStart > keyEnd && valueEnd > valueStart)
+                    end = valueEnd;
+            }
+
+            if (end < 0) {
+                i = text.indexOf("--e", i + 1);
+                continue;
+            }
+
+            if (mErrors[ERROR_UNSUPPORTED_TYPE] == null)
+                mErrors[ERROR_UNSUPPORTED_TYPE] = "Unsupported argument type: " + text.substring(i, end);
+            if (result == null) result = new StringBuilder(length);
+            result.append(text, from, i);
+            from = end;
+            i = text.indexOf("--e", end);
+        }
+
+        if (result == null) return text;
+        return result.append(text, from, length).toString();
+    }
+
+
+
+    private void skipSpaces() {
+        mPos = skipSpaces(mPos);
+    }
+
+    private int skipSpaces(int i) {
+        while (i < mLength && mCmdline.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    private int tokenEnd(int i) {
+        while (i < mLength && mCmdline.charAt(i) != ' ') i++;
+        return i;
+    }
+
+    /** Whether the character matches the `\s` regex character class. */
+    private static boolean isRegexWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+}
@@ -4,6 +4,7 @@ import android.app.Application;
 import android.content.Intent;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
+import android.os.SystemClock;
 
 import com.termux.shared.logger.Logger;
 import com.termux.shared.termux.TermuxConstants;
@@ -12,251 +13,182 @@ import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SocketListener {
 
     public static final String LISTEN_ADDRESS = TermuxConstants.TERMUX_API_PACKAGE_NAME + "://listen";
-    private static final Pattern EXTRA_STRING = Pattern.compile("(-e|--es|--esa) +([^ ]+) +\"(.*?)(?<!\\\\)\"", Pattern.DOTALL);
-    private static final Pattern EXTRA_BOOLEAN = Pattern.compile("--ez +([^ ]+) +([^ ]+)");
-    private static final Pattern EXTRA_INT = Pattern.compile("--ei +([^ ]+) +(-?[0-9]+)");
-    private static final Pattern EXTRA_FLOAT = Pattern.compile("--ef +([^ ]+) +(-?[0-9]+(?:\\.[0-9]+))");
-    private static final Pattern EXTRA_INT_LIST = Pattern.compile("--eia +([^ ]+) +(-?[0-9]+(?:,-?[0-9]+)*)");
-    private static final Pattern EXTRA_LONG_LIST = Pattern.compile("--ela +([^ ]+) +(-?[0-9]+(?:,-?[0-9]+)*)");
-    private static final Pattern EXTRA_UNSUPPORTED = Pattern.compile("--e[^izs ] +[^ ]+ +[^ ]+");
-    private static final Pattern ACTION = Pattern.compile("-a *([^ ]+)");
-    
+
+    /** The default number of worker threads that parse and dispatch accepted connections. */
+    public static final int DEFAULT_WORKER_COUNT = 4;
+    /**
+     * The default number of accepted connections that may wait for a free worker. Once full, the
+     * accept loop blocks until a worker picks up a connection, so clients are held back in the
+     * kernel listen backlog instead of queueing without bound in memory.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
     private static Thread listener = null;
+    private static ThreadPoolExecutor workers = null;
 
     private static final String LOG_TAG = "SocketListener";
 
     public static void createSocketListener(Application app) {
+        createSocketListener(app, DEFAULT_WORKER_COUNT, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Start the listener thread for {@link #LISTEN_ADDRESS} if it is not already running.
+     *
+     * @param app The {@link Application} for which to dispatch the requests.
+     * @param workerCount The number of connections that are handled concurrently.
+     * @param queueCapacity The number of accepted connections that may wait for a free worker
+     *                      before the accept loop blocks.
+     */
+    public static synchronized void createSocketListener(Application app, int workerCount, int queueCapacity) {
         if (listener == null) {
+            workers = new ThreadPoolExecutor(workerCount, workerCount, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, LOG_TAG + "-worker-" + count.incrementAndGet());
+                }
+            }, (r, executor) -> {
+                // Apply back-pressure to the accept loop by waiting for space in the queue.
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for a free worker", e);
+                }
+            });
+            workers.allowCoreThreadTimeOut(true);
+
             listener = new Thread(() -> {
                 try (LocalServerSocket listen = new LocalServerSocket(LISTEN_ADDRESS)) {
                     while (true) {
-                        try (LocalSocket con = listen.accept();
-                             DataInputStream in = new DataInputStream(con.getInputStream());
-                             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(con.getOutputStream()))) {
-                            // only accept connections from Termux programs
-                            if (con.getPeerCredentials().getUid() != app.getApplicationInfo().uid) {
-                                continue;
-                            }
-                            try {
-                                //System.out.println("connection");
-                                int length = in.readUnsignedShort();
-                                byte[] b = new byte[length];
-                                in.readFully(b);
-                                String cmdline = new String(b, StandardCharsets.UTF_8);
-                        
-                                Intent intent = new Intent(app.getApplicationContext(), TermuxApiReceiver.class);
-                                //System.out.println(cmdline.replaceAll("--es socket_input \".*?\"","").replaceAll("--es socket_output \".*?\"",""));
-                                HashMap<String, String> stringExtras = new HashMap<>();
-                                HashMap<String, String[]> stringArrayExtras = new HashMap<>();
-                                HashMap<String, Boolean> booleanExtras = new HashMap<>();
-                                HashMap<String, Integer> intExtras = new HashMap<>();
-                                HashMap<String, Float> floatExtras = new HashMap<>();
-                                HashMap<String, int[]> intArrayExtras = new HashMap<>();
-                                HashMap<String, long[]> longArrayExtras = new HashMap<>();
-                                boolean err = false;
-                        
-                                // extract and remove the string extras first, so another argument embedded in a string isn't counted as an argument
-                                Matcher m = EXTRA_STRING.matcher(cmdline);
-                                while (m.find()) {
-                                    String option = m.group(1);
-                                    if ("-e".equals(option) || "--es".equals(option)) {
-                                        // unescape "
-                                        stringExtras.put(m.group(2), Objects.requireNonNull(m.group(3)).replaceAll("\\\\\"", "\""));
-                                    }
-                                    else {
-                                        // split the list
-                                        String[] list = Objects.requireNonNull(m.group(3)).split("(?<!\\\\),");
-                                        for (int i = 0; i < list.length; i++) {
-                                            /// unescape the ","
-                                            list[i] = list[i].replaceFirst("\\\\,", ",");
-                                        }
-                                        stringArrayExtras.put(m.group(2), list);
-                                    }
-                            
-                                }
-                                cmdline = m.replaceAll("");
-                        
-                                m = EXTRA_BOOLEAN.matcher(cmdline);
-                                while (m.find()) {
-                                    String value = m.group(2);
-                                    value = value != null ? value.toLowerCase() : null;
-                                    Boolean arg = null;
-
-                                    if ("true".equals(value) || "t".equals(value)) {
-                                        arg = true;
-                                    } else if ("false".equals(value) || "f".equals(value)) {
-                                        arg = false;
-                                    } else {
-                                        try {
-                                            if (value != null)
-                                                arg = Integer.decode(value) != 0;
-                                        } catch (NumberFormatException ex) {
-                                            // Ignore
-                                        }
-                                    }
-                                    if (arg == null) {
-                                        String msg = "Invalid boolean extra: " + m.group(0) + "\n";
-                                        Logger.logInfo(LOG_TAG, msg);
-                                        out.write(msg);
-                                        err = true;
-                                        break;
-                                    }
-                                    booleanExtras.put(m.group(1), arg);
-                                }
-                                cmdline = m.replaceAll("");
-                        
-                                m = EXTRA_INT.matcher(cmdline);
-                                while (m.find()) {
-                                    try {
-                                        intExtras.put(m.group(1), Integer.parseInt(Objects.requireNonNull(m.group(2))));
-                                    }
-                                    catch (NumberFormatException e) {
-                                        String msg = "Invalid integer extra: " + m.group(0) + "\n";
-                                        Logger.logInfo(LOG_TAG, msg);
-                                        out.write(msg);
-                                        err = true;
-                                        break;
-                                    }
-                                }
-                                cmdline = m.replaceAll("");
-                        
-                                m = EXTRA_FLOAT.matcher(cmdline);
-                                while (m.find()) {
-                                    try {
-                                        floatExtras.put(m.group(1), Float.parseFloat(Objects.requireNonNull(m.group(2))));
-                                    }
-                                    catch (NumberFormatException e) {
-                                        String msg = "Invalid float extra: " + m.group(0) + "\n";
-                                        Logger.logInfo(LOG_TAG, msg);
-                                        out.write(msg);
-                                        err = true;
-                                        break;
-                                    }
-                                }
-                                cmdline = m.replaceAll("");
-                        
-                                m = EXTRA_INT_LIST.matcher(cmdline);
-                                while (m.find()) {
-                                    try {
-                                        String[] parts = Objects.requireNonNull(m.group(2)).split(",");
-                                        int[] ints = new int[parts.length];
-                                        for (int i = 0; i < parts.length; i++) {
-                                            ints[i] = Integer.parseInt(parts[i]);
-                                        }
-                                        intArrayExtras.put(m.group(1), ints);
-                                    }
-                                    catch (NumberFormatException e) {
-                                        String msg = "Invalid int array extra: " + m.group(0) + "\n";
-                                        Logger.logInfo(LOG_TAG, msg);
-                                        out.write(msg);
-                                        err = true;
-                                        break;
-                                    }
-                                }
-                                cmdline = m.replaceAll("");
-                        
-                                m = EXTRA_LONG_LIST.matcher(cmdline);
-                                while (m.find()) {
-                                    try {
-                                        String[] parts = Objects.requireNonNull(m.group(2)).split(",");
-                                        long[] longs = new long[parts.length];
-                                        for (int i = 0; i < parts.length; i++) {
-                                            longs[i] = Long.parseLong(parts[i]);
-                                        }
-                                        longArrayExtras.put(m.group(1), longs);
-                                    }
-                                    catch (NumberFormatException e) {
-                                        String msg = "Invalid long array extra: " + m.group(0) + "\n";
-                                        Logger.logInfo(LOG_TAG, msg);
-                                        out.write(msg);
-                                        err = true;
-                                        break;
-                                    }
-                                }
-                                cmdline = m.replaceAll("");
-                        
-                                m = ACTION.matcher(cmdline);
-                                while (m.find()) {
-                                    intent.setAction(m.group(1));
-                                }
-                                cmdline = m.replaceAll("");
-                        
-                                m = EXTRA_UNSUPPORTED.matcher(cmdline);
-                                if (m.find()) {
-                                    String msg = "Unsupported argument type: " + m.group(0) + "\n";
-                                    Logger.logInfo(LOG_TAG, msg);
-                                    out.write(msg);
-                                    err = true;
-                                }
-                                cmdline = m.replaceAll("");
-                        
-                                // check if there are any non-whitespace characters left after parsing all the options
-                                cmdline = cmdline.replaceAll("\\s", "");
-                                if (!"".equals(cmdline)) {
-                                    String msg = "Unsupported options: " + cmdline + "\n";
-                                    Logger.logInfo(LOG_TAG, msg);
-                                    out.write(msg);
-                                    err = true;
-                                }
-                        
-                                if (err) {
-                                    out.flush();
-                                    continue;
-                                }
-                        
-                                // set the intent extras
-                                for (Map.Entry<String, String> e : stringExtras.entrySet()) {
-                                    intent.putExtra(e.getKey(), e.getValue());
-                                }
-                                for (Map.Entry<String, String[]> e : stringArrayExtras.entrySet()) {
-                                    intent.putExtra(e.getKey(), e.getValue());
-                                }
-                                for (Map.Entry<String, Integer> e : intExtras.entrySet()) {
-                                    intent.putExtra(e.getKey(), e.getValue());
-                                }
-                                for (Map.Entry<String, Boolean> e : booleanExtras.entrySet()) {
-                                    intent.putExtra(e.getKey(), e.getValue());
-                                }
-                                for (Map.Entry<String, Float> e : floatExtras.entrySet()) {
-                                    intent.putExtra(e.getKey(), e.getValue());
-                                }
-                                for (Map.Entry<String, int[]> e : intArrayExtras.entrySet()) {
-                                    intent.putExtra(e.getKey(), e.getValue());
-                                }
-                                for (Map.Entry<String, long[]> e : longArrayExtras.entrySet()) {
-                                    intent.putExtra(e.getKey(), e.getValue());
-                                }
-                                app.getApplicationContext().sendOrderedBroadcast(intent, null);
-                                // send a null byte as a sign that the arguments have been successfully received, parsed and the broadcast receiver is called
-                                con.getOutputStream().write(0);
-                                con.getOutputStream().flush();
-                            }
-                            catch (Exception e) {
-                                Logger.logStackTraceWithMessage(LOG_TAG, "Error parsing arguments", e);
-                                out.write("Exception in the plugin\n");
-                                out.flush();
-                            }
-                        }
-                        catch (java.io.IOException e) {
-                            Logger.logStackTraceWithMessage(LOG_TAG, "Connection error", e);
+                        LocalSocket con = listen.accept();
+                        long acceptTime = SystemClock.elapsedRealtime();
+                        try {
+                            workers.execute(() -> handleConnection(app, con, acceptTime));
+                        } catch (RejectedExecutionException e) {
+                            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to queue connection", e);
+                            closeQuietly(con);
                         }
                     }
                 }
                 catch (Exception e) {
                     Logger.logStackTraceWithMessage(LOG_TAG, "Error listening for connections", e);
                 }
-            });
+            }, LOG_TAG);
             listener.start();
         }
     }
 
+    /** Get the number of accepted connections currently waiting for a free worker. */
+    public static int getQueuedConnectionCount() {
+        ThreadPoolExecutor executor = workers;
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    /** Get the number of connections currently being handled by workers. */
+    public static int getActiveConnectionCount() {
+        ThreadPoolExecutor executor = workers;
+        return executor != null ? executor.getActiveCount() : 0;
+    }
+
+    private static void handleConnection(Application app, LocalSocket con, long acceptTime) {
+        long queueWaitTime = SystemClock.elapsedRealtime() - acceptTime;
+        Logger.logVerbose(LOG_TAG, "Connection waited " + queueWaitTime + "ms for a worker");
+
+        // the connection is kept open if it is taken over by a session
+        boolean keepOpen = false;
+        try {
+            DataInputStream in = new DataInputStream(con.getInputStream());
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(con.getOutputStream()));
+            // only accept connections from Termux programs
+            if (con.getPeerCredentials().getUid() != app.getApplicationInfo().uid) {
+                return;
+            }
+            try {
+                //System.out.println("connection");
+                int length = in.readUnsignedShort();
+                Intent intent = new Intent(app.getApplicationContext(), TermuxApiReceiver.class);
+                if (length == 0) {
+                    // an empty command line has no api_method, so a zero length selects the binary protocol
+                    String error = null;
+                    String magic = SocketBinaryRequest.readMagic(in);
+                    if (SocketSession.MAGIC.equals(magic)) {
+                        error = SocketSession.start(app, con, in);
+                        keepOpen = error == null;
+                    } else if (SocketBinaryRequest.MAGIC.equals(magic)) {
+                        try {
+                            SocketBinaryRequest request = SocketBinaryRequest.read(in);
+                            if (request.getAction() != null) intent.setAction(request.getAction());
+                            SocketCommandParser.putExtras(intent, request.getExtras());
+                        } catch (SocketBinaryRequest.InvalidRequestException e) {
+                            error = e.getMessage();
+                        }
+                    } else {
+                        error = "Invalid binary request magic";
+                    }
+
+                    if (keepOpen) return;
+                    if (error != null) {
+                        String msg = error + "\n";
+                        Logger.logInfo(LOG_TAG, msg);
+                        out.write(msg);
+                        out.flush();
+                        return;
+                    }
+                } else {
+                    byte[] b = new byte[length];
+                    in.readFully(b);
+                    String cmdline = new String(b, StandardCharsets.UTF_8);
+
+                    SocketCommandParser parser = SocketCommandParser.parse(cmdline);
+                    String errors = parser.getErrors();
+                    if (errors != null) {
+                        Logger.logInfo(LOG_TAG, errors);
+                        out.write(errors);
+                        out.flush();
+                        return;
+                    }
+                    parser.fillIntent(intent);
+                }
+
+                TermuxApiReceiver.dispatch(app, intent);
+                // send a null byte as a sign that the arguments have been successfully received, parsed and the receiver is called
+                con.getOutputStream().write(0);
+                con.getOutputStream().flush();
+            }
+            catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Error parsing arguments", e);
+                out.write("Exception in the plugin\n");
+                out.flush();
+            }
+        }
+        catch (java.io.IOException e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Connection error", e);
+        }
+        finally {
+            if (!keepOpen) closeQuietly(con);
+        }
+    }
+
+    private static void closeQuietly(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (java.io.IOException e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close connection", e);
+        }
+    }
+
 }
@@ -0,0 +1,347 @@
+package com.termux.api;
+
+import android.app.Application;
+import android.content.Intent;
+import android.net.LocalSocket;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.termux.shared.logger.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long-lived connection to {@link SocketListener} on which a client sends many requests and
+ * receives their output, instead of opening new sockets for every API call. The peer credentials
+ * are only checked once when the session is started.
+ *
+ * A session is started with a zero length followed by {@link #MAGIC} and a `u8` version, which is
+ * currently 1. The listener replies with a null byte once the session is ready, or an error message
+ * if it could not be started. The client then sends request frames:
+ *
+ * ```
+ * i32     request id, chosen by the client
+ * body    request body as documented in {@link SocketBinaryRequest}
+ * i32     input length, or -1 if the request has no input
+ * u8[]    input bytes that are read by APIs that take input from stdin
+ * ```
+ *
+ * The output of each request is sent back as frames tagged with its request id. Frames of
+ * different requests may be interleaved.
+ *
+ * ```
+ * i32     request id
+ * u8      frame type from the `FRAME_*` constants
+ * i32     payload length
+ * u8[]    payload
+ * ```
+ *
+ * A request ends with a {@link #FRAME_END} frame with the `i32` result code as payload, or a
+ * {@link #FRAME_ERROR} frame with an error message if it could not be dispatched, like for an
+ * unknown `api_method`. File descriptors can not be passed in a session, so APIs that return them
+ * fail.
+ *
+ * The session ends when the client closes the connection, or after a malformed request as the
+ * start of the next frame is not known then.
+ */
+public class SocketSession implements Runnable {
+
+    public static final String MAGIC = "TAPS";
+    public static final int VERSION = 1;
+
+    /** Output data of a request. */
+    public static final int FRAME_OUTPUT = 0;
+    /** The request finished, the payload is the `i32` result code. */
+    public static final int FRAME_END = 1;
+    /** The request could not be dispatched, the payload is the UTF-8 error message. */
+    public static final int FRAME_ERROR = 2;
+
+    /** The maximum number of sessions that may be open at the same time. */
+    public static final int MAX_SESSIONS = 16;
+
+    /** The maximum length of the input of a request. */
+    public static final int MAX_INPUT_SIZE = SocketBinaryRequest.MAX_REQUEST_SIZE;
+
+    /**
+     * The prefix of the `socket_output` and `socket_input` extras of requests sent in a session,
+     * followed by the session id and request id separated by `:`.
+     */
+    public static final String ADDRESS_PREFIX = "session:";
+
+    private static final Map<String, SocketSession> SESSIONS = new ConcurrentHashMap<>();
+
+    private static final String LOG_TAG = "SocketSession";
+
+    private final Application mApp;
+    private final LocalSocket mSocket;
+    private final DataInputStream mIn;
+    private final DataOutputStream mOut;
+    private final String mId = UUID.randomUUID().toString();
+
+    private final Map<Integer, byte[]> mInputs = new ConcurrentHashMap<>();
+
+    private SocketSession(@NonNull Application app, @NonNull LocalSocket socket,
+                          @NonNull DataInputStream in) throws IOException {
+        mApp = app;
+        mSocket = socket;
+        mIn = in;
+        mOut = new DataOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Start a session on its own thread for a connection that sent the session {@link #MAGIC}.
+     * The session takes over the connection if this returns {@code null}.
+     *
+     * @return Returns the error message if the session could not be started.
+     */
+    @Nullable
+    public static synchronized String start(@NonNull Application app, @NonNull LocalSocket socket,
+                                            @NonNull DataInputStream in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            return "Unsupported session version: " + version;
+        if (SESSIONS.size() >= MAX_SESSIONS)
+            return "Too many open sessions";
+
+        SocketSession session = new SocketSession(app, socket, in);
+        SESSIONS.put(session.mId, session);
+        new Thread(session, LOG_TAG + "-" + session.mId).start();
+        return null;
+    }
+
+    /**
+     * Get the output of a request if the address is a session request address.
+     *
+     * @return Returns {@code null} if the address is not a session request address.
+     * @throws IOException If the session is not open anymore.
+     */
+    @Nullable
+    public static RequestOutputStream getRequestOutput(@NonNull String address) throws IOException {
+        if (!address.startsWith(ADDRESS_PREFIX)) return null;
+        SocketSession session = getSession(address);
+        return new RequestOutputStream(session, getRequestId(address));
+    }
+
+    /**
+     * Get the input of a request if the address is a session request address.
+     *
+     * @return Returns {@code null} if the address is not a session request address.
+     * @throws IOException If the session is not open anymore or the request has no input.
+     */
+    @Nullable
+    public static InputStream getRequestInput(@NonNull String address) throws IOException {
+        if (!address.startsWith(ADDRESS_PREFIX)) return null;
+        byte[] input = getSession(address).mInputs.remove(getRequestId(address));
+        if (input == null)
+            throw new IOException("No input for session request \"" + address + "\"");
+        return new ByteArrayInputStream(input);
+    }
+
+    @NonNull
+    private static SocketSession getSession(@NonNull String address) throws IOException {
+        int separator = address.lastIndexOf(':');
+        SocketSession session = SESSIONS.get(address.substring(ADDRESS_PREFIX.length(), separator));
+        if (session == null)
+            throw new IOException("The session of \"" + address + "\" is closed");
+        return session;
+    }
+
+    private static int getRequestId(@NonNull String address) throws IOException {
+        try {
+            return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid session request address \"" + address + "\"", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        Logger.logDebug(LOG_TAG, "Session " + mId + " started");
+        try {
+            // send a null byte as a sign that the session is ready
+            mOut.write(0);
+            mOut.flush();
+
+            while (true) {
+                int requestId;
+                try {
+                    requestId = mIn.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                SocketBinaryRequest request;
+                byte[] input = null;
+                try {
+                    request = SocketBinaryRequest.readBody(mIn);
+                    int inputLength = mIn.readInt();
+                    if (inputLength != -1) {
+                        if (inputLength < 0 || inputLength > MAX_INPUT_SIZE)
+                            throw new SocketBinaryRequest.InvalidRequestException("Invalid input length " + inputLength);
+                        input = new byte[inputLength];
+                        mIn.readFully(input);
+                    }
+                } catch (SocketBinaryRequest.InvalidRequestException e) {
+                    Logger.logInfo(LOG_TAG, e.getMessage());
+                    writeError(requestId, e.getMessage());
+                    break;
+                }
+
+                try {
+                    String error = dispatch(requestId, request, input);
+                    if (error != null) {
+                        Logger.logError(LOG_TAG, error);
+                        writeError(requestId, error);
+                    }
+                } catch (Exception e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Error dispatching session request", e);
+                    mInputs.remove(requestId);
+                    writeError(requestId, "Exception in the plugin");
+                }
+            }
+        } catch (IOException e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Session connection error", e);
+        } finally {
+            SESSIONS.remove(mId);
+            mInputs.clear();
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close session", e);
+            }
+            Logger.logDebug(LOG_TAG, "Session " + mId + " closed");
+        }
+    }
+
+    /**
+     * Dispatch a request to {@link TermuxApiReceiver}. Requests for an unknown API are rejected
+     * here, as the receiver only logs them and would never end the request.
+     *
+     * @return Returns the error message if the request was rejected.
+     */
+    @Nullable
+    private String dispatch(int requestId, @NonNull SocketBinaryRequest request, @Nullable byte[] input) {
+        Intent intent = new Intent(mApp.getApplicationContext(), TermuxApiReceiver.class);
+        if (request.getAction() != null) intent.setAction(request.getAction());
+        SocketCommandParser.putExtras(intent, request.getExtras());
+
+        String apiMethod = intent.getStringExtra("api_method");
+        if (apiMethod == null)
+            return "Missing 'api_method' extra";
+        if (ApiRegistry.get(apiMethod) == null)
+            return "Unrecognized 'api_method' extra: '" + apiMethod + "'";
+
+        String address = ADDRESS_PREFIX + mId + ":" + requestId;
+        intent.putExtra("socket_output", address);
+        if (input != null) {
+            mInputs.put(requestId, input);
+            intent.putExtra("socket_input", address);
+        } else {
+            intent.removeExtra("socket_input");
+        }
+
+        TermuxApiReceiver.dispatch(mApp, intent);
+        return null;
+    }
+
+    private void writeError(int requestId, @NonNull String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        writeFrame(requestId, FRAME_ERROR, payload, 0, payload.length);
+    }
+
+    /** Write a frame. Frames are written whole so that frames of concurrent requests don't mix. */
+    private void writeFrame(int requestId, int type, @NonNull byte[] payload, int offset, int length) throws IOException {
+        synchronized (mOut) {
+            mOut.writeInt(requestId);
+            mOut.writeByte(type);
+            mOut.writeInt(length);
+            mOut.write(payload, offset, length);
+            mOut.flush();
+        }
+    }
+
+    private void writeEnd(int requestId, int resultCode) throws IOException {
+        byte[] payload = {(byte) (resultCode >>> 24), (byte) (resultCode >>> 16),
+                (byte) (resultCode >>> 8), (byte) resultCode};
+        writeFrame(requestId, FRAME_END, payload, 0, payload.length);
+    }
+
+
+
+    /**
+     * Output of a session request. Written data is buffered and sent as a {@link #FRAME_OUTPUT}
+     * frame when flushed, and {@link #close()} ends the request with a {@link #FRAME_END} frame.
+     */
+    public static class RequestOutputStream extends OutputStream {
+
+        private static final int BUFFER_SIZE = 8192;
+
+        private final SocketSession mSession;
+        private final int mRequestId;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mCount = 0;
+        private int mResultCode = 0;
+        private boolean mClosed = false;
+
+        private RequestOutputStream(@NonNull SocketSession session, int requestId) {
+            mSession = session;
+            mRequestId = requestId;
+        }
+
+        /** Set the result code sent when the stream is closed. */
+        public void setResultCode(int resultCode) {
+            mResultCode = resultCode;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (mCount == mBuffer.length) flush();
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len >= mBuffer.length) {
+                flush();
+                mSession.writeFrame(mRequestId, FRAME_OUTPUT, b, off, len);
+                return;
+            }
+            if (len > mBuffer.length - mCount) flush();
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (mClosed) throw new IOException("Session request output closed");
+            if (mCount == 0) return;
+            mSession.writeFrame(mRequestId, FRAME_OUTPUT, mBuffer, 0, mCount);
+            mCount = 0;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (mClosed) return;
+            try {
+                flush();
+            } finally {
+                mClosed = true;
+                // the input is not read by APIs that don't take input
+                mSession.mInputs.remove(mRequestId);
+                mSession.writeEnd(mRequestId, mResultCode);
+            }
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import android.app.Application;
 import android.content.Context;
 import android.util.Log;
 
+import com.termux.api.apis.GeofenceAPI;
 import com.termux.api.util.ResultReturner;
 import com.termux.shared.logger.Logger;
 import com.termux.shared.termux.TermuxConstants;
@@ -31,6 +32,8 @@ public class TermuxAPIApplication extends Application {
         setLogConfig(context, true);
 
         SocketListener.createSocketListener(this);
+
+        GeofenceAPI.restore(context);
     }
 
     public static void setLogConfig(Context context, boolean commitToFile) {
@@ -0,0 +1,188 @@
+package com.termux.api.apis;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.termux.shared.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves phone numbers to contact names with maps that are built by a single scan of all
+ * contact phone numbers, instead of a {@link ContactsContract.PhoneLookup} query per number.
+ *
+ * The maps are shared by all requests and rebuilt on the next lookup after contacts change.
+ * Numbers are matched by their digits. Otherwise the contact numbers that end with the same
+ * {@link #MIN_MATCH} digits are compared with {@link PhoneNumberUtils#compare(String, String)},
+ * so that a number with a country code matches a contact saved without it, like
+ * {@link ContactsContract.PhoneLookup} does, but a number that only shares the last digits does
+ * not.
+ */
+class ContactNameResolver {
+
+    private static final String LOG_TAG = "ContactNameResolver";
+
+    /** The number of trailing digits that numbers are loosely matched by. */
+    private static final int MIN_MATCH = 7;
+
+    private static final String[] PHONE_PROJECTION = {Phone.NUMBER, Phone.NORMALIZED_NUMBER, Phone.DISPLAY_NAME};
+
+    private static ContactNameResolver sInstance;
+
+    private final Context mContext;
+
+    private static class Names {
+        /** The names by the digits of a number. */
+        final Map<String, String> byNumber = new HashMap<>();
+        /** The numbers and their names by the last {@link #MIN_MATCH} digits of the numbers. */
+        final Map<String, List<Candidate>> bySuffix = new HashMap<>();
+    }
+
+    /** A contact number that a number with the same last digits may match. */
+    private static class Candidate {
+        final String number;
+        final String name;
+
+        Candidate(@NonNull String number, @NonNull String name) {
+            this.number = number;
+            this.name = name;
+        }
+    }
+
+    private volatile Names mNames;
+    /** Incremented when contacts change, so that names that were loaded during a change are not kept. */
+    private volatile int mGeneration = 0;
+
+    private ContactNameResolver(@NonNull Context context) {
+        mContext = context;
+        context.getContentResolver().registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    @NonNull
+    static synchronized ContactNameResolver getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNameResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private void invalidate() {
+        mGeneration++;
+        mNames = null;
+    }
+
+    /**
+     * Get the name of the contact with a number.
+     *
+     * @return Returns the name, or {@code null} if no contact has the number.
+     */
+    @Nullable
+    String getName(@Nullable String number) {
+        String digits = getDigits(number);
+        if (digits == null) return null;
+
+        Names names = getNames();
+        String name = names.byNumber.get(digits);
+        if (name != null || digits.length() < MIN_MATCH) return name;
+
+        List<Candidate> candidates = names.bySuffix.get(getSuffix(digits));
+        if (candidates == null) return null;
+        for (Candidate candidate : candidates) {
+            if (PhoneNumberUtils.compare(number, candidate.number)) return candidate.name;
+        }
+        return null;
+    }
+
+    @NonNull
+    private Names getNames() {
+        Names names = mNames;
+        if (names != null) return names;
+
+        synchronized (this) {
+            names = mNames;
+            if (names != null) return names;
+
+            int generation = mGeneration;
+            names = new Names();
+            try (Cursor c = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION, null, null, null)) {
+                if (c != null) {
+                    int numberIndex = c.getColumnIndex(Phone.NUMBER);
+                    int normalizedNumberIndex = c.getColumnIndex(Phone.NORMALIZED_NUMBER);
+                    int nameIndex = c.getColumnIndex(Phone.DISPLAY_NAME);
+                    while (c.moveToNext()) {
+                        String name = c.getString(nameIndex);
+                        if (name == null) continue;
+
+                        add(names, c.getString(numberIndex), name);
+                        if (normalizedNumberIndex >= 0) {
+                            add(names, c.getString(normalizedNumberIndex), name);
+                        }
+                    }
+                }
+            }
+
+            Logger.logDebug(LOG_TAG, "Loaded " + names.byNumber.size() + " contact numbers");
+            // the names are still used for this lookup if contacts changed while loading them
+            if (generation == mGeneration) mNames = names;
+            return names;
+        }
+    }
+
+    private static void add(Names names, @Nullable String number, @NonNull String name) {
+        String digits = getDigits(number);
+        if (digits == null) return;
+        names.byNumber.putIfAbsent(digits, name);
+        if (digits.length() >= MIN_MATCH) {
+            List<Candidate> candidates = names.bySuffix.get(getSuffix(digits));
+            if (candidates == null) {
+                candidates = new ArrayList<>(1);
+                names.bySuffix.put(getSuffix(digits), candidates);
+            }
+            candidates.add(new Candidate(number, name));
+        }
+    }
+
+    @NonNull
+    private static String getSuffix(@NonNull String digits) {
+        return digits.substring(digits.length() - MIN_MATCH);
+    }
+
+    /**
+     * Get the digits of a number, without separators and the '+' of the country code.
+     *
+     * @return Returns the digits, or {@code null} if the number has no digits or is an
+     * alphanumeric address like the name of a service provider.
+     */
+    @Nullable
+    private static String getDigits(@Nullable String number) {
+        if (number == null) return null;
+
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (Character.isLetter(c)) {
+                return null;
+            }
+        }
+        return digits.length() > 0 ? digits.toString() : null;
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.termux.api.apis;
+
+import android.location.Location;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * A circular region and the script that is run when the device enters it, exits it, or stays
+ * inside it for the dwell time.
+ *
+ * The state of the fence is only changed by {@link #evaluate(Location, float[])}, which is called
+ * with the fixes that the {@link GeofenceAPI} monitor receives. A fence is only entered when a
+ * fix is inside the radius by more than its accuracy, and only exited when a fix is outside of it
+ * by more than its accuracy, so that inaccurate fixes near the border do not flap. A fence that
+ * is smaller than the accuracy of the fixes is therefore not entered until a more accurate fix
+ * is received.
+ */
+class Geofence {
+
+    enum Transition {
+        ENTER,
+        EXIT,
+        DWELL;
+
+        @NonNull
+        String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    final String id;
+    final double latitude;
+    final double longitude;
+    /** The radius in meters. */
+    final float radius;
+    final String script;
+    /** The time in milliseconds after entering at which the dwell transition happens, 0 for none. */
+    final long dwellTime;
+
+    // state, persisted with the fence so that a restart does not repeat transitions
+    boolean inside = false;
+    /** The time of the fix that entered the fence in milliseconds since the epoch. */
+    long enteredTime = 0;
+    boolean dwelled = false;
+
+    Geofence(@NonNull String id, double latitude, double longitude, float radius, @NonNull String script, long dwellTime) {
+        this.id = id;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+        this.script = script;
+        this.dwellTime = dwellTime;
+    }
+
+    /**
+     * Update the state of the fence for a fix.
+     *
+     * @param results Array of at least one element that is used for the distance calculation.
+     * @return Returns the transition, or {@code null} if the state did not change.
+     */
+    @Nullable
+    Transition evaluate(@NonNull Location location, @NonNull float[] results) {
+        Location.distanceBetween(latitude, longitude, location.getLatitude(), location.getLongitude(), results);
+        float distance = results[0];
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : 0;
+
+        if (!inside && distance + accuracy <= radius) {
+            inside = true;
+            enteredTime = location.getTime();
+            dwelled = false;
+            return Transition.ENTER;
+        }
+
+        if (inside && distance - accuracy > radius) {
+            inside = false;
+            enteredTime = 0;
+            dwelled = false;
+            return Transition.EXIT;
+        }
+        return null;
+    }
+
+    /**
+     * Get the time in milliseconds until the dwell transition is due, at a time in milliseconds
+     * since the epoch.
+     *
+     * @return Returns the time, or -1 if no dwell transition is pending.
+     */
+    long getDwellDelay(long now) {
+        if (!inside || dwelled || dwellTime <= 0) return -1;
+        return Math.max(0, enteredTime + dwellTime - now);
+    }
+
+    @NonNull
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("latitude", latitude);
+        json.put("longitude", longitude);
+        json.put("radius", radius);
+        json.put("script", script);
+        json.put("dwell", dwellTime);
+        json.put("inside", inside);
+        if (inside) json.put("entered_time", enteredTime);
+        json.put("dwelled", dwelled);
+        return json;
+    }
+
+    @NonNull
+    static Geofence fromJson(@NonNull JSONObject json) throws JSONException {
+        Geofence fence = new Geofence(json.getString("id"), json.getDouble("latitude"), json.getDouble("longitude"),
+                (float) json.getDouble("radius"), json.getString("script"), json.optLong("dwell", 0));
+        fence.inside = json.optBoolean("inside", false);
+        fence.enteredTime = json.optLong("entered_time", 0);
+        fence.dwelled = json.optBoolean("dwelled", false);
+        return fence;
+    }
+
+}
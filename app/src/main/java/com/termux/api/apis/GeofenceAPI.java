@@ -0,0 +1,390 @@
+package com.termux.api.apis;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresPermission;
+
+import com.termux.api.TermuxApiReceiver;
+import com.termux.api.util.ResultReturner;
+import com.termux.shared.android.PermissionUtils;
+import com.termux.shared.logger.Logger;
+import com.termux.shared.shell.command.ExecutionCommand;
+import com.termux.shared.termux.TermuxConstants;
+import com.termux.shared.termux.TermuxConstants.TERMUX_APP.TERMUX_SERVICE;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent circular geofences that run a Termux script when the device enters them, exits
+ * them or dwells inside them.
+ *
+ * Fences are monitored with passive updates, which cost no power, and with low power network
+ * updates at a long interval. Each fix is only evaluated against the fences of its cell in a
+ * {@link GeofenceIndex} and the fences that the device is inside of. Fences and their state are
+ * saved to a file in the app files directory and monitoring is restored when the app starts.
+ *
+ * The script of a fence is run with the transition ("enter", "exit" or "dwell"), the id of the
+ * fence and the latitude and longitude of the latest fix as arguments.
+ */
+public class GeofenceAPI {
+
+    private static final String LOG_TAG = "GeofenceAPI";
+
+    private static final String REQUEST_ADD = "add";
+    private static final String REQUEST_REMOVE = "remove";
+    private static final String REQUEST_LIST = "list";
+    private static final String REQUEST_CLEAR = "clear";
+
+    private static final String FENCES_FILE_NAME = "geofences.json";
+
+    private static final int INDENTATION = 2;
+
+    /** Default radius of a fence in meters. */
+    private static final float DEFAULT_RADIUS = 100.f;
+    /** Minimum time between network updates in milliseconds. */
+    private static final long NETWORK_UPDATE_INTERVAL = 60000;
+    /** Minimum time between passive updates in milliseconds. */
+    private static final long PASSIVE_UPDATE_INTERVAL = 1000;
+    /** Fixes that are less accurate than this in meters are ignored. */
+    private static final float MAX_FIX_ACCURACY = 2000.f;
+
+    // all monitor state is guarded by the class lock
+    private static Context sContext;
+    private static boolean sLoaded = false;
+    private static boolean sMonitoring = false;
+    private static Handler sHandler;
+    private static final Map<String, Geofence> sFences = new LinkedHashMap<>();
+    private static final GeofenceIndex sIndex = new GeofenceIndex();
+    private static final Set<Geofence> sInsideFences = new LinkedHashSet<>();
+    private static final Set<Geofence> sCandidates = new LinkedHashSet<>();
+    private static final float[] sDistance = new float[1];
+    private static Location sLastFix;
+
+    private static final LocationListener sListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            LocationCache.update(location);
+            evaluate(location);
+        }
+
+        @Override
+        public void onStatusChanged(String changedProvider, int status, Bundle extras) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onProviderEnabled(String changedProvider) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onProviderDisabled(String changedProvider) {
+            // Do nothing.
+        }
+    };
+
+    public static void onReceive(TermuxApiReceiver apiReceiver, final Context context, final Intent intent) {
+        Logger.logDebug(LOG_TAG, "onReceive");
+
+        ResultReturner.returnData(apiReceiver, intent, out -> {
+            String request = intent.getStringExtra("request");
+            if (request == null)
+                request = REQUEST_LIST;
+
+            JSONObject result;
+            synchronized (GeofenceAPI.class) {
+                load(context);
+                switch (request) {
+                    case REQUEST_ADD:
+                        //noinspection MissingPermission
+                        result = addFence(intent);
+                        break;
+                    case REQUEST_REMOVE:
+                        String id = intent.getStringExtra("id");
+                        Geofence fence = id == null ? null : sFences.remove(id);
+                        if (fence != null) removeFence(fence);
+                        //noinspection MissingPermission
+                        updateMonitoring();
+                        save();
+                        result = new JSONObject().put("removed", fence != null ? 1 : 0);
+                        break;
+                    case REQUEST_LIST:
+                        JSONArray fences = new JSONArray();
+                        for (Geofence listed : sFences.values()) fences.put(listed.toJson());
+                        result = new JSONObject().put("geofences", fences);
+                        break;
+                    case REQUEST_CLEAR:
+                        int count = sFences.size();
+                        for (Geofence removed : sFences.values()) removeFence(removed);
+                        sFences.clear();
+                        //noinspection MissingPermission
+                        updateMonitoring();
+                        save();
+                        result = new JSONObject().put("removed", count);
+                        break;
+                    default:
+                        result = new JSONObject().put("API_ERROR", "Unsupported request '" + request + "' - only '"
+                                + REQUEST_ADD + "', '" + REQUEST_REMOVE + "', '" + REQUEST_LIST + "' and '"
+                                + REQUEST_CLEAR + "' supported");
+                }
+            }
+            out.println(result.toString(INDENTATION));
+        });
+    }
+
+    /**
+     * Restore monitoring of the saved fences, if there are any and the location permission is
+     * granted. Called when the app starts.
+     */
+    public static void restore(@NonNull Context context) {
+        if (!new File(context.getFilesDir(), FENCES_FILE_NAME).exists()) return;
+        if (!PermissionUtils.checkPermission(context, Manifest.permission.ACCESS_FINE_LOCATION)) {
+            Logger.logError(LOG_TAG, "Not restoring geofences, location permission not granted");
+            return;
+        }
+
+        synchronized (GeofenceAPI.class) {
+            load(context);
+            //noinspection MissingPermission
+            updateMonitoring();
+        }
+    }
+
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    private static JSONObject addFence(Intent intent) throws JSONException {
+        String id = intent.getStringExtra("id");
+        String scriptPath = intent.getStringExtra("script");
+        if (id == null || scriptPath == null || !intent.hasExtra("latitude") || !intent.hasExtra("longitude")) {
+            return new JSONObject().put("API_ERROR", "Missing id, latitude, longitude or script");
+        }
+
+        double latitude = intent.getDoubleExtra("latitude", 0);
+        double longitude = intent.getDoubleExtra("longitude", 0);
+        float radius = intent.getFloatExtra("radius", DEFAULT_RADIUS);
+        int dwellTime = intent.getIntExtra("dwell", 0);
+        if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180 || !(radius > 0) || dwellTime < 0) {
+            return new JSONObject().put("API_ERROR", "Invalid latitude, longitude, radius or dwell time");
+        }
+
+        File file = new File(scriptPath);
+        String fileCheckMsg;
+        if (!file.isFile()) {
+            fileCheckMsg = "No such file: %s";
+        } else if (!file.canRead()) {
+            fileCheckMsg = "Cannot read file: %s";
+        } else if (!file.canExecute()) {
+            fileCheckMsg = "Cannot execute file: %s";
+        } else {
+            fileCheckMsg = "";
+        }
+
+        if (!fileCheckMsg.isEmpty()) {
+            Logger.logErrorPrivate(LOG_TAG, "add: " + String.format(fileCheckMsg, scriptPath));
+            return new JSONObject().put("API_ERROR", String.format(fileCheckMsg, scriptPath));
+        }
+
+        Geofence fence = new Geofence(id, latitude, longitude, radius, file.getAbsolutePath(), dwellTime);
+        Geofence oldFence = sFences.put(id, fence);
+        if (oldFence != null) removeFence(oldFence);
+        sIndex.add(fence);
+        updateMonitoring();
+        save();
+
+        // evaluate the new fence right away if a recent fix is known, instead of waiting for one
+        Location location = LocationCache.getBest(NETWORK_UPDATE_INTERVAL, MAX_FIX_ACCURACY);
+        if (location != null) {
+            sHandler.post(() -> {
+                synchronized (GeofenceAPI.class) {
+                    if (evaluate(location, fence)) save();
+                }
+            });
+        }
+
+        Logger.logInfo(LOG_TAG, "Added geofence " + id);
+        return fence.toJson();
+    }
+
+    private static void removeFence(Geofence fence) {
+        sIndex.remove(fence);
+        sInsideFences.remove(fence);
+        if (sHandler != null) sHandler.removeCallbacksAndMessages(fence);
+    }
+
+    /** Start monitoring if there are fences, or stop it if there are none. */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    private static void updateMonitoring() {
+        LocationManager manager = (LocationManager) sContext.getSystemService(Context.LOCATION_SERVICE);
+        if (!sFences.isEmpty() && !sMonitoring) {
+            if (manager.getProvider(LocationManager.PASSIVE_PROVIDER) != null)
+                manager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, PASSIVE_UPDATE_INTERVAL, 0,
+                        sListener, sHandler.getLooper());
+            if (manager.getProvider(LocationManager.NETWORK_PROVIDER) != null)
+                manager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, NETWORK_UPDATE_INTERVAL, 0,
+                        sListener, sHandler.getLooper());
+            sMonitoring = true;
+            scheduleDwellTransitions();
+            Logger.logInfo(LOG_TAG, "Started monitoring " + sFences.size() + " geofences");
+        } else if (sFences.isEmpty() && sMonitoring) {
+            manager.removeUpdates(sListener);
+            sHandler.removeCallbacksAndMessages(null);
+            sMonitoring = false;
+            sLastFix = null;
+            Logger.logInfo(LOG_TAG, "Stopped monitoring geofences");
+        }
+    }
+
+    /** Evaluate a fix against the fences near it and the fences that the device is inside of. */
+    private static synchronized void evaluate(Location location) {
+        // the passive provider also delivers the network fixes that are requested here
+        if (sLastFix != null && location.getTime() <= sLastFix.getTime()) return;
+        if (location.hasAccuracy() && location.getAccuracy() > MAX_FIX_ACCURACY) return;
+        sLastFix = location;
+
+        sCandidates.clear();
+        sIndex.query(location.getLatitude(), location.getLongitude(), sCandidates);
+        sCandidates.addAll(sInsideFences);
+
+        boolean changed = false;
+        for (Geofence fence : sCandidates) {
+            changed |= evaluate(location, fence);
+        }
+        if (changed) save();
+    }
+
+    private static synchronized boolean evaluate(Location location, Geofence fence) {
+        if (sFences.get(fence.id) != fence) return false;
+
+        Geofence.Transition transition = fence.evaluate(location, sDistance);
+        if (transition == null) return false;
+
+        if (transition == Geofence.Transition.ENTER) {
+            sInsideFences.add(fence);
+            scheduleDwellTransition(fence);
+        } else {
+            sInsideFences.remove(fence);
+            sHandler.removeCallbacksAndMessages(fence);
+        }
+        runScript(fence, transition, location);
+        return true;
+    }
+
+    private static void scheduleDwellTransitions() {
+        for (Geofence fence : sInsideFences) scheduleDwellTransition(fence);
+    }
+
+    private static void scheduleDwellTransition(Geofence fence) {
+        long delay = fence.getDwellDelay(System.currentTimeMillis());
+        if (delay < 0) return;
+
+        sHandler.postAtTime(() -> {
+            synchronized (GeofenceAPI.class) {
+                if (sFences.get(fence.id) != fence || fence.getDwellDelay(System.currentTimeMillis()) < 0) return;
+                fence.dwelled = true;
+                Location location = sLastFix;
+                if (location == null) {
+                    location = new Location(LOG_TAG);
+                    location.setLatitude(fence.latitude);
+                    location.setLongitude(fence.longitude);
+                }
+                runScript(fence, Geofence.Transition.DWELL, location);
+                save();
+            }
+        }, fence, SystemClock.uptimeMillis() + delay);
+    }
+
+    /** Run the script of a fence through the Termux service, like {@link JobSchedulerAPI} does. */
+    private static void runScript(Geofence fence, Geofence.Transition transition, Location location) {
+        Logger.logInfo(LOG_TAG, "Geofence " + fence.id + ": " + transition.getName());
+
+        ExecutionCommand executionCommand = new ExecutionCommand();
+        executionCommand.executableUri = new Uri.Builder().scheme(TERMUX_SERVICE.URI_SCHEME_SERVICE_EXECUTE).path(fence.script).build();
+        executionCommand.arguments = new String[]{transition.getName(), fence.id,
+                String.valueOf(location.getLatitude()), String.valueOf(location.getLongitude())};
+        executionCommand.runner = ExecutionCommand.Runner.APP_SHELL.getName();
+
+        // Create execution intent with the action TERMUX_SERVICE#ACTION_SERVICE_EXECUTE to be sent to the TERMUX_SERVICE
+        Intent executionIntent = new Intent(TERMUX_SERVICE.ACTION_SERVICE_EXECUTE, executionCommand.executableUri);
+        executionIntent.setClassName(TermuxConstants.TERMUX_PACKAGE_NAME, TermuxConstants.TERMUX_APP.TERMUX_SERVICE_NAME);
+        executionIntent.putExtra(TERMUX_SERVICE.EXTRA_ARGUMENTS, executionCommand.arguments);
+        executionIntent.putExtra(TERMUX_SERVICE.EXTRA_RUNNER, executionCommand.runner);
+        executionIntent.putExtra(TERMUX_SERVICE.EXTRA_BACKGROUND, true); // Also pass in case user using termux-app version < 0.119.0
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                // https://developer.android.com/about/versions/oreo/background.html
+                sContext.startForegroundService(executionIntent);
+            } else {
+                sContext.startService(executionIntent);
+            }
+        } catch (Exception e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to run script of geofence " + fence.id, e);
+        }
+    }
+
+    /** Load the saved fences once. */
+    private static void load(Context context) {
+        if (sLoaded) return;
+        sContext = context.getApplicationContext();
+        sHandler = new Handler(LocationAPI.getLocationLooper());
+        sLoaded = true;
+
+        AtomicFile file = new AtomicFile(new File(sContext.getFilesDir(), FENCES_FILE_NAME));
+        try {
+            JSONArray fences = new JSONObject(new String(file.readFully(), StandardCharsets.UTF_8)).getJSONArray("geofences");
+            for (int i = 0; i < fences.length(); i++) {
+                Geofence fence = Geofence.fromJson(fences.getJSONObject(i));
+                sFences.put(fence.id, fence);
+                sIndex.add(fence);
+                if (fence.inside) sInsideFences.add(fence);
+            }
+            Logger.logInfo(LOG_TAG, "Loaded " + sFences.size() + " geofences");
+        } catch (FileNotFoundException e) {
+            // No fences were saved.
+        } catch (IOException | JSONException e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to load geofences", e);
+        }
+    }
+
+    /** Save the fences and their state, replacing the file atomically. */
+    private static void save() {
+        AtomicFile file = new AtomicFile(new File(sContext.getFilesDir(), FENCES_FILE_NAME));
+        FileOutputStream stream = null;
+        try {
+            JSONArray fences = new JSONArray();
+            for (Geofence fence : sFences.values()) fences.put(fence.toJson());
+            byte[] data = new JSONObject().put("geofences", fences).toString().getBytes(StandardCharsets.UTF_8);
+
+            stream = file.startWrite();
+            stream.write(data);
+            file.finishWrite(stream);
+        } catch (IOException | JSONException e) {
+            if (stream != null) file.failWrite(stream);
+            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to save geofences", e);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.termux.api.apis;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grid of latitude and longitude cells, each listing the fences whose bounding box overlaps it,
+ * so that a fix is only evaluated against the fences near it instead of all of them.
+ *
+ * Fences that would cover too many cells, or that cross a pole or the antimeridian, are not put
+ * in the grid and are returned for every fix instead.
+ */
+class GeofenceIndex {
+
+    /** The size of a cell in degrees, about 1.1 km of latitude. */
+    private static final double CELL_SIZE = 0.01;
+    private static final long COLUMNS = Math.round(360 / CELL_SIZE);
+
+    /** The maximum number of cells that a fence is put in. */
+    private static final int MAX_CELLS = 64;
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private final Map<Long, List<Geofence>> mCells = new HashMap<>();
+    private final List<Geofence> mLargeFences = new ArrayList<>();
+
+    void add(@NonNull Geofence fence) {
+        int[] bounds = getBounds(fence);
+        if (bounds == null) {
+            mLargeFences.add(fence);
+            return;
+        }
+        for (int row = bounds[0]; row <= bounds[1]; row++) {
+            for (int column = bounds[2]; column <= bounds[3]; column++) {
+                List<Geofence> fences = mCells.get(getKey(row, column));
+                if (fences == null) {
+                    fences = new ArrayList<>(1);
+                    mCells.put(getKey(row, column), fences);
+                }
+                fences.add(fence);
+            }
+        }
+    }
+
+    void remove(@NonNull Geofence fence) {
+        int[] bounds = getBounds(fence);
+        if (bounds == null) {
+            mLargeFences.remove(fence);
+            return;
+        }
+        for (int row = bounds[0]; row <= bounds[1]; row++) {
+            for (int column = bounds[2]; column <= bounds[3]; column++) {
+                List<Geofence> fences = mCells.get(getKey(row, column));
+                if (fences == null) continue;
+                fences.remove(fence);
+                if (fences.isEmpty()) mCells.remove(getKey(row, column));
+            }
+        }
+    }
+
+    /** Add the fences that a position may be inside of to a collection. */
+    void query(double latitude, double longitude, @NonNull Collection<Geofence> result) {
+        List<Geofence> fences = mCells.get(getKey(getRow(latitude), getColumn(longitude)));
+        if (fences != null) result.addAll(fences);
+        result.addAll(mLargeFences);
+    }
+
+    /**
+     * Get the first and last row and column of the cells that the bounding box of a fence
+     * overlaps.
+     *
+     * @return Returns the bounds, or {@code null} if the fence is not put in the grid.
+     */
+    private static int[] getBounds(Geofence fence) {
+        double latitudeDelta = fence.radius / METERS_PER_DEGREE;
+        double minLatitude = fence.latitude - latitudeDelta;
+        double maxLatitude = fence.latitude + latitudeDelta;
+        if (minLatitude <= -90 || maxLatitude >= 90) return null;
+
+        // a degree of longitude is shortest at the latitude of the box that is nearest to a pole
+        double cosine = Math.cos(Math.toRadians(Math.max(Math.abs(minLatitude), Math.abs(maxLatitude))));
+        double longitudeDelta = latitudeDelta / cosine;
+        double minLongitude = fence.longitude - longitudeDelta;
+        double maxLongitude = fence.longitude + longitudeDelta;
+        if (minLongitude < -180 || maxLongitude >= 180) return null;
+
+        int[] bounds = {getRow(minLatitude), getRow(maxLatitude), getColumn(minLongitude), getColumn(maxLongitude)};
+        long cells = (long) (bounds[1] - bounds[0] + 1) * (bounds[3] - bounds[2] + 1);
+        return cells <= MAX_CELLS ? bounds : null;
+    }
+
+    private static int getRow(double latitude) {
+        return (int) Math.floor((latitude + 90) / CELL_SIZE);
+    }
+
+    private static int getColumn(double longitude) {
+        return (int) Math.floor((longitude + 180) / CELL_SIZE);
+    }
+
+    private static long getKey(int row, int column) {
+        return row * COLUMNS + column;
+    }
+
+}
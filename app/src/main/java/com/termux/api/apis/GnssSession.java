@@ -0,0 +1,264 @@
+package com.termux.api.apis;
+
+import android.Manifest;
+import android.location.GnssClock;
+import android.location.GnssMeasurement;
+import android.location.GnssMeasurementsEvent;
+import android.location.GnssStatus;
+import android.location.Location;
+import android.location.LocationManager;
+import android.location.OnNmeaMessageListener;
+import android.os.Handler;
+import android.util.JsonWriter;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresPermission;
+
+import com.termux.shared.logger.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Location session that also receives GNSS measurements, satellite status and NMEA sentences,
+ * which are queued on the location thread and written in batches, so that epochs at 1-10 Hz do
+ * not each cost a write to the client.
+ *
+ * To keep batches compact, measurements, satellites and sentences are written as arrays of
+ * values instead of objects. The order of the values is written once in a header, see
+ * {@link #writeHeader(JsonWriter)}, and values that a device does not report are null.
+ */
+class GnssSession extends LocationAPI.LocationSession {
+
+    private static final String LOG_TAG = "GnssSession";
+
+    /** The maximum number of measurement events and sentences that are queued each. */
+    static final int MAX_QUEUED_EVENTS = 1000;
+
+    private static final String[] CLOCK_FIELDS = {"time_ns", "full_bias_ns", "bias_ns", "bias_uncertainty_ns",
+            "drift_nsps", "drift_uncertainty_nsps", "leap_second", "hardware_clock_discontinuity_count"};
+    private static final String[] MEASUREMENT_FIELDS = {"svid", "constellation_type", "cn0_dbhz", "time_offset_ns", "state",
+            "received_sv_time_ns", "received_sv_time_uncertainty_ns", "pseudorange_rate_mps",
+            "pseudorange_rate_uncertainty_mps", "accumulated_delta_range_state", "accumulated_delta_range_m",
+            "accumulated_delta_range_uncertainty_m", "carrier_frequency_hz", "multipath_indicator"};
+    private static final String[] SATELLITE_FIELDS = {"svid", "constellation_type", "cn0_dbhz", "elevation_deg",
+            "azimuth_deg", "used_in_fix", "has_almanac", "has_ephemeris"};
+    private static final String[] NMEA_FIELDS = {"timestamp_ms", "message"};
+
+    final boolean measurements;
+    final boolean status;
+    final boolean nmea;
+
+    private final BlockingQueue<GnssMeasurementsEvent> mMeasurementEvents = new LinkedBlockingQueue<>(MAX_QUEUED_EVENTS);
+    private final BlockingQueue<NmeaMessage> mNmeaMessages = new LinkedBlockingQueue<>(MAX_QUEUED_EVENTS);
+    /** Only the latest status is written, as it describes the current satellites. */
+    private final AtomicReference<GnssStatus> mStatus = new AtomicReference<>();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final CountDownLatch mStopped = new CountDownLatch(1);
+
+    private static class NmeaMessage {
+        final long timestamp;
+        final String message;
+
+        NmeaMessage(long timestamp, String message) {
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+
+    private final GnssMeasurementsEvent.Callback mMeasurementsCallback = new GnssMeasurementsEvent.Callback() {
+        @Override
+        public void onGnssMeasurementsReceived(GnssMeasurementsEvent event) {
+            if (!mMeasurementEvents.offer(event)) mDroppedCount.incrementAndGet();
+        }
+
+        @Override
+        public void onStatusChanged(int status) {
+            if (status != STATUS_READY) {
+                Logger.logInfo(LOG_TAG, "GNSS measurements are not available, status: " + status);
+            }
+        }
+    };
+
+    private final GnssStatus.Callback mStatusCallback = new GnssStatus.Callback() {
+        @Override
+        public void onSatelliteStatusChanged(GnssStatus status) {
+            mStatus.set(status);
+        }
+    };
+
+    private final OnNmeaMessageListener mNmeaListener = (message, timestamp) -> {
+        if (!mNmeaMessages.offer(new NmeaMessage(timestamp, message.trim()))) mDroppedCount.incrementAndGet();
+    };
+
+    GnssSession(String name, boolean measurements, boolean status, boolean nmea) {
+        super(name);
+        this.measurements = measurements;
+        this.status = status;
+        this.nmea = nmea;
+    }
+
+    /** Register the callbacks of the session, which are called on the thread of the handler. */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    void register(@NonNull LocationManager manager, @NonNull Handler handler) {
+        if (measurements && !manager.registerGnssMeasurementsCallback(mMeasurementsCallback, handler))
+            Logger.logError(LOG_TAG, "Failed to register GNSS measurements callback");
+        if (status && !manager.registerGnssStatusCallback(mStatusCallback, handler))
+            Logger.logError(LOG_TAG, "Failed to register GNSS status callback");
+        if (nmea && !manager.addNmeaListener(mNmeaListener, handler))
+            Logger.logError(LOG_TAG, "Failed to add NMEA listener");
+    }
+
+    void unregister(@NonNull LocationManager manager) {
+        if (measurements) manager.unregisterGnssMeasurementsCallback(mMeasurementsCallback);
+        if (status) manager.unregisterGnssStatusCallback(mStatusCallback);
+        if (nmea) manager.removeNmeaListener(mNmeaListener);
+    }
+
+    @Override
+    void stop() {
+        super.stop();
+        mStopped.countDown();
+    }
+
+    /**
+     * Wait until the session is stopped or the time has passed.
+     *
+     * @return Returns {@code true} if the session was stopped.
+     */
+    boolean awaitStop(long millis) throws InterruptedException {
+        return mStopped.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Write the order of the values of the arrays of the batches. */
+    static void writeHeader(@NonNull JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("fields").beginObject();
+        writeFields(out, "clock", CLOCK_FIELDS);
+        writeFields(out, "measurement", MEASUREMENT_FIELDS);
+        writeFields(out, "satellite", SATELLITE_FIELDS);
+        writeFields(out, "nmea", NMEA_FIELDS);
+        out.endObject();
+        out.endObject();
+    }
+
+    private static void writeFields(JsonWriter out, String name, String[] fields) throws IOException {
+        out.name(name).beginArray();
+        for (String field : fields) out.value(field);
+        out.endArray();
+    }
+
+    /**
+     * Write what was received since the last batch as an object with the optional keys "fixes",
+     * "epochs" with the clock and measurements of each epoch, "satellites" with the latest
+     * satellite status, "nmea" and "dropped" with the total number of events that were dropped
+     * as the client did not keep up. Nothing is written if nothing was received.
+     *
+     * @return Returns {@code true} if a batch was written.
+     */
+    boolean writeBatch(@NonNull JsonWriter out) throws IOException {
+        List<Location> fixes = new ArrayList<>();
+        for (Location location; (location = this.fixes.poll()) != null; ) {
+            if (location != STOPPED) fixes.add(location);
+        }
+        List<GnssMeasurementsEvent> events = new ArrayList<>();
+        mMeasurementEvents.drainTo(events);
+        List<NmeaMessage> messages = new ArrayList<>();
+        mNmeaMessages.drainTo(messages);
+        GnssStatus gnssStatus = mStatus.getAndSet(null);
+
+        if (fixes.isEmpty() && events.isEmpty() && messages.isEmpty() && gnssStatus == null) return false;
+
+        out.beginObject();
+        if (!fixes.isEmpty()) {
+            out.name("fixes").beginArray();
+            for (Location location : fixes) LocationAPI.locationToJson(location, out);
+            out.endArray();
+        }
+        if (!events.isEmpty()) {
+            out.name("epochs").beginArray();
+            for (GnssMeasurementsEvent event : events) writeEpoch(out, event);
+            out.endArray();
+        }
+        if (gnssStatus != null) {
+            out.name("satellites").beginArray();
+            for (int i = 0; i < gnssStatus.getSatelliteCount(); i++) writeSatellite(out, gnssStatus, i);
+            out.endArray();
+        }
+        if (!messages.isEmpty()) {
+            out.name("nmea").beginArray();
+            for (NmeaMessage message : messages) {
+                out.beginArray().value(message.timestamp).value(message.message).endArray();
+            }
+            out.endArray();
+        }
+        long dropped = mDroppedCount.get();
+        if (dropped > 0) out.name("dropped").value(dropped);
+        out.endObject();
+        return true;
+    }
+
+    private static void writeEpoch(JsonWriter out, GnssMeasurementsEvent event) throws IOException {
+        GnssClock clock = event.getClock();
+        out.beginObject();
+        out.name("clock").beginArray();
+        out.value(clock.getTimeNanos());
+        if (clock.hasFullBiasNanos()) out.value(clock.getFullBiasNanos()); else out.nullValue();
+        writeValue(out, clock.hasBiasNanos(), clock.getBiasNanos());
+        writeValue(out, clock.hasBiasUncertaintyNanos(), clock.getBiasUncertaintyNanos());
+        writeValue(out, clock.hasDriftNanosPerSecond(), clock.getDriftNanosPerSecond());
+        writeValue(out, clock.hasDriftUncertaintyNanosPerSecond(), clock.getDriftUncertaintyNanosPerSecond());
+        if (clock.hasLeapSecond()) out.value(clock.getLeapSecond()); else out.nullValue();
+        out.value(clock.getHardwareClockDiscontinuityCount());
+        out.endArray();
+
+        out.name("measurements").beginArray();
+        for (GnssMeasurement measurement : event.getMeasurements()) {
+            out.beginArray();
+            out.value(measurement.getSvid());
+            out.value(measurement.getConstellationType());
+            writeValue(out, true, measurement.getCn0DbHz());
+            writeValue(out, true, measurement.getTimeOffsetNanos());
+            out.value(measurement.getState());
+            out.value(measurement.getReceivedSvTimeNanos());
+            out.value(measurement.getReceivedSvTimeUncertaintyNanos());
+            writeValue(out, true, measurement.getPseudorangeRateMetersPerSecond());
+            writeValue(out, true, measurement.getPseudorangeRateUncertaintyMetersPerSecond());
+            out.value(measurement.getAccumulatedDeltaRangeState());
+            writeValue(out, true, measurement.getAccumulatedDeltaRangeMeters());
+            writeValue(out, true, measurement.getAccumulatedDeltaRangeUncertaintyMeters());
+            writeValue(out, measurement.hasCarrierFrequencyHz(), measurement.getCarrierFrequencyHz());
+            out.value(measurement.getMultipathIndicator());
+            out.endArray();
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    private static void writeSatellite(JsonWriter out, GnssStatus status, int i) throws IOException {
+        out.beginArray();
+        out.value(status.getSvid(i));
+        out.value(status.getConstellationType(i));
+        writeValue(out, true, status.getCn0DbHz(i));
+        writeValue(out, true, status.getElevationDegrees(i));
+        writeValue(out, true, status.getAzimuthDegrees(i));
+        out.value(status.usedInFix(i));
+        out.value(status.hasAlmanacData(i));
+        out.value(status.hasEphemerisData(i));
+        out.endArray();
+    }
+
+    /** Write a value if it is reported and a number, as JSON has no NaN, otherwise null. */
+    private static void writeValue(JsonWriter out, boolean has, double value) throws IOException {
+        if (has && !Double.isNaN(value) && !Double.isInfinite(value)) out.value(value);
+        else out.nullValue();
+    }
+
+}
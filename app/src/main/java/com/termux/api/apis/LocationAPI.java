@@ -8,6 +8,8 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.util.JsonWriter;
@@ -20,6 +22,14 @@ import com.termux.api.util.ResultReturner.ResultJsonWriter;
 import com.termux.shared.logger.Logger;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class LocationAPI {
 
@@ -28,6 +38,38 @@ public class LocationAPI {
     private static final String REQUEST_LAST_KNOWN = "last";
     private static final String REQUEST_ONCE = "once";
     private static final String REQUEST_UPDATES = "updates";
+    private static final String REQUEST_STOP = "stop";
+    private static final String REQUEST_GNSS = "gnss";
+
+    /**
+     * Provider that uses all enabled providers in parallel and the {@link LocationCache}. This is
+     * not the fused provider of Google Play services.
+     */
+    private static final String PROVIDER_FUSED = "fused";
+
+    /** Default maximum age of a fused fix in milliseconds. */
+    private static final int DEFAULT_FUSED_MAX_AGE = 30000;
+    /** Default time to wait for a fused fix in milliseconds. */
+    private static final int DEFAULT_FUSED_TIMEOUT = 60000;
+
+    /** Default time between batches of a GNSS session in milliseconds. */
+    private static final int DEFAULT_GNSS_BATCH_INTERVAL = 1000;
+
+    /** Default minimum time between updates in milliseconds. */
+    private static final int DEFAULT_UPDATE_INTERVAL = 5000;
+    /** Default minimum distance between updates in meters. */
+    private static final float DEFAULT_UPDATE_DISTANCE = 50.f;
+    /** Default time after which updates stop in seconds, 0 for no limit. */
+    private static final int DEFAULT_UPDATE_DURATION = 30;
+
+    /** The maximum number of fixes that are queued while the client is not reading them. */
+    private static final int MAX_QUEUED_FIXES = 1000;
+
+    /** The update sessions that are running, by name. */
+    private static final Map<String, LocationSession> sSessions = new HashMap<>();
+
+    /** Location callbacks of all requests are received on this thread. */
+    private static HandlerThread sLocationThread;
 
     public static void onReceive(TermuxApiReceiver apiReceiver, final Context context, final Intent intent) {
         Logger.logDebug(LOG_TAG, "onReceive");
@@ -42,108 +84,343 @@ public class LocationAPI {
                 if (provider == null)
                     provider = LocationManager.GPS_PROVIDER;
                 if (!(provider.equals(LocationManager.GPS_PROVIDER) || provider.equals(LocationManager.NETWORK_PROVIDER) || provider
-                        .equals(LocationManager.PASSIVE_PROVIDER))) {
+                        .equals(LocationManager.PASSIVE_PROVIDER) || provider.equals(PROVIDER_FUSED))) {
                     out.beginObject()
                             .name("API_ERROR")
                             .value("Unsupported provider '" + provider + "' - only '" + LocationManager.GPS_PROVIDER + "', '"
-                                    + LocationManager.NETWORK_PROVIDER + "' and '" + LocationManager.PASSIVE_PROVIDER + "' supported").endObject();
+                                    + LocationManager.NETWORK_PROVIDER + "', '" + LocationManager.PASSIVE_PROVIDER + "' and '"
+                                    + PROVIDER_FUSED + "' supported").endObject();
                     return;
                 }
 
                 String request = intent.getStringExtra("request");
                 if (request == null)
                     request = REQUEST_ONCE;
+
+                if (provider.equals(PROVIDER_FUSED)) {
+                    switch (request) {
+                        case REQUEST_LAST_KNOWN:
+                            LocationCache.startPassiveUpdates(manager, getLocationLooper());
+                            locationToJson(LocationCache.getBest(Long.MAX_VALUE, 0), out);
+                            return;
+                        case REQUEST_ONCE:
+                            writeFused(manager, intent, out);
+                            return;
+                        case REQUEST_UPDATES:
+                            out.beginObject().name("API_ERROR").value("Provider '" + PROVIDER_FUSED + "' only supports '"
+                                    + REQUEST_LAST_KNOWN + "' and '" + REQUEST_ONCE + "' requests").endObject();
+                            return;
+                    }
+                }
+
                 switch (request) {
                     case REQUEST_LAST_KNOWN:
                         Location lastKnownLocation = manager.getLastKnownLocation(provider);
                         locationToJson(lastKnownLocation, out);
                         break;
                     case REQUEST_ONCE:
-                        Looper.prepare();
-                        manager.requestSingleUpdate(provider, new LocationListener() {
-
-                            @Override
-                            public void onStatusChanged(String changedProvider, int status, Bundle extras) {
-                                // TODO Auto-generated method stub
-                            }
-
-                            @Override
-                            public void onProviderEnabled(String changedProvider) {
-                                // TODO Auto-generated method stub
-                            }
-
-                            @Override
-                            public void onProviderDisabled(String changedProvider) {
-                                // TODO Auto-generated method stub
-                            }
-
-                            @Override
-                            public void onLocationChanged(Location location) {
-                                try {
-                                    locationToJson(location, out);
-                                } catch (IOException e) {
-                                    Logger.logStackTraceWithMessage(LOG_TAG, "Writing json", e);
-                                } finally {
-                                    Looper.myLooper().quit();
-                                }
-                            }
-                        }, null);
-                        Looper.loop();
+                        long startTime = SystemClock.elapsedRealtime();
+                        LocationSession onceSession = new LocationSession(null);
+                        manager.requestSingleUpdate(provider, onceSession, getLocationLooper());
+                        try {
+                            Location location = onceSession.fixes.take();
+                            locationToJson(location, out, SystemClock.elapsedRealtime() - startTime, false);
+                        } finally {
+                            manager.removeUpdates(onceSession);
+                        }
                         break;
                     case REQUEST_UPDATES:
-                        Looper.prepare();
-                        manager.requestLocationUpdates(provider, 5000, 50.f, new LocationListener() {
-
-                            @Override
-                            public void onStatusChanged(String changedProvider, int status, Bundle extras) {
-                                // Do nothing.
-                            }
-
-                            @Override
-                            public void onProviderEnabled(String changedProvider) {
-                                // Do nothing.
-                            }
-
-                            @Override
-                            public void onProviderDisabled(String changedProvider) {
-                                // Do nothing.
-                            }
-
-                            @Override
-                            public void onLocationChanged(Location location) {
-                                try {
-                                    locationToJson(location, out);
-                                    out.flush();
-                                } catch (IOException e) {
-                                    Logger.logStackTraceWithMessage(LOG_TAG, "Writing json", e);
-                                }
-                            }
-                        }, null);
-                        final Looper looper = Looper.myLooper();
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    Thread.sleep(30 * 1000);
-                                } catch (InterruptedException e) {
-                                    Logger.logStackTraceWithMessage(LOG_TAG, "INTER", e);
-                                }
-                                looper.quit();
-                            }
-                        }.start();
-                        Looper.loop();
+                        writeUpdates(this, manager, provider, intent, out);
+                        break;
+                    case REQUEST_GNSS:
+                        writeGnss(this, manager, intent, out);
+                        break;
+                    case REQUEST_STOP:
+                        int stopped = stopSessions(intent.getStringExtra("session"));
+                        out.beginObject().name("stopped").value(stopped).endObject();
                         break;
                     default:
                         out.beginObject()
                                 .name("API_ERROR")
-                                .value("Unsupported request '" + request + "' - only '" + REQUEST_LAST_KNOWN + "', '" + REQUEST_ONCE + "' and '" + REQUEST_UPDATES
-                                        + "' supported").endObject();
+                                .value("Unsupported request '" + request + "' - only '" + REQUEST_LAST_KNOWN + "', '" + REQUEST_ONCE + "', '" + REQUEST_UPDATES
+                                        + "', '" + REQUEST_GNSS + "' and '" + REQUEST_STOP + "' supported").endObject();
                 }
             }
         });
     }
 
+    static synchronized Looper getLocationLooper() {
+        if (sLocationThread == null) {
+            sLocationThread = new HandlerThread("LocationAPI");
+            sLocationThread.start();
+        }
+        return sLocationThread.getLooper();
+    }
+
+    /**
+     * Write location updates as a JSON array, one element per fix, until the session is stopped,
+     * the client exits, the "duration" extra in seconds has passed or the "count" extra of fixes
+     * was written. Updates are requested with the "interval" extra as minimum time in
+     * milliseconds and the "distance" extra as minimum distance in meters between them.
+     *
+     * The session is named by the "session" extra, so that it can be stopped with the "stop"
+     * request, and replaces a running session with the same name.
+     */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    static void writeUpdates(ResultJsonWriter writer, LocationManager manager, String provider, Intent intent,
+                             JsonWriter out) throws IOException, InterruptedException {
+        int interval = intent.getIntExtra("interval", DEFAULT_UPDATE_INTERVAL);
+        float distance = intent.getFloatExtra("distance", DEFAULT_UPDATE_DISTANCE);
+        int duration = intent.getIntExtra("duration", DEFAULT_UPDATE_DURATION);
+        int count = intent.getIntExtra("count", 0);
+        if (interval < 0 || distance < 0 || duration < 0 || count < 0) {
+            out.beginObject().name("API_ERROR").value("Negative interval, distance, duration or count").endObject();
+            return;
+        }
+
+        String name = intent.getStringExtra("session");
+        if (name == null) name = intent.getStringExtra("socket_output");
+        LocationSession session = new LocationSession(name);
+        startSession(session);
+        Logger.logInfo(LOG_TAG, "Started session " + name + " with interval " + interval + "ms, distance " + distance +
+                "m, duration " + duration + "s, count " + count);
+
+        long deadline = duration > 0 ? SystemClock.elapsedRealtime() + duration * 1000L : Long.MAX_VALUE;
+        int written = 0;
+        out.beginArray();
+        try {
+            manager.requestLocationUpdates(provider, interval, distance, session, getLocationLooper());
+            while (count == 0 || written < count) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) break;
+
+                Location location = session.fixes.poll(remaining, TimeUnit.MILLISECONDS);
+                if (location == null || location == LocationSession.STOPPED) break;
+
+                locationToJson(location, out);
+                out.flush();
+                written++;
+                if (writer.checkError()) {
+                    Logger.logInfo(LOG_TAG, "Client of session " + name + " exited");
+                    break;
+                }
+            }
+        } finally {
+            manager.removeUpdates(session);
+            stopSession(session);
+        }
+        out.endArray();
+        Logger.logInfo(LOG_TAG, "Session " + name + " ended after " + written + " fixes");
+    }
+
+    /**
+     * Write the first fix that is at most "max_age" milliseconds old and, if the "accuracy" extra
+     * is given, accurate to that many meters. A cached fix is used if one meets the criteria,
+     * otherwise the gps and network providers are requested in parallel. After the "timeout"
+     * extra in milliseconds the best fix received so far is written.
+     */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    static void writeFused(LocationManager manager, Intent intent, JsonWriter out) throws IOException, InterruptedException {
+        long startTime = SystemClock.elapsedRealtime();
+        long maxAge = intent.getIntExtra("max_age", DEFAULT_FUSED_MAX_AGE);
+        float maxAccuracy = intent.getFloatExtra("accuracy", 0);
+        long timeout = intent.getIntExtra("timeout", DEFAULT_FUSED_TIMEOUT);
+
+        Looper looper = getLocationLooper();
+        LocationCache.startPassiveUpdates(manager, looper);
+        Location cached = LocationCache.getBest(maxAge, maxAccuracy);
+        if (cached != null) {
+            locationToJson(cached, out, 0, true);
+            return;
+        }
+
+        // fixes of all providers are received in a single queue
+        BlockingQueue<Location> fixes = new LinkedBlockingQueue<>(MAX_QUEUED_FIXES);
+        List<LocationSession> listeners = new ArrayList<>();
+        for (String provider : new String[]{LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER}) {
+            if (manager.getProvider(provider) == null || !manager.isProviderEnabled(provider)) continue;
+            LocationSession listener = new LocationSession(provider, fixes);
+            manager.requestLocationUpdates(provider, 0, 0, listener, looper);
+            listeners.add(listener);
+        }
+        if (listeners.isEmpty()) {
+            out.beginObject().name("API_ERROR").value("No location provider is enabled").endObject();
+            return;
+        }
+
+        Location best = null;
+        long firstFixTime = -1;
+        try {
+            long deadline = startTime + timeout;
+            while (true) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) break;
+
+                Location location = fixes.poll(remaining, TimeUnit.MILLISECONDS);
+                if (location == null) break;
+
+                if (firstFixTime < 0) firstFixTime = SystemClock.elapsedRealtime() - startTime;
+                if (LocationCache.meets(location, maxAge, maxAccuracy)) {
+                    best = location;
+                    break;
+                }
+                if (LocationCache.isBetter(location, best)) best = location;
+            }
+        } finally {
+            for (LocationSession listener : listeners) {
+                manager.removeUpdates(listener);
+            }
+        }
+
+        if (best != null && !LocationCache.meets(best, maxAge, maxAccuracy)) {
+            Logger.logInfo(LOG_TAG, "No fix met the criteria within " + timeout + "ms, writing the best one");
+        }
+        locationToJson(best, out, firstFixTime, false);
+    }
+
+    /**
+     * Write GNSS data as a JSON array of a header and batches, see {@link GnssSession}, until the
+     * session is stopped, the client exits or the "duration" extra in seconds has passed, which
+     * is no limit by default. The "gnss" extra selects the data as a comma separated list of
+     * "measurements", "status" and "nmea", all by default, and the "batch_interval" extra is the
+     * time between batches in milliseconds. Fixes of the gps provider are always included, as
+     * GNSS data is only received while it runs.
+     *
+     * The session is named by the "session" extra, like update sessions.
+     */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    static void writeGnss(ResultJsonWriter writer, LocationManager manager, Intent intent,
+                          JsonWriter out) throws IOException, InterruptedException {
+        String gnss = intent.getStringExtra("gnss");
+        List<String> types = Arrays.asList((gnss != null ? gnss : "measurements,status,nmea").split(","));
+        int batchInterval = Math.max(1, intent.getIntExtra("batch_interval", DEFAULT_GNSS_BATCH_INTERVAL));
+        int duration = intent.getIntExtra("duration", 0);
+
+        String name = intent.getStringExtra("session");
+        if (name == null) name = intent.getStringExtra("socket_output");
+        GnssSession session = new GnssSession(name, types.contains("measurements"), types.contains("status"),
+                types.contains("nmea"));
+        startSession(session);
+        Logger.logInfo(LOG_TAG, "Started GNSS session " + name + " for " + types + " in batches of " + batchInterval + "ms");
+
+        long deadline = duration > 0 ? SystemClock.elapsedRealtime() + duration * 1000L : Long.MAX_VALUE;
+        out.beginArray();
+        GnssSession.writeHeader(out);
+        out.flush();
+        try {
+            Looper looper = getLocationLooper();
+            manager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 0, session, looper);
+            session.register(manager, new Handler(looper));
+
+            while (true) {
+                long wait = Math.min(batchInterval, deadline - SystemClock.elapsedRealtime());
+                boolean stopped = wait <= 0 || session.awaitStop(wait);
+                if (session.writeBatch(out)) {
+                    out.flush();
+                    if (writer.checkError()) {
+                        Logger.logInfo(LOG_TAG, "Client of GNSS session " + name + " exited");
+                        break;
+                    }
+                }
+                if (stopped) break;
+            }
+        } finally {
+            manager.removeUpdates(session);
+            session.unregister(manager);
+            stopSession(session);
+        }
+        out.endArray();
+        Logger.logInfo(LOG_TAG, "GNSS session " + name + " ended");
+    }
+
+    static synchronized void startSession(LocationSession session) {
+        LocationSession oldSession = sSessions.put(session.name, session);
+        if (oldSession != null) oldSession.stop();
+    }
+
+    static synchronized void stopSession(LocationSession session) {
+        if (sSessions.get(session.name) == session) sSessions.remove(session.name);
+        session.stop();
+    }
+
+    /**
+     * Stop the update session with a name, or all of them if the name is null.
+     *
+     * @return the number of sessions that were stopped
+     */
+    static synchronized int stopSessions(String name) {
+        List<LocationSession> sessions = new ArrayList<>();
+        if (name == null) {
+            sessions.addAll(sSessions.values());
+        } else if (sSessions.containsKey(name)) {
+            sessions.add(sSessions.get(name));
+        }
+        for (LocationSession session : sessions) {
+            stopSession(session);
+        }
+        return sessions.size();
+    }
+
+    /**
+     * Queues the fixes that are received on the location thread for the thread that writes the
+     * result, so that a slow client does not block the location thread.
+     */
+    static class LocationSession implements LocationListener {
+        /** Queued to stop the session. */
+        static final Location STOPPED = new Location("stopped");
+
+        final String name;
+        final BlockingQueue<Location> fixes;
+
+        LocationSession(String name) {
+            this(name, new LinkedBlockingQueue<>(MAX_QUEUED_FIXES));
+        }
+
+        LocationSession(String name, BlockingQueue<Location> fixes) {
+            this.name = name;
+            this.fixes = fixes;
+        }
+
+        void stop() {
+            // make room for the stop, as the fixes are not written anymore
+            fixes.clear();
+            fixes.offer(STOPPED);
+        }
+
+        @Override
+        public void onLocationChanged(Location location) {
+            LocationCache.update(location);
+            if (!fixes.offer(location)) {
+                Logger.logError(LOG_TAG, "Dropping fix of session " + name + ", client is not reading");
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String changedProvider, int status, Bundle extras) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onProviderEnabled(String changedProvider) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onProviderDisabled(String changedProvider) {
+            // Do nothing.
+        }
+    }
+
     static void locationToJson(Location lastKnownLocation, JsonWriter out) throws IOException {
+        locationToJson(lastKnownLocation, out, -1, false);
+    }
+
+    /**
+     * @param timeToFirstFix The time in milliseconds until the first fix was received, or -1 to
+     *                       not write it.
+     * @param cached If the location is from the {@link LocationCache}.
+     */
+    static void locationToJson(Location lastKnownLocation, JsonWriter out, long timeToFirstFix, boolean cached) throws IOException {
         if (lastKnownLocation == null) {
             out.beginObject().name("API_ERROR").value("Failed to get location").endObject();
             return;
@@ -161,6 +438,12 @@ public class LocationAPI {
         long elapsedMs = (SystemClock.elapsedRealtimeNanos() - lastKnownLocation.getElapsedRealtimeNanos()) / 1000000;
         out.name("elapsedMs").value(elapsedMs);
         out.name("provider").value(lastKnownLocation.getProvider());
+        if (timeToFirstFix >= 0) {
+            out.name("time_to_first_fix_ms").value(timeToFirstFix);
+        }
+        if (cached) {
+            out.name("cached").value(true);
+        }
         out.endObject();
     }
 }
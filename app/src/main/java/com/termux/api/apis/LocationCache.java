@@ -0,0 +1,127 @@
+package com.termux.api.apis;
+
+import android.Manifest;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+
+import com.termux.shared.logger.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the freshest fix of each location provider, so that requests that accept a fix of
+ * some age and accuracy can be answered without waiting for a provider to start.
+ *
+ * The cache is fed by every fix that {@link LocationAPI} receives and, once started, by the
+ * passive provider, which receives the fixes that other apps request without any power cost.
+ */
+class LocationCache {
+
+    private static final String LOG_TAG = "LocationCache";
+
+    /** Minimum time between passive updates in milliseconds. */
+    private static final long PASSIVE_UPDATE_INTERVAL = 1000;
+
+    private static final Map<String, Location> sLatestFixes = new ConcurrentHashMap<>();
+
+    private static boolean sPassiveListening = false;
+
+    private static final LocationListener sPassiveListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            update(location);
+        }
+
+        @Override
+        public void onStatusChanged(String changedProvider, int status, Bundle extras) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onProviderEnabled(String changedProvider) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onProviderDisabled(String changedProvider) {
+            // Do nothing.
+        }
+    };
+
+    /**
+     * Start feeding the cache with passive updates, seeded with the last known fixes of all
+     * providers. Passive updates keep being received while the app runs.
+     */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    static synchronized void startPassiveUpdates(@NonNull LocationManager manager, @NonNull Looper looper) {
+        if (sPassiveListening) return;
+
+        for (String provider : manager.getProviders(true)) {
+            update(manager.getLastKnownLocation(provider));
+        }
+        if (manager.getProvider(LocationManager.PASSIVE_PROVIDER) != null) {
+            manager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, PASSIVE_UPDATE_INTERVAL, 0, sPassiveListener, looper);
+            sPassiveListening = true;
+            Logger.logInfo(LOG_TAG, "Started passive updates");
+        }
+    }
+
+    /** Keep a fix if it is newer than the cached fix of its provider. */
+    static void update(@Nullable Location location) {
+        if (location == null || location.getProvider() == null) return;
+        // a fix may be received from several listeners, compare and replace atomically
+        sLatestFixes.merge(location.getProvider(), location, (cached, fix) ->
+                fix.getElapsedRealtimeNanos() > cached.getElapsedRealtimeNanos() ? fix : cached);
+    }
+
+    /** Get the age of a fix in milliseconds. */
+    static long getAge(@NonNull Location location) {
+        return (SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos()) / 1000000;
+    }
+
+    /**
+     * Check if a fix meets the criteria of a request.
+     *
+     * @param maxAge The maximum age in milliseconds.
+     * @param maxAccuracy The maximum accuracy radius in meters, or 0 to accept any accuracy.
+     */
+    static boolean meets(@NonNull Location location, long maxAge, float maxAccuracy) {
+        if (getAge(location) > maxAge) return false;
+        return maxAccuracy <= 0 || (location.hasAccuracy() && location.getAccuracy() <= maxAccuracy);
+    }
+
+    /** Check if a fix is more accurate than another one, or as accurate and newer. */
+    static boolean isBetter(@NonNull Location location, @Nullable Location other) {
+        if (other == null) return true;
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE;
+        float otherAccuracy = other.hasAccuracy() ? other.getAccuracy() : Float.MAX_VALUE;
+        if (accuracy != otherAccuracy) return accuracy < otherAccuracy;
+        return location.getElapsedRealtimeNanos() > other.getElapsedRealtimeNanos();
+    }
+
+    /**
+     * Get the best cached fix that meets the criteria of a request, see
+     * {@link #meets(Location, long, float)}.
+     *
+     * @return Returns the fix, or {@code null} if no cached fix meets the criteria.
+     */
+    @Nullable
+    static Location getBest(long maxAge, float maxAccuracy) {
+        Location best = null;
+        for (Location location : sLatestFixes.values()) {
+            if (meets(location, maxAge, maxAccuracy) && isBetter(location, best))
+                best = location;
+        }
+        return best;
+    }
+
+}
@@ -7,22 +7,39 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.net.LocalSocket;
-import android.net.LocalSocketAddress;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+
+import androidx.annotation.NonNull;
 
 import com.termux.api.util.ResultReturner;
+import com.termux.api.util.RotatingFileOutputStream;
 import com.termux.shared.logger.Logger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Collections;
-import java.util.concurrent.Semaphore;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
@@ -52,13 +69,28 @@ public class SensorAPI {
 
         // indentation for JSON output
         protected static final int INDENTATION = 2;
+        protected static final String INDENT = "  ";
 
         protected static SensorManager sensorManager;
-        protected static JSONObject sensorReadout;
-        protected static SensorOutputWriter outputWriter;
 
-        // prevent concurrent modifications w/ sensor readout
-        protected static Semaphore semaphore;
+        // index of the sensors of the device, built once while the service runs
+        protected static SensorCatalog sensorCatalog;
+
+        // sessions of the clients that are listening to sensors, keyed by output socket address
+        protected static final Map<String, SensorSession> sessions = new LinkedHashMap<>();
+
+        // hardware registrations of the sensors, shared by all sessions listening to a sensor
+        protected static final Map<Sensor, SensorRegistration> registrations = new HashMap<>();
+
+        // events of the registered sensors, replaced as a whole when they change
+        protected static volatile Map<Sensor, SensorRingBuffer> sensorBuffers = Collections.emptyMap();
+
+        // conditions of the sessions that are evaluated for every event, replaced as a whole when they change
+        protected static volatile Map<Sensor, SensorTrigger[]> sensorTriggers = Collections.emptyMap();
+
+        // sensor events are received on their own thread, which may be blocked by a stream
+        protected static HandlerThread listenerThread;
+        protected static Handler listenerHandler;
 
         private static final String LOG_TAG = "SensorReaderService";
 
@@ -66,8 +98,6 @@ public class SensorAPI {
             Logger.logDebug(LOG_TAG, "onCreate");
 
             super.onCreate();
-            sensorReadout = new JSONObject();
-            semaphore = new Semaphore(1);
         }
 
         @Override
@@ -88,6 +118,22 @@ public class SensorAPI {
             return Service.START_NOT_STICKY;
         }
 
+        protected static synchronized Handler getListenerHandler() {
+            if (listenerHandler == null) {
+                listenerThread = new HandlerThread("SensorAPI-listener");
+                listenerThread.start();
+                listenerHandler = new Handler(listenerThread.getLooper());
+            }
+            return listenerHandler;
+        }
+
+        protected static synchronized SensorCatalog getSensorCatalog(SensorManager sensorManager) {
+            if (sensorCatalog == null) {
+                sensorCatalog = new SensorCatalog(sensorManager);
+            }
+            return sensorCatalog;
+        }
+
         protected static SensorManager getSensorManager(Context context) {
             if (sensorManager == null) {
                 sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
@@ -101,17 +147,24 @@ public class SensorAPI {
 
             super.onDestroy();
             cleanup();
-        }
 
-        protected static void cleanup() {
-            if (outputWriter != null && outputWriter.isRunning()) {
-                outputWriter.interrupt();
-                outputWriter = null;
+            synchronized (SensorReaderService.class) {
+                if (listenerThread != null) {
+                    listenerThread.quitSafely();
+                    listenerThread = null;
+                    listenerHandler = null;
+                }
             }
+        }
+
+        protected static synchronized void cleanup() {
+            stopAllSessions();
 
             if (sensorManager != null) {
                 sensorManager.unregisterListener(sensorEventListener);
                 sensorManager = null;
+                sensorTriggers = Collections.emptyMap();
+                sensorCatalog = null;
             }
         }
 
@@ -121,27 +174,18 @@ public class SensorAPI {
         }
 
         /**
-         * Sensor event listener for reading sensor value updates and storing them
-         * in the sensorReadout JSON object
+         * Sensor event listener for reading sensor value updates and storing them in the
+         * {@link SensorRingBuffer} of the sensor. This must not allocate, as it is called for
+         * every event.
          */
         protected static SensorEventListener sensorEventListener = new SensorEventListener() {
             @Override
             public void onSensorChanged(SensorEvent sensorEvent) {
-                JSONArray sensorValuesArray = new JSONArray();
-                try {
-                    semaphore.acquire();
-                    for (int j = 0; j < sensorEvent.values.length; ++j) {
-                        sensorValuesArray.put(j, sensorEvent.values[j]);
-                    }
-                    JSONObject sensorInfo = new JSONObject();
-                    sensorInfo.put("values", sensorValuesArray);
-                    sensorReadout.put(sensorEvent.sensor.getName(), sensorInfo);
-                    semaphore.release();
-                } catch (JSONException e) {
-                    Logger.logStackTraceWithMessage(LOG_TAG, "onSensorChanged error", e);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                SensorRingBuffer buffer = sensorBuffers.get(sensorEvent.sensor);
+                if (buffer != null) {
+                    buffer.write(sensorEvent);
                 }
+                evaluateTriggers(sensorEvent.sensor, sensorEvent.values, sensorEvent.timestamp);
             }
 
             // unused
@@ -150,12 +194,46 @@ public class SensorAPI {
             }
         };
 
+        /**
+         * Trigger event listener for one-shot sensors like significant motion, which are
+         * disabled after each event and cannot be registered with a SensorEventListener, so that
+         * the device can sleep until they trigger. Events are received on the main thread.
+         */
+        protected static TriggerEventListener triggerEventListener = new TriggerEventListener() {
+            @Override
+            public void onTrigger(TriggerEvent triggerEvent) {
+                SensorRingBuffer buffer = sensorBuffers.get(triggerEvent.sensor);
+                if (buffer == null) return;
+
+                buffer.write(triggerEvent.values, triggerEvent.values.length, triggerEvent.timestamp,
+                        SensorManager.SENSOR_STATUS_ACCURACY_HIGH);
+                evaluateTriggers(triggerEvent.sensor, triggerEvent.values, triggerEvent.timestamp);
+
+                // request the next event, as long as the sensor is still listened to
+                synchronized (SensorReaderService.class) {
+                    if (sensorManager != null && registrations.containsKey(triggerEvent.sensor)) {
+                        sensorManager.requestTriggerSensor(this, triggerEvent.sensor);
+                    }
+                }
+            }
+        };
+
+        protected static void evaluateTriggers(Sensor sensor, float[] values, long timestamp) {
+            SensorTrigger[] triggers = sensorTriggers.get(sensor);
+            if (triggers == null) return;
+            for (SensorTrigger trigger : triggers) {
+                trigger.evaluate(values, values.length, timestamp);
+            }
+        }
+
         protected static SensorCommandHandler getSensorCommandHandler(final String command) {
             switch (command == null ? "" : command) {
                 case "list":
                     return listHandler;
                 case "cleanup":
                     return cleanupHandler;
+                case "status":
+                    return statusHandler;
                 case "sensors":
                     return sensorHandler;
                 default:
@@ -193,17 +271,10 @@ public class SensorAPI {
          */
         static SensorCommandHandler listHandler = (sensorManager, context, intent) -> {
             SensorCommandResult result = new SensorCommandResult();
-            JSONArray sensorArray = new JSONArray();
-            List<Sensor> sensorList = sensorManager.getSensorList(Sensor.TYPE_ALL);
 
             try {
-                for (int j = 0; j < sensorList.size(); ++j) {
-                    Sensor sensor = sensorList.get(j);
-                    sensorArray.put(sensor.getName());
-                }
-                JSONObject output = new JSONObject();
-                output.put("sensors", sensorArray);
-                result.message = output.toString(INDENTATION);
+                // the "details" extra lists the metadata of each sensor instead of only its name
+                result.message = getSensorCatalog(sensorManager).toJson(intent.getBooleanExtra("details", false), INDENTATION);
             } catch (JSONException e) {
                 Logger.logStackTraceWithMessage(LOG_TAG, "listHandler JSON error", e);
             }
@@ -218,19 +289,110 @@ public class SensorAPI {
             public SensorCommandResult handle(SensorManager sensorManager, Context context, Intent intent) {
                 SensorCommandResult result = new SensorCommandResult();
 
-                if (outputWriter != null) {
-                    outputWriter.interrupt();
-                    outputWriter = null;
-                    sensorManager.unregisterListener(sensorEventListener);
-                    result.message = "Sensor cleanup successful!";
-                    Logger.logInfo(LOG_TAG, "Cleanup()");
-                } else {
-                    result.message = "Sensor cleanup unnecessary";
+                // the "session" extra is the output socket address of a single session to stop
+                String sessionId = intent.getStringExtra("session");
+                synchronized (SensorReaderService.class) {
+                    if (sessionId != null) {
+                        SensorSession session = sessions.get(sessionId);
+                        if (session != null) {
+                            stopSession(session);
+                            result.message = "Sensor cleanup successful!" + getRecordingSummary(session);
+                        } else {
+                            result.message = "No sensor session: " + sessionId;
+                        }
+                    } else if (!sessions.isEmpty()) {
+                        StringBuilder message = new StringBuilder("Sensor cleanup successful!");
+                        for (SensorSession session : sessions.values()) {
+                            message.append(getRecordingSummary(session));
+                        }
+                        stopAllSessions();
+                        result.message = message.toString();
+                        Logger.logInfo(LOG_TAG, "Cleanup()");
+                    } else {
+                        result.message = "Sensor cleanup unnecessary";
+                    }
                 }
                 return result;
             }
         };
 
+        /**
+         * Gets the line reporting what a session recorded, or an empty string if it did not
+         */
+        protected static String getRecordingSummary(SensorSession session) {
+            if (session.recording == null) return "";
+            return "\nRecorded " + session.recording.getBytesWritten() + " bytes in " +
+                    session.recording.getFileCount() + " files to " + session.id;
+        }
+
+        /**
+         * Handler for reporting the registered sensors, with their requested and achieved rates
+         * and hardware FIFO sizes
+         */
+        static SensorCommandHandler statusHandler = (sensorManager, context, intent) -> {
+            SensorCommandResult result = new SensorCommandResult();
+            JSONArray sessionArray = new JSONArray();
+            SensorSample sample = new SensorSample();
+
+            try {
+                synchronized (SensorReaderService.class) {
+                    for (SensorSession session : sessions.values()) {
+                        JSONArray sensorArray = new JSONArray();
+                        for (SensorRingBuffer buffer : session.buffers) {
+                            sensorArray.put(getSensorStatus(buffer, sample));
+                        }
+
+                        JSONObject sessionInfo = new JSONObject();
+                        sessionInfo.put("session", session.id);
+                        sessionInfo.put("sampling_period_us", session.samplingPeriodUs);
+                        sessionInfo.put("max_report_latency_us", session.maxReportLatencyUs);
+                        if (session.recording != null) {
+                            JSONObject recordingInfo = new JSONObject();
+                            recordingInfo.put("file", session.recording.getCurrentFile().getAbsolutePath());
+                            recordingInfo.put("files", session.recording.getFileCount());
+                            recordingInfo.put("bytes_written", session.recording.getBytesWritten());
+                            sessionInfo.put("recording", recordingInfo);
+                        }
+                        sessionInfo.put("sensors", sensorArray);
+                        sessionArray.put(sessionInfo);
+                    }
+                }
+                JSONObject output = new JSONObject();
+                output.put("sessions", sessionArray);
+                result.message = output.toString(INDENTATION);
+            } catch (JSONException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "statusHandler JSON error", e);
+            }
+            return result;
+        };
+
+        /**
+         * Gets the status of a registered sensor, with the sampling period and latency it is
+         * registered with for all sessions
+         */
+        protected static JSONObject getSensorStatus(SensorRingBuffer buffer, SensorSample sample) throws JSONException {
+            Sensor sensor = buffer.getSensor();
+            SensorRegistration registration = registrations.get(sensor);
+
+            JSONObject sensorInfo = new JSONObject();
+            sensorInfo.put("name", sensor.getName());
+            sensorInfo.put("type", sensor.getStringType());
+            if (registration != null) {
+                sensorInfo.put("registered_sampling_period_us", registration.samplingPeriodUs);
+                sensorInfo.put("registered_max_report_latency_us", registration.maxReportLatencyUs);
+                sensorInfo.put("sessions", registration.sessions.size());
+            }
+            sensorInfo.put("fifo_reserved_event_count", sensor.getFifoReservedEventCount());
+            sensorInfo.put("fifo_max_event_count", sensor.getFifoMaxEventCount());
+            sensorInfo.put("events", buffer.getSequence());
+            if (buffer.readLatest(sample) && sample.sequence > 0) {
+                long elapsedNanos = sample.timestamp - buffer.getFirstTimestamp();
+                if (elapsedNanos > 0)
+                    sensorInfo.put("rate_hz", sample.sequence * 1e9 / elapsedNanos);
+            }
+            return sensorInfo;
+        }
+
         /**
          * Handler for managing listening to sensors
          */
@@ -240,19 +402,42 @@ public class SensorAPI {
                 SensorCommandResult result = new SensorCommandResult();
                 result.type = ResultType.CONTINUOUS;
 
-                clearSensorValues();
+                // a recording session is identified by its file instead of its output socket
+                String recordFile = intent.getStringExtra("file");
+                SensorSession session = new SensorSession(recordFile != null ?
+                        new File(recordFile).getAbsolutePath() : intent.getStringExtra("socket_output"));
+                String error = setSamplingRate(session, intent);
+                if (error == null && recordFile != null) {
+                    error = setRecording(session, intent);
+                }
+                if (error != null) {
+                    result.message = error;
+                    result.type = ResultType.SINGLE;
+                    return result;
+                }
 
                 // sensor list user passed to us
                 String[] requestedSensors = getUserRequestedSensors(intent);
                 List<Sensor> sensorsToListenTo = getSensorsToListenTo(sensorManager, requestedSensors, intent);
 
+                if ("trigger".equals(intent.getStringExtra("mode"))) {
+                    error = setTriggers(session, getSensorCatalog(sensorManager), sensorsToListenTo, intent);
+                    if (error != null) {
+                        result.message = error;
+                        result.type = ResultType.SINGLE;
+                        return result;
+                    }
+                }
+
                 if (sensorsToListenTo.isEmpty()) {
                     result.message = "No valid sensors were registered!";
                     result.type = ResultType.SINGLE;
                 } else {
-                    if (outputWriter == null) {
-                        outputWriter = createSensorOutputWriter(intent);
-                        outputWriter.start();
+                    startSession(sensorManager, session, sensorsToListenTo, intent);
+                    if (session.recording != null) {
+                        // nothing is streamed to the client, which may exit
+                        result.message = "Recording sensors to " + session.id;
+                        result.type = ResultType.SINGLE;
                     }
                 }
                 return result;
@@ -264,7 +449,8 @@ public class SensorAPI {
          */
         protected static String[] getUserRequestedSensors(Intent intent) {
             // sensor values passed to us from user
-            String sensorListString = intent.hasExtra("sensors") ? intent.getStringExtra("sensors") : "";
+            String sensorListString = intent.getStringExtra("sensors");
+            if (sensorListString == null || sensorListString.isEmpty()) return new String[0];
             return sensorListString.split(",");
         }
 
@@ -272,67 +458,320 @@ public class SensorAPI {
          * Gets a list of all sensors to listen to, that were requested and are available
          */
         protected static List<Sensor> getSensorsToListenTo(SensorManager sensorManager, String[] requestedSensors, Intent intent) {
-            List<Sensor> availableSensors = new ArrayList<>(sensorManager.getSensorList(Sensor.TYPE_ALL));
-            Collections.sort(availableSensors, (s1, s2) -> s1.getName().compareTo(s2.getName()));
+            SensorCatalog catalog = getSensorCatalog(sensorManager);
             List<Sensor> sensorsToListenTo = new ArrayList<>();
 
             boolean listenToAll = intent.getBooleanExtra("all", false);
 
             if (listenToAll) {
-                for (Sensor sensor : availableSensors) {
-                    sensorManager.registerListener(sensorEventListener, sensor, SensorManager.SENSOR_DELAY_UI);
-                }
-                sensorsToListenTo = availableSensors;
+                sensorsToListenTo.addAll(catalog.getSensors());
                 Logger.logInfo(LOG_TAG, "Listening to ALL sensors");
             } else {
 
                 // try to find matching sensors that were sent in request
                 for (String requestedSensor : requestedSensors) {
-                    // ignore case
-                    requestedSensor = requestedSensor.toUpperCase();
+                    Sensor sensor = catalog.find(requestedSensor);
+                    if (sensor != null && !sensorsToListenTo.contains(sensor)) {
+                        sensorsToListenTo.add(sensor);
+                    }
+                }
+            }
+            return sensorsToListenTo;
+        }
 
-                    Sensor shortestMatchSensor = null;
-                    int shortestMatchSensorLength = Integer.MAX_VALUE;
+        /**
+         * Sets the sampling period and maximum report latency of a session from the
+         * "sampling_period_us" and "max_report_latency_us" extras. A maximum report latency lets
+         * the sensor hub batch events in its FIFO while the CPU sleeps.
+         *
+         * @return the error message if an extra is invalid, otherwise null
+         */
+        protected static String setSamplingRate(SensorSession session, Intent intent) {
+            int period = intent.getIntExtra("sampling_period_us", SensorManager.SENSOR_DELAY_UI);
+            int latency = intent.getIntExtra("max_report_latency_us", 0);
+            if (period < 0) return "Invalid sampling_period_us: " + period;
+            if (latency < 0) return "Invalid max_report_latency_us: " + latency;
+
+            session.samplingPeriodUs = getSamplingPeriodUs(period);
+            session.maxReportLatencyUs = latency;
+            Logger.logInfo(LOG_TAG, "Sampling period set to: " + session.samplingPeriodUs + "us, max report latency: " + latency + "us");
+            return null;
+        }
 
-                    for (Sensor availableSensor : availableSensors) {
-                        String sensorName = availableSensor.getName().toUpperCase();
-                        if (sensorName.contains(requestedSensor) && sensorName.length() < shortestMatchSensorLength) {
-                            shortestMatchSensor = availableSensor;
-                            shortestMatchSensorLength = sensorName.length();
-                        }
+        /**
+         * Sets a session to record to the file of the "file" extra instead of writing to its
+         * output socket, so that recording continues when the client exits. The "rotate_size"
+         * extra in bytes and "rotate_interval" extra in seconds start a new file when exceeded,
+         * and the "compress" extra compresses the files with gzip.
+         *
+         * @return the error message if an extra is invalid, otherwise null
+         */
+        protected static String setRecording(SensorSession session, Intent intent) {
+            File file = new File(session.id);
+            File directory = file.getParentFile();
+            if (directory == null || !directory.isDirectory() || !directory.canWrite()) {
+                return "Cannot write to directory of file: " + session.id;
+            }
+
+            long rotateSize = intent.getLongExtra("rotate_size", 0);
+            long rotateInterval = intent.getLongExtra("rotate_interval", 0);
+            if (rotateSize < 0) return "Invalid rotate_size: " + rotateSize;
+            if (rotateInterval < 0) return "Invalid rotate_interval: " + rotateInterval;
+            boolean compress = intent.getBooleanExtra("compress", false);
+
+            session.recording = new RotatingFileOutputStream(file, rotateSize, rotateInterval * 1000, compress);
+            Logger.logInfo(LOG_TAG, "Recording to " + session.id + ", rotating at " + rotateSize + " bytes or " +
+                    rotateInterval + "s, compress: " + compress);
+            return null;
+        }
+
+        /**
+         * Sets the conditions of a trigger session from the "conditions" extra, a list of
+         * conditions separated by ';' as described in {@link SensorTrigger}, and adds the sensors
+         * they are on to the sensors to listen to. One-shot sensors without a condition, like
+         * significant motion, report every event.
+         *
+         * @return the error message if a condition is invalid or there are none, otherwise null
+         */
+        protected static String setTriggers(SensorSession session, SensorCatalog catalog,
+                                            List<Sensor> sensorsToListenTo, Intent intent) {
+            String conditions = intent.getStringExtra("conditions");
+            if (conditions != null) {
+                for (String condition : conditions.split(";")) {
+                    if (condition.trim().isEmpty()) continue;
+                    try {
+                        session.triggers.add(SensorTrigger.parse(condition, catalog));
+                    } catch (IllegalArgumentException e) {
+                        return e.getMessage();
                     }
+                }
+            }
+
+            for (SensorTrigger trigger : session.triggers) {
+                if (!sensorsToListenTo.contains(trigger.sensor)) {
+                    sensorsToListenTo.add(trigger.sensor);
+                }
+            }
+            for (Sensor sensor : sensorsToListenTo) {
+                if (sensor.getReportingMode() == Sensor.REPORTING_MODE_ONE_SHOT && !hasTrigger(session, sensor)) {
+                    session.triggers.add(SensorTrigger.forEvents(sensor));
+                }
+            }
+
+            if (session.triggers.isEmpty()) return "No conditions were given!";
+            Logger.logInfo(LOG_TAG, "Triggering on " + session.triggers.size() + " conditions");
+            return null;
+        }
+
+        protected static boolean hasTrigger(SensorSession session, Sensor sensor) {
+            for (SensorTrigger trigger : session.triggers) {
+                if (trigger.sensor == sensor) return true;
+            }
+            return false;
+        }
 
-                    if (shortestMatchSensor != null) {
-                        sensorManager.registerListener(sensorEventListener, shortestMatchSensor, SensorManager.SENSOR_DELAY_UI);
-                        sensorsToListenTo.add(shortestMatchSensor);
+        /**
+         * Converts the SensorManager.SENSOR_DELAY_* constants to microseconds, so that periods
+         * of sessions can be compared
+         */
+        protected static int getSamplingPeriodUs(int period) {
+            switch (period) {
+                case SensorManager.SENSOR_DELAY_FASTEST: return 0;
+                case SensorManager.SENSOR_DELAY_GAME: return 20000;
+                case SensorManager.SENSOR_DELAY_UI: return 66667;
+                case SensorManager.SENSOR_DELAY_NORMAL: return 200000;
+                default: return period;
+            }
+        }
+
+        /**
+         * Starts a session that listens to sensors and writes them to its output socket,
+         * replacing a session with the same output socket
+         */
+        protected static synchronized void startSession(SensorManager sensorManager, SensorSession session,
+                                                        List<Sensor> sensors, Intent intent) {
+            SensorSession oldSession = sessions.get(session.id);
+            if (oldSession != null) {
+                stopSession(oldSession);
+            }
+
+            session.writer = createSensorOutputWriter(session, intent);
+            sessions.put(session.id, session);
+            // conditions must be evaluated before registering, so that the initial state is reported
+            updateSensorTriggers();
+            for (Sensor sensor : sensors) {
+                session.buffers.add(acquireSensor(sensorManager, session, sensor));
+            }
+            Logger.logInfo(LOG_TAG, "Started session " + session.id + " with " + sensors.size() + " sensors");
+            session.writer.start();
+        }
+
+        /**
+         * Stops a session and unregisters the sensors that no other session listens to
+         */
+        protected static synchronized void stopSession(SensorSession session) {
+            if (sessions.get(session.id) == session) {
+                sessions.remove(session.id);
+            }
+            // the writer may not have started running yet, it then stops as soon as it does
+            if (session.writer != null) {
+                session.writer.interrupt();
+            }
+            for (SensorRingBuffer buffer : session.buffers) {
+                releaseSensor(session, buffer.getSensor());
+            }
+            session.buffers.clear();
+            updateSensorTriggers();
+            Logger.logInfo(LOG_TAG, "Stopped session " + session.id);
+        }
+
+        protected static synchronized void stopAllSessions() {
+            for (SensorSession session : new ArrayList<>(sessions.values())) {
+                stopSession(session);
+            }
+        }
+
+        /**
+         * Adds a session to the registration of a sensor, registering it if it is the first
+         *
+         * @return the buffer that the events of the sensor are written to
+         */
+        protected static synchronized SensorRingBuffer acquireSensor(SensorManager sensorManager, SensorSession session, Sensor sensor) {
+            SensorRegistration registration = registrations.get(sensor);
+            if (registration == null) {
+                registration = new SensorRegistration(sensor);
+                registrations.put(sensor, registration);
+                // the buffer must exist before registering, so that the first events are kept
+                updateSensorBuffers();
+            }
+            registration.sessions.add(session);
+            updateRegistration(sensorManager, registration);
+            return registration.buffer;
+        }
+
+        /**
+         * Removes a session from the registration of a sensor, unregistering it if it was the last
+         */
+        protected static synchronized void releaseSensor(SensorSession session, Sensor sensor) {
+            SensorRegistration registration = registrations.get(sensor);
+            if (registration == null || !registration.sessions.remove(session)) return;
+
+            if (registration.sessions.isEmpty()) {
+                if (sensorManager != null) {
+                    if (isOneShot(sensor)) {
+                        sensorManager.cancelTriggerSensor(triggerEventListener, sensor);
+                    } else {
+                        sensorManager.unregisterListener(sensorEventListener, sensor);
                     }
                 }
+                registrations.remove(sensor);
+                updateSensorBuffers();
+            } else if (sensorManager != null) {
+                updateRegistration(sensorManager, registration);
+            }
+        }
+
+        /**
+         * Registers a sensor with the shortest sampling period and report latency that its
+         * sessions requested, registering it again if that changed
+         */
+        protected static void updateRegistration(SensorManager sensorManager, SensorRegistration registration) {
+            Sensor sensor = registration.sensor;
+            if (isOneShot(sensor)) {
+                // one-shot sensors have no rate, they are only requested once
+                if (registration.samplingPeriodUs == SensorRegistration.UNREGISTERED) {
+                    registration.samplingPeriodUs = 0;
+                    registration.maxReportLatencyUs = 0;
+                    if (!sensorManager.requestTriggerSensor(triggerEventListener, sensor)) {
+                        Logger.logError(LOG_TAG, "Failed to request trigger sensor: " + sensor.getName());
+                    }
+                }
+                return;
+            }
+
+            int period = Integer.MAX_VALUE;
+            int latency = Integer.MAX_VALUE;
+            for (SensorSession session : registration.sessions) {
+                period = Math.min(period, session.samplingPeriodUs);
+                latency = Math.min(latency, session.maxReportLatencyUs);
+            }
+            if (period == registration.samplingPeriodUs && latency == registration.maxReportLatencyUs) return;
+
+            if (registration.samplingPeriodUs != SensorRegistration.UNREGISTERED) {
+                sensorManager.unregisterListener(sensorEventListener, sensor);
+            }
+            registration.samplingPeriodUs = period;
+            registration.maxReportLatencyUs = latency;
+
+            if (!sensorManager.registerListener(sensorEventListener, sensor, period, latency, getListenerHandler())) {
+                Logger.logError(LOG_TAG, "Failed to register sensor: " + sensor.getName());
+            } else if (latency > 0 && sensor.getFifoMaxEventCount() == 0) {
+                Logger.logInfo(LOG_TAG, sensor.getName() + " has no FIFO, events are not batched");
             }
-            return sensorsToListenTo;
+        }
+
+        protected static boolean isOneShot(Sensor sensor) {
+            return sensor.getReportingMode() == Sensor.REPORTING_MODE_ONE_SHOT;
         }
 
         /**
-         * Clears out sensorEventListener as well as our sensorReadout JSON object
+         * Publishes the conditions of the sessions to the listener
          */
-        protected static void clearSensorValues() {
-            // prevent duplicate listeners
-            sensorManager.unregisterListener(sensorEventListener);
+        protected static synchronized void updateSensorTriggers() {
+            Map<Sensor, List<SensorTrigger>> triggersBySensor = new HashMap<>();
+            for (SensorSession session : sessions.values()) {
+                for (SensorTrigger trigger : session.triggers) {
+                    List<SensorTrigger> triggers = triggersBySensor.get(trigger.sensor);
+                    if (triggers == null) {
+                        triggers = new ArrayList<>();
+                        triggersBySensor.put(trigger.sensor, triggers);
+                    }
+                    triggers.add(trigger);
+                }
+            }
 
-            // clear out old values
-            sensorReadout = new JSONObject();
+            Map<Sensor, SensorTrigger[]> triggers = new HashMap<>();
+            for (Map.Entry<Sensor, List<SensorTrigger>> entry : triggersBySensor.entrySet()) {
+                triggers.put(entry.getKey(), entry.getValue().toArray(new SensorTrigger[0]));
+            }
+            sensorTriggers = Collections.unmodifiableMap(triggers);
+        }
+
+        /**
+         * Publishes the buffers of the registered sensors to the listener
+         */
+        protected static void updateSensorBuffers() {
+            Map<Sensor, SensorRingBuffer> buffers = new HashMap<>();
+            for (SensorRegistration registration : registrations.values()) {
+                buffers.put(registration.sensor, registration.buffer);
+            }
+            sensorBuffers = Collections.unmodifiableMap(buffers);
         }
 
 
         /**
-         * Creates SensorOutputWriter to write sensor values to stdout
+         * Gets the back pressure mode of a stream from the "backpressure" extra, which is one of
+         * "drop-oldest" (the default), "block" or "coalesce"
          */
-        protected static SensorOutputWriter createSensorOutputWriter(Intent intent) {
-            String socketAddress = intent.getStringExtra("socket_output");
+        protected static SensorStreamReader.BackPressure getBackPressure(Intent intent) {
+            String backPressure = intent.getStringExtra("backpressure");
+            if (backPressure == null) return SensorStreamReader.BackPressure.DROP_OLDEST;
+            try {
+                return SensorStreamReader.BackPressure.valueOf(backPressure.toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                Logger.logError(LOG_TAG, "Unknown backpressure \"" + backPressure + "\", using drop-oldest");
+                return SensorStreamReader.BackPressure.DROP_OLDEST;
+            }
+        }
 
-            outputWriter = new SensorOutputWriter(socketAddress);
+        /**
+         * Creates SensorOutputWriter to write sensor values to stdout
+         */
+        protected static SensorOutputWriter createSensorOutputWriter(SensorSession session, Intent intent) {
+            SensorOutputWriter outputWriter = new SensorOutputWriter(session);
             outputWriter.setOnErrorListener(e -> {
-                outputWriter = null;
                 Logger.logStackTraceWithMessage(LOG_TAG, "SensorOutputWriter error", e);
+                stopSession(session);
             });
 
             int delay = intent.getIntExtra("delay", SensorOutputWriter.DEFAULT_DELAY);
@@ -343,6 +782,33 @@ public class SensorAPI {
             Logger.logInfo(LOG_TAG, "SensorOutput limit set to: " + limit);
             outputWriter.setLimit(limit);
 
+            String mode = intent.getStringExtra("mode");
+            if ("stream".equals(mode)) {
+                int batchSize = intent.getIntExtra("batch_size", SensorOutputWriter.DEFAULT_BATCH_SIZE);
+                int batchInterval = intent.getIntExtra("batch_interval", SensorOutputWriter.DEFAULT_BATCH_INTERVAL);
+                SensorStreamReader.BackPressure backPressure = getBackPressure(intent);
+                Logger.logInfo(LOG_TAG, "Streaming in batches of " + batchSize + " events or " + batchInterval +
+                        "ms with " + backPressure + " back pressure");
+                outputWriter.setStreaming(batchSize, batchInterval, backPressure);
+            } else if ("trigger".equals(mode)) {
+                Logger.logInfo(LOG_TAG, "Writing transitions of conditions");
+                outputWriter.setTriggered(true);
+            } else if ("aggregate".equals(mode)) {
+                int window = intent.getIntExtra("window", SensorOutputWriter.DEFAULT_WINDOW);
+                SensorStreamReader.BackPressure backPressure = getBackPressure(intent);
+                Logger.logInfo(LOG_TAG, "Aggregating events in windows of " + window + "ms with " +
+                        backPressure + " back pressure");
+                outputWriter.setAggregating(window, backPressure);
+            }
+
+            String format = intent.getStringExtra("format");
+            if ("binary".equals(format)) {
+                Logger.logInfo(LOG_TAG, "Writing binary frames");
+                outputWriter.setBinary(true);
+            } else if (format != null && !"json".equals(format)) {
+                Logger.logError(LOG_TAG, "Unknown format \"" + format + "\", using json");
+            }
+
             return outputWriter;
         }
 
@@ -356,25 +822,58 @@ public class SensorAPI {
 
             static final int DEFAULT_LIMIT = Integer.MAX_VALUE;
 
+            // maximum number of events per frame when streaming
+            static final int DEFAULT_BATCH_SIZE = 64;
+
+            // maximum time in milliseconds that events are held back when streaming
+            static final int DEFAULT_BATCH_INTERVAL = 100;
+
+            // length in milliseconds of the windows that events are aggregated over
+            static final int DEFAULT_WINDOW = 1000;
+
+            // maximum time that a trigger session sleeps before checking if it was stopped
+            static final long TRIGGER_WAIT_NANOS = 1_000_000_000L;
+
+            protected SensorSession session;
             protected String outputSocketAddress;
-            protected boolean isRunning;
+            protected volatile boolean isRunning;
+            // set when the session is stopped, which may happen before the thread runs
+            protected volatile boolean stopped;
             protected int delay;
             protected int counter;
             protected int limit;
             protected SocketWriterErrorListener errorListener;
 
+            // stream every event instead of the latest values every delay
+            protected boolean streaming;
+            protected int batchSize = DEFAULT_BATCH_SIZE;
+            protected int batchInterval = DEFAULT_BATCH_INTERVAL;
+            protected SensorStreamReader.BackPressure backPressure = SensorStreamReader.BackPressure.DROP_OLDEST;
+
+            // write statistics of every window instead of the latest values every delay
+            protected boolean aggregating;
+            protected int window = DEFAULT_WINDOW;
+
+            // write the transitions of the conditions of the session instead of the latest values
+            protected boolean triggered;
 
-            public SensorOutputWriter(String outputSocketAddress, int delay) {
-                this.outputSocketAddress = outputSocketAddress;
+            // write binary frames instead of JSON
+            protected boolean binary;
+
+
+            public SensorOutputWriter(SensorSession session, int delay) {
+                super("SensorOutputWriter");
+                this.session = session;
+                this.outputSocketAddress = session.id;
                 this.delay = delay;
             }
 
-            public SensorOutputWriter(String outputSocketAddress) {
-                this(outputSocketAddress, DEFAULT_DELAY);
+            public SensorOutputWriter(SensorSession session) {
+                this(session, DEFAULT_DELAY);
             }
 
             public boolean isRunning() {
-                return isRunning;
+                return isRunning && !stopped;
             }
 
             public void setOnErrorListener(SocketWriterErrorListener errorListener) {
@@ -389,36 +888,80 @@ public class SensorAPI {
                 this.limit = limit;
             }
 
+            /**
+             * Stream every event instead of the latest values, in frames of up to batchSize
+             * events that are written at least every batchInterval milliseconds. The limit is
+             * then the number of events instead of readings.
+             */
+            public void setStreaming(int batchSize, int batchInterval, SensorStreamReader.BackPressure backPressure) {
+                this.streaming = true;
+                this.batchSize = Math.max(1, batchSize);
+                this.batchInterval = Math.max(1, batchInterval);
+                this.backPressure = backPressure;
+            }
+
+            /**
+             * Write the minimum, maximum, mean and root mean square of each axis of the events of
+             * every window of the given milliseconds, see {@link SensorAggregator}, instead of the
+             * latest values. The limit is then the number of windows.
+             */
+            public void setAggregating(int window, SensorStreamReader.BackPressure backPressure) {
+                this.aggregating = true;
+                this.window = Math.max(1, window);
+                this.backPressure = backPressure;
+            }
+
+            /**
+             * Write when the conditions of the session start or stop being met, see
+             * {@link SensorTrigger}, instead of the latest values. The limit is then the number
+             * of transitions.
+             */
+            public void setTriggered(boolean triggered) {
+                this.triggered = triggered;
+            }
+
+            /**
+             * Write binary frames, see {@link SensorBinaryFrameWriter}, instead of JSON
+             */
+            public void setBinary(boolean binary) {
+                this.binary = binary;
+            }
+
             @Override
             public void run() {
+                if (stopped) {
+                    Logger.logInfo(LOG_TAG, "SensorOutputWriter stopped before it started");
+                    if (session.recording != null) {
+                        try {
+                            session.recording.close();
+                        } catch (IOException e) {
+                            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close recording", e);
+                        }
+                    }
+                    return;
+                }
                 isRunning = true;
                 counter = 0;
 
                 try {
-                    try (LocalSocket outputSocket = new LocalSocket()) {
-                        outputSocket.connect(ResultReturner.getApiLocalSocketAddress(
-                                ResultReturner.context, "output", this.outputSocketAddress));
-
-                        try (PrintWriter writer = new PrintWriter(outputSocket.getOutputStream())) {
-
-                            while (isRunning) {
-                                try {
-                                    Thread.sleep(this.delay);
-                                } catch (InterruptedException e) {
-                                    Logger.logInfo(LOG_TAG, "SensorOutputWriter interrupted: " + e.getMessage());
-                                }
-                                semaphore.acquire();
-                                writer.write(sensorReadout.toString(INDENTATION) + "\n");
-                                writer.flush();
-                                semaphore.release();
-
-                                if (++counter >= limit) {
-                                    Logger.logInfo(LOG_TAG, "SensorOutput limit reached! Performing cleanup");
-                                    cleanup();
-                                }
+                    // a recording session writes to its file instead of the output socket
+                    try (OutputStream outputStream = session.recording != null ? session.recording :
+                            ResultReturner.connectOutput(this.outputSocketAddress)) {
+                        if (binary) {
+                            SensorBinaryFrameWriter frameWriter = new SensorBinaryFrameWriter(outputStream, session.buffers);
+                            if (session.recording != null) {
+                                // every file starts with a header, so that it can be read on its own
+                                session.recording.setRotationListener(file -> frameWriter.writeHeader());
+                            }
+                            frameWriter.writeHeader();
+                            frameWriter.flush();
+                            write(frameWriter);
+                        } else {
+                            try (PrintWriter writer = new PrintWriter(outputStream)) {
+                                write(new JsonFrameWriter(writer));
                             }
-                            Logger.logInfo(LOG_TAG, "SensorOutputWriter finished");
                         }
+                        Logger.logInfo(LOG_TAG, "SensorOutputWriter finished");
                     }
                 } catch (Exception e) {
                     Logger.logStackTraceWithMessage(LOG_TAG, "SensorOutputWriter error", e);
@@ -429,12 +972,414 @@ public class SensorAPI {
                 }
             }
 
+            /**
+             * Writes the latest values of the sensors every delay, until stopped or the limit of
+             * readings is reached
+             */
+            protected void write(SensorFrameWriter frameWriter) throws IOException {
+                if (streaming) {
+                    writeStream(frameWriter);
+                    return;
+                }
+                if (aggregating) {
+                    writeAggregates(frameWriter);
+                    return;
+                }
+                if (triggered) {
+                    writeTransitions(frameWriter);
+                    return;
+                }
+
+                SensorSample sample = new SensorSample();
+
+                while (!stopped) {
+                    try {
+                        Thread.sleep(this.delay);
+                    } catch (InterruptedException e) {
+                        Logger.logInfo(LOG_TAG, "SensorOutputWriter interrupted: " + e.getMessage());
+                    }
+                    frameWriter.writeLatest(session.buffers, sample);
+                    frameWriter.flush();
+
+                    if (++counter >= limit) {
+                        Logger.logInfo(LOG_TAG, "SensorOutput limit reached! Performing cleanup");
+                        stopSession(session);
+                    }
+                }
+            }
+
+            /**
+             * Writes every event of the sensors as a stream of frames, until stopped or the
+             * limit of events is reached
+             */
+            protected void writeStream(SensorFrameWriter frameWriter) throws IOException {
+                SensorStreamReader reader = new SensorStreamReader(session.buffers, backPressure);
+                // poll often enough to notice full batches, without waking up for every event
+                long pollInterval = Math.max(1, Math.min(50, batchInterval / 4));
+                long batchStartTime = SystemClock.elapsedRealtime();
+
+                try {
+                    while (!stopped) {
+                        try {
+                            Thread.sleep(pollInterval);
+                        } catch (InterruptedException e) {
+                            Logger.logInfo(LOG_TAG, "SensorOutputWriter interrupted: " + e.getMessage());
+                        }
+
+                        long now = SystemClock.elapsedRealtime();
+                        if (reader.getPendingCount() < batchSize && now - batchStartTime < batchInterval)
+                            continue;
+                        batchStartTime = now;
+
+                        int read;
+                        do {
+                            read = reader.read(Math.min(batchSize, limit - counter), frameWriter);
+                            frameWriter.finish(reader.getDroppedCount());
+                            counter += read;
+                        } while (read == batchSize && counter < limit);
+                        frameWriter.flush();
+
+                        if (counter >= limit) {
+                            Logger.logInfo(LOG_TAG, "SensorOutput limit reached! Performing cleanup");
+                            stopSession(session);
+                        }
+                    }
+                } finally {
+                    Logger.logInfo(LOG_TAG, "Stream ended with " + reader.getDroppedCount() + " dropped events");
+                    reader.close();
+                }
+            }
+
+            /**
+             * Writes the statistics of the events of every window, until stopped or the limit of
+             * windows is reached. Windows are consecutive ranges of event timestamps. As events
+             * are read in timestamp order, a window is written once an event after it is read, or
+             * once the events of a sensor that batches them could not be in it anymore.
+             */
+            protected void writeAggregates(SensorFrameWriter frameWriter) throws IOException {
+                SensorStreamReader reader = new SensorStreamReader(session.buffers, backPressure);
+                SensorAggregator aggregator = new SensorAggregator(session.buffers);
+                // read often enough that the ring buffers do not overflow at high rates
+                long pollInterval = Math.min(window, DEFAULT_BATCH_INTERVAL);
+                long windowNanos = window * 1_000_000L;
+                // events are delivered up to the report latency after they happened, and are read
+                // up to a poll interval after that
+                long latenessNanos = session.maxReportLatencyUs * 1000L + pollInterval * 1_000_000L;
+                long streamStart = SystemClock.elapsedRealtimeNanos();
+                aggregator.reset(streamStart, streamStart + windowNanos);
+
+                SensorStreamReader.EventConsumer consumer = sample -> {
+                    // events from before the stream started are not aggregated
+                    if (sample.timestamp < streamStart) return;
+                    writeWindowsBefore(sample.timestamp, frameWriter, aggregator, reader, windowNanos);
+                    if (counter < limit) aggregator.onEvent(sample);
+                };
+
+                try {
+                    while (!stopped && counter < limit) {
+                        try {
+                            Thread.sleep(pollInterval);
+                        } catch (InterruptedException e) {
+                            Logger.logInfo(LOG_TAG, "SensorOutputWriter interrupted: " + e.getMessage());
+                        }
+                        reader.read(Integer.MAX_VALUE, consumer);
+
+                        writeWindowsBefore(SystemClock.elapsedRealtimeNanos() - latenessNanos,
+                                frameWriter, aggregator, reader, windowNanos);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            /**
+             * Writes the windows that end before a timestamp and starts the window of the
+             * timestamp, stopping the session if the limit of windows is reached. After an empty
+             * window, the following windows without events are skipped, so that a gap in the
+             * events, like while the device was asleep, is not written as a window per interval.
+             */
+            private void writeWindowsBefore(long timestamp, SensorFrameWriter frameWriter, SensorAggregator aggregator,
+                                            SensorStreamReader reader, long windowNanos) throws IOException {
+                while (timestamp >= aggregator.getWindowEnd() && counter < limit) {
+                    // late events are lost like the events that were dropped by the reader
+                    frameWriter.writeAggregates(aggregator, reader.getDroppedCount() + aggregator.getLateCount());
+                    frameWriter.flush();
+
+                    long windowStart = aggregator.getWindowEnd();
+                    if (aggregator.isEmpty() && timestamp - windowStart >= windowNanos)
+                        windowStart += (timestamp - windowStart) / windowNanos * windowNanos;
+                    aggregator.reset(windowStart, windowStart + windowNanos);
+
+                    if (++counter >= limit) {
+                        Logger.logInfo(LOG_TAG, "SensorOutput limit reached! Performing cleanup");
+                        stopSession(session);
+                    }
+                }
+            }
+
+            /**
+             * Writes the transitions of the conditions of the session as they are recorded, until
+             * stopped or the limit of transitions is reached. The thread sleeps until a
+             * condition wakes it up.
+             */
+            protected void writeTransitions(SensorFrameWriter frameWriter) throws IOException {
+                List<SensorTrigger> triggers = session.triggers;
+                // transitions are read from the first, so that initial states are not missed
+                long[] positions = new long[triggers.size()];
+                SensorTrigger.Transition transition = new SensorTrigger.Transition();
+
+                for (SensorTrigger trigger : triggers) {
+                    trigger.setWaiter(this);
+                }
+                try {
+                    while (!stopped) {
+                        boolean written = false;
+                        for (int i = 0; i < triggers.size() && counter < limit; i++) {
+                            SensorTrigger trigger = triggers.get(i);
+                            long recorded = trigger.getWritten();
+                            if (recorded - positions[i] >= SensorTrigger.CAPACITY) {
+                                Logger.logInfo(LOG_TAG, "Skipped " + (recorded - positions[i] - SensorTrigger.CAPACITY + 1) +
+                                        " transitions of " + trigger.condition);
+                                positions[i] = recorded - SensorTrigger.CAPACITY + 1;
+                            }
+                            for (; positions[i] < recorded && counter < limit; positions[i]++) {
+                                if (trigger.read(positions[i], transition)) {
+                                    frameWriter.writeTransition(i, trigger, transition);
+                                    counter++;
+                                    written = true;
+                                }
+                            }
+                        }
+                        if (written) frameWriter.flush();
+
+                        if (counter >= limit) {
+                            Logger.logInfo(LOG_TAG, "SensorOutput limit reached! Performing cleanup");
+                            stopSession(session);
+                        } else {
+                            LockSupport.parkNanos(TRIGGER_WAIT_NANOS);
+                        }
+                    }
+                } finally {
+                    for (SensorTrigger trigger : triggers) {
+                        trigger.setWaiter(null);
+                    }
+                }
+            }
+
+            /**
+             * Creates a JsonWriter for a single reading, as a JsonWriter only writes one value
+             */
+            protected static JsonWriter createJsonWriter(PrintWriter writer) {
+                JsonWriter jsonWriter = new JsonWriter(writer);
+                jsonWriter.setIndent(INDENT);
+                // lenient to allow NaN values
+                jsonWriter.setLenient(true);
+                return jsonWriter;
+            }
+
+            /**
+             * Writes the latest values of each sensor as a JSON object keyed by sensor name
+             */
+            protected static void writeLatestValues(JsonWriter out, List<SensorRingBuffer> buffers,
+                                                    SensorSample sample) throws IOException {
+                out.beginObject();
+                for (SensorRingBuffer buffer : buffers) {
+                    if (!buffer.readLatest(sample)) continue;
+
+                    out.name(buffer.getSensor().getName());
+                    out.beginObject();
+                    out.name("values");
+                    writeValues(out, sample);
+                    out.endObject();
+                }
+                out.endObject();
+                out.flush();
+            }
+
+            /**
+             * Writes the values of a sample as a JSON array. Whole numbers are written without
+             * a fraction, like {@link org.json.JSONArray} does.
+             */
+            protected static void writeValues(JsonWriter out, SensorSample sample) throws IOException {
+                out.beginArray();
+                for (int i = 0; i < sample.count; i++) {
+                    double value = sample.values[i];
+                    if (value == (long) value) out.value((long) value);
+                    else out.value(value);
+                }
+                out.endArray();
+            }
+
             @Override
             public void interrupt() {
+                this.stopped = true;
                 super.interrupt();
                 this.isRunning = false;
             }
         }
+
+        /**
+         * Writes readings as JSON objects keyed by sensor name, and the events of a stream as
+         * frames of the form
+         * {"events": [{"sensor": name, "timestamp": ns, "accuracy": n, "values": [..]}, ..], "dropped": n},
+         * where dropped is the total number of events dropped so far. Each is written on its own
+         * line, and frames without events are not written.
+         */
+        static class JsonFrameWriter implements SensorFrameWriter {
+            protected final PrintWriter writer;
+            protected JsonWriter frame;
+
+            JsonFrameWriter(PrintWriter writer) {
+                this.writer = writer;
+            }
+
+            @Override
+            public void writeLatest(@NonNull List<SensorRingBuffer> buffers, @NonNull SensorSample sample) throws IOException {
+                SensorOutputWriter.writeLatestValues(SensorOutputWriter.createJsonWriter(writer), buffers, sample);
+                writer.write("\n");
+            }
+
+            @Override
+            public void onEvent(@NonNull SensorSample sample) throws IOException {
+                if (frame == null) {
+                    frame = new JsonWriter(writer);
+                    // lenient to allow NaN values
+                    frame.setLenient(true);
+                    frame.beginObject();
+                    frame.name("events");
+                    frame.beginArray();
+                }
+
+                frame.beginObject();
+                frame.name("sensor").value(sample.sensor.getName());
+                frame.name("timestamp").value(sample.timestamp);
+                frame.name("accuracy").value(sample.accuracy);
+                frame.name("values");
+                SensorOutputWriter.writeValues(frame, sample);
+                frame.endObject();
+            }
+
+            @Override
+            public void finish(long droppedCount) throws IOException {
+                if (frame == null) return;
+                frame.endArray();
+                frame.name("dropped").value(droppedCount);
+                frame.endObject();
+                frame.flush();
+                writer.write("\n");
+                frame = null;
+            }
+
+            /**
+             * Writes the statistics of a window as a line of the form
+             * {"start": ns, "end": ns, "sensors": {name: {"count": n, "min": [..], "max": [..],
+             * "mean": [..], "rms": [..]}, ..}, "dropped": n}
+             */
+            @Override
+            public void writeAggregates(@NonNull SensorAggregator aggregator, long droppedCount) throws IOException {
+                JsonWriter out = new JsonWriter(writer);
+                // lenient to allow NaN values
+                out.setLenient(true);
+                out.beginObject();
+                out.name("start").value(aggregator.getWindowStart());
+                out.name("end").value(aggregator.getWindowEnd());
+                out.name("sensors");
+                out.beginObject();
+                for (int i = 0; i < aggregator.getSensorCount(); i++) {
+                    long count = aggregator.getCount(i);
+                    if (count == 0) continue;
+
+                    int axes = aggregator.getAxisCount(i);
+                    out.name(aggregator.getSensor(i).getName());
+                    out.beginObject();
+                    out.name("count").value(count);
+                    out.name("min").beginArray();
+                    for (int axis = 0; axis < axes; axis++) out.value(aggregator.getMin(i, axis));
+                    out.endArray();
+                    out.name("max").beginArray();
+                    for (int axis = 0; axis < axes; axis++) out.value(aggregator.getMax(i, axis));
+                    out.endArray();
+                    out.name("mean").beginArray();
+                    for (int axis = 0; axis < axes; axis++) out.value(aggregator.getMean(i, axis));
+                    out.endArray();
+                    out.name("rms").beginArray();
+                    for (int axis = 0; axis < axes; axis++) out.value(aggregator.getRms(i, axis));
+                    out.endArray();
+                    out.endObject();
+                }
+                out.endObject();
+                out.name("dropped").value(droppedCount);
+                out.endObject();
+                out.flush();
+                writer.write("\n");
+            }
+
+            /**
+             * Writes a transition as a line of the form
+             * {"sensor": name, "condition": condition, "active": bool, "timestamp": ns, "value": n}
+             */
+            @Override
+            public void writeTransition(int index, @NonNull SensorTrigger trigger,
+                                        @NonNull SensorTrigger.Transition transition) throws IOException {
+                JsonWriter out = new JsonWriter(writer);
+                // lenient to allow NaN values
+                out.setLenient(true);
+                out.beginObject();
+                out.name("sensor").value(trigger.sensor.getName());
+                out.name("condition").value(trigger.condition);
+                out.name("active").value(transition.active);
+                out.name("timestamp").value(transition.timestamp);
+                out.name("value").value(transition.value);
+                out.endObject();
+                out.flush();
+                writer.write("\n");
+            }
+
+            @Override
+            public void flush() {
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * A client listening to sensors, with its own sensors, rate and output
+     */
+    static class SensorSession {
+        // the output socket address of the client
+        final String id;
+        // buffers of the sensors the session listens to, in output order
+        final List<SensorRingBuffer> buffers = new CopyOnWriteArrayList<>();
+        int samplingPeriodUs;
+        int maxReportLatencyUs;
+        SensorReaderService.SensorOutputWriter writer;
+        // the file the session records to, if it does not write to its output socket
+        RotatingFileOutputStream recording;
+        // the conditions whose transitions a trigger session writes
+        final List<SensorTrigger> triggers = new ArrayList<>();
+
+        SensorSession(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * The registration of a sensor with the SensorManager, shared by all sessions listening to
+     * the sensor. It uses the shortest sampling period and latency of its sessions.
+     */
+    static class SensorRegistration {
+        static final int UNREGISTERED = -1;
+
+        final Sensor sensor;
+        final SensorRingBuffer buffer;
+        final Set<SensorSession> sessions = new HashSet<>();
+        int samplingPeriodUs = UNREGISTERED;
+        int maxReportLatencyUs = UNREGISTERED;
+
+        SensorRegistration(Sensor sensor) {
+            this.sensor = sensor;
+            this.buffer = new SensorRingBuffer(sensor, SensorRingBuffer.DEFAULT_CAPACITY);
+        }
     }
 
     /**
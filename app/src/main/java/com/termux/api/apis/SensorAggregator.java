@@ -0,0 +1,167 @@
+package com.termux.api.apis;
+
+import android.hardware.Sensor;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes statistics of the events of a set of sensors over a window incrementally, per sensor
+ * and axis, so that only a single record has to be written per window instead of every event.
+ *
+ * The statistics are kept in preallocated arrays, so that adding an event does not allocate.
+ * Sensors are identified by their index in the list of buffers the aggregator was created with.
+ *
+ * Events are assigned to the window by their timestamp, not by when they are read, so that events
+ * that a sensor delivers in batches are counted in the window they happened in. Events from before
+ * the window are counted as late instead, as the window they belong to was already written.
+ */
+class SensorAggregator implements SensorStreamReader.EventConsumer {
+
+    private static final int MAX_VALUES = SensorRingBuffer.MAX_VALUES;
+
+    private final Sensor[] mSensors;
+    private final long[] mCounts;
+    private final int[] mAxisCounts;
+    private final float[] mMin;
+    private final float[] mMax;
+    private final double[] mSum;
+    private final double[] mSumOfSquares;
+
+    private long mWindowStart;
+    private long mWindowEnd;
+    private long mLateCount = 0;
+
+    SensorAggregator(@NonNull List<SensorRingBuffer> buffers) {
+        int count = buffers.size();
+        mSensors = new Sensor[count];
+        for (int i = 0; i < count; i++) {
+            mSensors[i] = buffers.get(i).getSensor();
+        }
+        mCounts = new long[count];
+        mAxisCounts = new int[count];
+        mMin = new float[count * MAX_VALUES];
+        mMax = new float[count * MAX_VALUES];
+        mSum = new double[count * MAX_VALUES];
+        mSumOfSquares = new double[count * MAX_VALUES];
+    }
+
+    /**
+     * Start a new window, discarding the statistics of the previous one.
+     *
+     * @param start The start timestamp of the window in nanoseconds, inclusive.
+     * @param end The end timestamp of the window in nanoseconds, exclusive.
+     */
+    void reset(long start, long end) {
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mAxisCounts, 0);
+        mWindowStart = start;
+        mWindowEnd = end;
+    }
+
+    /**
+     * Add an event to the window. The event must not be after the end of the window, the window
+     * must be written and reset first then.
+     */
+    @Override
+    public void onEvent(@NonNull SensorSample sample) {
+        int index = indexOf(sample.sensor);
+        if (index < 0) return;
+        if (sample.timestamp < mWindowStart) {
+            mLateCount++;
+            return;
+        }
+
+        int offset = index * MAX_VALUES;
+        int axes = sample.count;
+        if (mCounts[index] == 0) {
+            for (int axis = 0; axis < axes; axis++) {
+                mMin[offset + axis] = Float.POSITIVE_INFINITY;
+                mMax[offset + axis] = Float.NEGATIVE_INFINITY;
+                mSum[offset + axis] = 0;
+                mSumOfSquares[offset + axis] = 0;
+            }
+            mAxisCounts[index] = axes;
+        } else {
+            // the number of values of a sensor does not change, but be safe
+            axes = Math.min(axes, mAxisCounts[index]);
+        }
+
+        for (int axis = 0; axis < axes; axis++) {
+            float value = sample.values[axis];
+            int i = offset + axis;
+            if (value < mMin[i]) mMin[i] = value;
+            if (value > mMax[i]) mMax[i] = value;
+            mSum[i] += value;
+            mSumOfSquares[i] += (double) value * value;
+        }
+        mCounts[index]++;
+    }
+
+    private int indexOf(Sensor sensor) {
+        for (int i = 0; i < mSensors.length; i++) {
+            if (mSensors[i] == sensor) return i;
+        }
+        return -1;
+    }
+
+    long getWindowStart() {
+        return mWindowStart;
+    }
+
+    long getWindowEnd() {
+        return mWindowEnd;
+    }
+
+    /** Check if no event was added to the window. */
+    boolean isEmpty() {
+        for (long count : mCounts) {
+            if (count != 0) return false;
+        }
+        return true;
+    }
+
+    /** Get the number of events that were read after their window was written. */
+    long getLateCount() {
+        return mLateCount;
+    }
+
+    int getSensorCount() {
+        return mSensors.length;
+    }
+
+    @NonNull
+    Sensor getSensor(int index) {
+        return mSensors[index];
+    }
+
+    /** Get the number of events of a sensor in the window. */
+    long getCount(int index) {
+        return mCounts[index];
+    }
+
+    /** Get the number of values of the events of a sensor, or 0 if there were none. */
+    int getAxisCount(int index) {
+        return mAxisCounts[index];
+    }
+
+    float getMin(int index, int axis) {
+        return mMin[index * MAX_VALUES + axis];
+    }
+
+    float getMax(int index, int axis) {
+        return mMax[index * MAX_VALUES + axis];
+    }
+
+    double getMean(int index, int axis) {
+        return mSum[index * MAX_VALUES + axis] / mCounts[index];
+    }
+
+    /** Get the root mean square of the values of an axis. */
+    double getRms(int index, int axis) {
+        return Math.sqrt(mSumOfSquares[index * MAX_VALUES + axis] / mCounts[index]);
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.termux.api.apis;
+
+import android.hardware.Sensor;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes sensor events as binary frames with a fixed layout, which is much cheaper than
+ * formatting every value as JSON text at high rates. All values are little endian and every
+ * frame starts with its type byte:
+ *
+ * <pre>
+ * header:  u8 type = 1, u8 version, u16 sensor count,
+ *          then for each sensor: u16 id, u16 name length, i32 sensor type, UTF-8 name
+ * sample:  u8 type = 2, i8 accuracy, u16 sensor id, u32 value count, i64 timestamp in ns,
+ *          f32 values
+ * dropped: u8 type = 3, 7 reserved bytes, i64 total number of dropped events
+ * window:  u8 type = 4, u8 reserved, u16 sensor id, u32 axis count, i64 event count,
+ *          i64 window start in ns, i64 window end in ns,
+ *          then for each axis: f32 min, f32 max, f32 mean, f32 root mean square
+ * trigger: u8 type = 5, u8 active, u16 sensor id, u32 condition index, i64 timestamp in ns,
+ *          f32 value, 4 reserved bytes
+ * </pre>
+ *
+ * The header is written first and maps the ids of the sample frames to the sensors, in the
+ * order of the sensors of the session. A dropped frame is written after a batch of streamed
+ * events or windows when more events were dropped. A window frame is written for each sensor
+ * that had events in a window when aggregating, and a trigger frame for each transition of a
+ * condition, identified by its index in the conditions of the session.
+ *
+ * Frames are collected in a direct {@link ByteBuffer} that is written out when full and on
+ * {@link #flush()}, so that writing a sample does not allocate.
+ */
+class SensorBinaryFrameWriter implements SensorFrameWriter {
+
+    static final int VERSION = 1;
+
+    static final byte FRAME_HEADER = 1;
+    static final byte FRAME_SAMPLE = 2;
+    static final byte FRAME_DROPPED = 3;
+    static final byte FRAME_WINDOW = 4;
+    static final byte FRAME_TRIGGER = 5;
+
+    static final int SAMPLE_HEADER_SIZE = 16;
+    static final int WINDOW_HEADER_SIZE = 32;
+    static final int TRIGGER_FRAME_SIZE = 24;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final OutputStream mOut;
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    /** The sensors by id, searched linearly as sessions only have a few sensors. */
+    private final Sensor[] mSensors;
+    private long mDroppedCount = 0;
+
+    SensorBinaryFrameWriter(@NonNull OutputStream out, @NonNull List<SensorRingBuffer> buffers) {
+        mOut = out;
+        mChannel = Channels.newChannel(out);
+        mSensors = new Sensor[buffers.size()];
+        for (int i = 0; i < mSensors.length; i++) {
+            mSensors[i] = buffers.get(i).getSensor();
+        }
+    }
+
+    /** Write the header frame that maps the sensor ids to sensors. */
+    void writeHeader() throws IOException {
+        ensureCapacity(4);
+        mBuffer.put(FRAME_HEADER);
+        mBuffer.put((byte) VERSION);
+        mBuffer.putShort((short) mSensors.length);
+
+        for (int id = 0; id < mSensors.length; id++) {
+            byte[] name = mSensors[id].getName().getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(name.length, BUFFER_SIZE - 8);
+            ensureCapacity(8 + length);
+            mBuffer.putShort((short) id);
+            mBuffer.putShort((short) length);
+            mBuffer.putInt(mSensors[id].getType());
+            mBuffer.put(name, 0, length);
+        }
+    }
+
+    @Override
+    public void onEvent(@NonNull SensorSample sample) throws IOException {
+        int id = getId(sample.sensor);
+        if (id < 0) return;
+
+        ensureCapacity(SAMPLE_HEADER_SIZE + 4 * sample.count);
+        mBuffer.put(FRAME_SAMPLE);
+        mBuffer.put((byte) sample.accuracy);
+        mBuffer.putShort((short) id);
+        mBuffer.putInt(sample.count);
+        mBuffer.putLong(sample.timestamp);
+        for (int i = 0; i < sample.count; i++) {
+            mBuffer.putFloat(sample.values[i]);
+        }
+    }
+
+    @Override
+    public void writeLatest(@NonNull List<SensorRingBuffer> buffers, @NonNull SensorSample sample) throws IOException {
+        for (SensorRingBuffer buffer : buffers) {
+            if (buffer.readLatest(sample)) onEvent(sample);
+        }
+    }
+
+    @Override
+    public void finish(long droppedCount) throws IOException {
+        if (droppedCount == mDroppedCount) return;
+        mDroppedCount = droppedCount;
+
+        ensureCapacity(16);
+        mBuffer.put(FRAME_DROPPED);
+        mBuffer.put((byte) 0).putShort((short) 0).putInt(0);
+        mBuffer.putLong(droppedCount);
+    }
+
+    @Override
+    public void writeAggregates(@NonNull SensorAggregator aggregator, long droppedCount) throws IOException {
+        for (int i = 0; i < aggregator.getSensorCount(); i++) {
+            long count = aggregator.getCount(i);
+            int id = getId(aggregator.getSensor(i));
+            if (count == 0 || id < 0) continue;
+
+            int axes = aggregator.getAxisCount(i);
+            ensureCapacity(WINDOW_HEADER_SIZE + 16 * axes);
+            mBuffer.put(FRAME_WINDOW);
+            mBuffer.put((byte) 0);
+            mBuffer.putShort((short) id);
+            mBuffer.putInt(axes);
+            mBuffer.putLong(count);
+            mBuffer.putLong(aggregator.getWindowStart());
+            mBuffer.putLong(aggregator.getWindowEnd());
+            for (int axis = 0; axis < axes; axis++) {
+                mBuffer.putFloat(aggregator.getMin(i, axis));
+                mBuffer.putFloat(aggregator.getMax(i, axis));
+                mBuffer.putFloat((float) aggregator.getMean(i, axis));
+                mBuffer.putFloat((float) aggregator.getRms(i, axis));
+            }
+        }
+        finish(droppedCount);
+    }
+
+    @Override
+    public void writeTransition(int index, @NonNull SensorTrigger trigger,
+                                @NonNull SensorTrigger.Transition transition) throws IOException {
+        ensureCapacity(TRIGGER_FRAME_SIZE);
+        mBuffer.put(FRAME_TRIGGER);
+        mBuffer.put((byte) (transition.active ? 1 : 0));
+        mBuffer.putShort((short) getId(trigger.sensor));
+        mBuffer.putInt(index);
+        mBuffer.putLong(transition.timestamp);
+        mBuffer.putFloat(transition.value);
+        mBuffer.putInt(0);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        mOut.flush();
+    }
+
+    private int getId(Sensor sensor) {
+        for (int id = 0; id < mSensors.length; id++) {
+            if (mSensors[id] == sensor) return id;
+        }
+        return -1;
+    }
+
+    /** Write out the buffer if the next frame would not fit into it. */
+    private void ensureCapacity(int size) throws IOException {
+        if (mBuffer.remaining() < size) drain();
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+}
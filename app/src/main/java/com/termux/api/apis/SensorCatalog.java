@@ -0,0 +1,169 @@
+package com.termux.api.apis;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable index of the sensors of the device, built once as the sensors do not change while
+ * the service runs.
+ *
+ * Sensors are sorted by name and their names are normalised to upper case up front, so that
+ * resolving a requested name does not copy, sort or upper case the sensor list. A name is first
+ * looked up exactly, then as a sensor type like "android.sensor.accelerometer", and otherwise
+ * the sensor with the shortest name containing it is used. Resolved names are remembered.
+ */
+class SensorCatalog {
+
+    private final List<Sensor> mSensors;
+    private final String[] mNormalizedNames;
+    private final Map<String, Sensor> mSensorsByName = new HashMap<>();
+    private final Map<String, Sensor> mSensorsByStringType = new HashMap<>();
+
+    /** The sensors that requested names resolved to, and the names that did not match any. */
+    private final Map<String, Sensor> mResolvedNames = new ConcurrentHashMap<>();
+    private final Set<String> mUnresolvedNames = ConcurrentHashMap.newKeySet();
+
+    private String mNamesJson;
+    private String mDetailsJson;
+
+    SensorCatalog(@NonNull SensorManager sensorManager) {
+        List<Sensor> sensors = new ArrayList<>(sensorManager.getSensorList(Sensor.TYPE_ALL));
+        Collections.sort(sensors, (s1, s2) -> s1.getName().compareTo(s2.getName()));
+        mSensors = Collections.unmodifiableList(sensors);
+
+        SparseArray<List<Sensor>> sensorsByType = new SparseArray<>();
+        mNormalizedNames = new String[sensors.size()];
+        for (int i = 0; i < sensors.size(); i++) {
+            Sensor sensor = sensors.get(i);
+            String name = normalize(sensor.getName());
+            mNormalizedNames[i] = name;
+            if (!mSensorsByName.containsKey(name)) mSensorsByName.put(name, sensor);
+
+            List<Sensor> sensorsOfType = sensorsByType.get(sensor.getType());
+            if (sensorsOfType == null) {
+                sensorsOfType = new ArrayList<>();
+                sensorsByType.put(sensor.getType(), sensorsOfType);
+            }
+            sensorsOfType.add(sensor);
+        }
+
+        // prefer the default sensor of a type, like SensorManager.getDefaultSensor() does
+        for (int i = 0; i < sensorsByType.size(); i++) {
+            int type = sensorsByType.keyAt(i);
+            Sensor sensor = sensorManager.getDefaultSensor(type);
+            if (sensor == null) sensor = sensorsByType.valueAt(i).get(0);
+            mSensorsByStringType.put(normalize(sensor.getStringType()), sensor);
+        }
+    }
+
+    @NonNull
+    private static String normalize(@NonNull String name) {
+        return name.trim().toUpperCase(Locale.ROOT);
+    }
+
+    /** Get all sensors, sorted by name. */
+    @NonNull
+    List<Sensor> getSensors() {
+        return mSensors;
+    }
+
+    /**
+     * Find the sensor that a name requested by the user refers to, ignoring case.
+     *
+     * @return Returns the sensor, or {@code null} if no sensor matches.
+     */
+    @Nullable
+    Sensor find(@NonNull String requestedName) {
+        Sensor sensor = mResolvedNames.get(requestedName);
+        if (sensor != null || mUnresolvedNames.contains(requestedName)) return sensor;
+
+        sensor = resolve(normalize(requestedName));
+        if (sensor != null) mResolvedNames.put(requestedName, sensor);
+        else mUnresolvedNames.add(requestedName);
+        return sensor;
+    }
+
+    @Nullable
+    private Sensor resolve(@NonNull String name) {
+        Sensor sensor = mSensorsByName.get(name);
+        if (sensor != null) return sensor;
+
+        sensor = mSensorsByStringType.get(name);
+        if (sensor != null) return sensor;
+
+        int shortestMatchLength = Integer.MAX_VALUE;
+        for (int i = 0; i < mNormalizedNames.length; i++) {
+            String sensorName = mNormalizedNames[i];
+            if (sensorName.length() < shortestMatchLength && sensorName.contains(name)) {
+                sensor = mSensors.get(i);
+                shortestMatchLength = sensorName.length();
+            }
+        }
+        return sensor;
+    }
+
+    /**
+     * Get the list of sensors as JSON, either only their names or with their metadata. The JSON
+     * is only built once.
+     */
+    @NonNull
+    synchronized String toJson(boolean details, int indentation) throws JSONException {
+        if (details) {
+            if (mDetailsJson == null) {
+                JSONArray sensorArray = new JSONArray();
+                for (Sensor sensor : mSensors) {
+                    sensorArray.put(getDetails(sensor));
+                }
+                mDetailsJson = new JSONObject().put("sensors", sensorArray).toString(indentation);
+            }
+            return mDetailsJson;
+        }
+
+        if (mNamesJson == null) {
+            JSONArray sensorArray = new JSONArray();
+            for (Sensor sensor : mSensors) {
+                sensorArray.put(sensor.getName());
+            }
+            mNamesJson = new JSONObject().put("sensors", sensorArray).toString(indentation);
+        }
+        return mNamesJson;
+    }
+
+    @NonNull
+    static JSONObject getDetails(@NonNull Sensor sensor) throws JSONException {
+        JSONObject details = new JSONObject();
+        details.put("name", sensor.getName());
+        details.put("type", sensor.getStringType());
+        details.put("type_id", sensor.getType());
+        details.put("vendor", sensor.getVendor());
+        details.put("version", sensor.getVersion());
+        details.put("resolution", sensor.getResolution());
+        details.put("maximum_range", sensor.getMaximumRange());
+        details.put("power_ma", sensor.getPower());
+        details.put("min_delay_us", sensor.getMinDelay());
+        details.put("max_delay_us", sensor.getMaxDelay());
+        details.put("reporting_mode", sensor.getReportingMode());
+        details.put("fifo_reserved_event_count", sensor.getFifoReservedEventCount());
+        details.put("fifo_max_event_count", sensor.getFifoMaxEventCount());
+        details.put("wake_up", sensor.isWakeUpSensor());
+        return details;
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.termux.api.apis;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the output of a sensor session, either readings of the latest values of its sensors,
+ * frames of streamed events, which are passed to {@link #onEvent(SensorSample)}, statistics
+ * of windows of events, or transitions of conditions.
+ */
+interface SensorFrameWriter extends SensorStreamReader.EventConsumer {
+
+    /** Write the latest values of the sensors as a single reading. */
+    void writeLatest(@NonNull List<SensorRingBuffer> buffers, @NonNull SensorSample sample) throws IOException;
+
+    /**
+     * End the current frame of streamed events, if any were written.
+     *
+     * @param droppedCount The total number of events that were dropped so far.
+     */
+    void finish(long droppedCount) throws IOException;
+
+    /**
+     * Write the statistics of a window of events, for the sensors that had events in it.
+     *
+     * @param droppedCount The total number of events that were dropped so far.
+     */
+    void writeAggregates(@NonNull SensorAggregator aggregator, long droppedCount) throws IOException;
+
+    /**
+     * Write a transition of a condition.
+     *
+     * @param index The index of the condition in the session.
+     */
+    void writeTransition(int index, @NonNull SensorTrigger trigger, @NonNull SensorTrigger.Transition transition) throws IOException;
+
+    void flush() throws IOException;
+
+}
@@ -0,0 +1,219 @@
+package com.termux.api.apis;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Preallocated ring buffer of the events of a sensor, so that no objects are allocated when an
+ * event is received.
+ *
+ * There must only be a single writer, the thread that the sensor events are delivered on, but
+ * there may be any number of readers. Events are published like with a seqlock: the writer holds
+ * the write lock of a {@link StampedLock} while copying an event into its slot, which never blocks
+ * as readers only use optimistic reads. A reader copies a slot and then validates that no event
+ * was written in the meantime, retrying if one was.
+ */
+class SensorRingBuffer {
+
+    /** The maximum number of values of an event, more are not stored. */
+    static final int MAX_VALUES = 16;
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The maximum time that the writer waits for blocking readers to make room for an event. The
+     * readers that still have not made room then are no longer waited for at all and their oldest
+     * events are overwritten, so that a stuck reader stalls the sensor events of everyone else
+     * only once instead of on every event.
+     */
+    static final long MAX_BLOCK_NANOS = 500_000_000L;
+
+    private static final long BLOCK_PARK_NANOS = 100_000L;
+
+    private final Sensor mSensor;
+    private final int mMask;
+    private final float[] mValues;
+    private final long[] mTimestamps;
+    private final int[] mAccuracies;
+    private final int[] mValueCounts;
+
+    private final StampedLock mLock = new StampedLock();
+
+    /** The number of events that have been written and published. */
+    private volatile long mSequence = 0;
+
+    /** The timestamp of the first event, for computing the rate of events. */
+    private volatile long mFirstTimestamp = 0;
+
+    /**
+     * The positions of the readers that the writer must not overtake, each the sequence number of
+     * the next event that the reader will read. Replaced as a whole, so that the writer can
+     * iterate it without allocating.
+     */
+    private volatile AtomicLong[] mGates = new AtomicLong[0];
+
+    /**
+     * @param capacity The number of events that are kept, rounded up to a power of two.
+     */
+    SensorRingBuffer(@NonNull Sensor sensor, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mSensor = sensor;
+        mMask = size - 1;
+        mValues = new float[size * MAX_VALUES];
+        mTimestamps = new long[size];
+        mAccuracies = new int[size];
+        mValueCounts = new int[size];
+    }
+
+    @NonNull
+    Sensor getSensor() {
+        return mSensor;
+    }
+
+    int getCapacity() {
+        return mMask + 1;
+    }
+
+    /** Get the number of events that have been written so far. */
+    long getSequence() {
+        return mSequence;
+    }
+
+    /** Get the timestamp of the first event that was written, or 0 if none was written yet. */
+    long getFirstTimestamp() {
+        return mFirstTimestamp;
+    }
+
+    /** Write an event. Must only be called from the thread that sensor events are delivered on. */
+    void write(@NonNull SensorEvent event) {
+        write(event.values, event.values.length, event.timestamp, event.accuracy);
+    }
+
+    /**
+     * Add the position of a reader that the writer must not overtake. The writer blocks up to
+     * {@link #MAX_BLOCK_NANOS} for the reader when the buffer is full, and removes the gate if
+     * the reader did not make room in that time.
+     */
+    synchronized void addGate(@NonNull AtomicLong position) {
+        AtomicLong[] gates = Arrays.copyOf(mGates, mGates.length + 1);
+        gates[gates.length - 1] = position;
+        mGates = gates;
+    }
+
+    synchronized void removeGate(@NonNull AtomicLong position) {
+        List<AtomicLong> gates = new ArrayList<>(Arrays.asList(mGates));
+        gates.remove(position);
+        mGates = gates.toArray(new AtomicLong[0]);
+    }
+
+    /** Write an event. Must only be called from the thread that sensor events are delivered on. */
+    void write(@NonNull float[] values, int count, long timestamp, int accuracy) {
+        waitForGates();
+
+        long stamp = mLock.writeLock();
+        try {
+            long sequence = mSequence;
+            if (sequence == 0) mFirstTimestamp = timestamp;
+            int slot = (int) sequence & mMask;
+            int n = Math.min(count, MAX_VALUES);
+            System.arraycopy(values, 0, mValues, slot * MAX_VALUES, n);
+            mTimestamps[slot] = timestamp;
+            mAccuracies[slot] = accuracy;
+            mValueCounts[slot] = n;
+            mSequence = sequence + 1;
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Wait until the slot of the next event has been read by all gating readers, for at most
+     * {@link #MAX_BLOCK_NANOS} in total. The gates of readers that are still behind after that are
+     * removed.
+     */
+    private void waitForGates() {
+        AtomicLong[] gates = mGates;
+        if (gates.length == 0) return;
+
+        long sequence = mSequence;
+        long deadline = 0;
+        boolean timedOut = false;
+        for (AtomicLong gate : gates) {
+            while (sequence - gate.get() > mMask) {
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + MAX_BLOCK_NANOS;
+                } else if (now - deadline > 0) {
+                    timedOut = true;
+                    break;
+                }
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+        }
+
+        if (timedOut) {
+            for (AtomicLong gate : gates) {
+                if (sequence - gate.get() > mMask) removeGate(gate);
+            }
+        }
+    }
+
+    /**
+     * Copy the event with a sequence number into a sample.
+     *
+     * @return Returns {@code false} if the event has not been written yet or has already been
+     * overwritten.
+     */
+    boolean read(long sequence, @NonNull SensorSample sample) {
+        while (true) {
+            long stamp = mLock.tryOptimisticRead();
+            if (stamp == 0) {
+                // An event is being written right now
+                Thread.yield();
+                continue;
+            }
+
+            long written = mSequence;
+            if (sequence < 0 || sequence >= written || written - sequence > mMask + 1) {
+                if (mLock.validate(stamp)) return false;
+                continue;
+            }
+
+            int slot = (int) sequence & mMask;
+            int n = mValueCounts[slot];
+            System.arraycopy(mValues, slot * MAX_VALUES, sample.values, 0, n);
+            sample.count = n;
+            sample.timestamp = mTimestamps[slot];
+            sample.accuracy = mAccuracies[slot];
+
+            if (mLock.validate(stamp)) {
+                sample.sensor = mSensor;
+                sample.sequence = sequence;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Copy the latest event into a sample.
+     *
+     * @return Returns {@code false} if no event has been written yet.
+     */
+    boolean readLatest(@NonNull SensorSample sample) {
+        while (true) {
+            long sequence = mSequence - 1;
+            if (sequence < 0) return false;
+            if (read(sequence, sample)) return true;
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.termux.api.apis;
+
+import android.hardware.Sensor;
+
+/**
+ * Mutable copy of a sensor event read from a {@link SensorRingBuffer}. Samples are meant to be
+ * reused, so that reading events does not allocate.
+ */
+class SensorSample {
+
+    Sensor sensor;
+    long sequence;
+    long timestamp;
+    int accuracy;
+    int count;
+    final float[] values = new float[SensorRingBuffer.MAX_VALUES];
+
+}
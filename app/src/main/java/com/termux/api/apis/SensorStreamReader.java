@@ -0,0 +1,164 @@
+package com.termux.api.apis;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads every event from the {@link SensorRingBuffer} of a set of sensors, merged in timestamp
+ * order, for streaming all events instead of only the latest values.
+ *
+ * Events that were overwritten before they could be read are counted as dropped, how that
+ * happens depends on the {@link BackPressure} mode.
+ */
+class SensorStreamReader {
+
+    /** What happens when events arrive faster than they are read. */
+    enum BackPressure {
+        /** The oldest unread events are overwritten when a buffer is full. */
+        DROP_OLDEST,
+        /**
+         * The sensor listener waits for the reader when a buffer is full, up to
+         * {@link SensorRingBuffer#MAX_BLOCK_NANOS}. This delays the events of all sensors. A reader
+         * that does not make room in that time falls back to {@link #DROP_OLDEST} for the rest of
+         * the stream.
+         */
+        BLOCK,
+        /**
+         * When the reader falls behind by more than half of a buffer, the unread events are
+         * skipped and only the latest is read, so that the output catches up with the present.
+         */
+        COALESCE
+    }
+
+    /** Receives the events that are read. */
+    interface EventConsumer {
+        void onEvent(@NonNull SensorSample sample) throws IOException;
+    }
+
+    private final Source[] mSources;
+    private final BackPressure mBackPressure;
+    private long mDroppedCount = 0;
+    private boolean mClosed = false;
+
+    SensorStreamReader(@NonNull Collection<SensorRingBuffer> buffers, @NonNull BackPressure backPressure) {
+        mBackPressure = backPressure;
+        mSources = new Source[buffers.size()];
+        int i = 0;
+        for (SensorRingBuffer buffer : buffers) {
+            Source source = new Source(buffer);
+            if (backPressure == BackPressure.BLOCK)
+                buffer.addGate(source.position);
+            mSources[i++] = source;
+        }
+    }
+
+    /** Get the number of events that could be read now. */
+    long getPendingCount() {
+        long pending = 0;
+        for (Source source : mSources) {
+            pending += source.buffer.getSequence() - source.position.get() + (source.hasNext ? 1 : 0);
+        }
+        return pending;
+    }
+
+    /** Get the number of events that were dropped so far. */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /** Get the number of events of a sensor that were dropped so far. */
+    long getDroppedCount(@NonNull SensorRingBuffer buffer) {
+        for (Source source : mSources) {
+            if (source.buffer == buffer) return source.droppedCount;
+        }
+        return 0;
+    }
+
+    /**
+     * Read the events that are available, in timestamp order.
+     *
+     * @param maxCount The maximum number of events to read.
+     * @return Returns the number of events that were read.
+     */
+    int read(int maxCount, @NonNull EventConsumer consumer) throws IOException {
+        int count = 0;
+        while (count < maxCount) {
+            Source next = null;
+            for (Source source : mSources) {
+                if (source.fill() && (next == null || source.sample.timestamp < next.sample.timestamp))
+                    next = source;
+            }
+            if (next == null) break;
+
+            next.hasNext = false;
+            consumer.onEvent(next.sample);
+            count++;
+        }
+        return count;
+    }
+
+    /** Stop gating the writers of the buffers. */
+    void close() {
+        if (mClosed) return;
+        mClosed = true;
+        if (mBackPressure == BackPressure.BLOCK) {
+            for (Source source : mSources) {
+                source.buffer.removeGate(source.position);
+            }
+        }
+    }
+
+
+
+    /** The read position and next event of a buffer. */
+    private class Source {
+        final SensorRingBuffer buffer;
+        /** The sequence number of the next event to read from the buffer. */
+        final AtomicLong position;
+        final SensorSample sample = new SensorSample();
+        boolean hasNext = false;
+        long droppedCount = 0;
+
+        Source(SensorRingBuffer buffer) {
+            this.buffer = buffer;
+            // only events that arrive after the reader was created are read
+            this.position = new AtomicLong(buffer.getSequence());
+        }
+
+        /** Read the next event into {@link #sample} if there is none yet. */
+        boolean fill() {
+            if (hasNext) return true;
+
+            while (true) {
+                long sequence = position.get();
+                long written = buffer.getSequence();
+                if (sequence >= written) return false;
+
+                long skip = 0;
+                if (written - sequence > buffer.getCapacity()) {
+                    skip = written - buffer.getCapacity() - sequence;
+                }
+                if (mBackPressure == BackPressure.COALESCE && written - sequence > buffer.getCapacity() / 2) {
+                    skip = written - 1 - sequence;
+                }
+                if (skip > 0) {
+                    droppedCount += skip;
+                    mDroppedCount += skip;
+                    sequence += skip;
+                }
+
+                boolean read = buffer.read(sequence, sample);
+                position.set(read ? sequence + 1 : sequence);
+                if (read) {
+                    hasNext = true;
+                    return true;
+                }
+                // overwritten while reading, the skip is recomputed on the next iteration
+            }
+        }
+    }
+
+}
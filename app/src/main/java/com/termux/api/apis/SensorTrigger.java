@@ -0,0 +1,220 @@
+package com.termux.api.apis;
+
+import android.hardware.Sensor;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A condition on the values of a sensor that is evaluated for every event on the thread that
+ * events are delivered on, recording only the events at which the condition starts or stops
+ * being met. Evaluating does not allocate.
+ *
+ * A condition is written as "sensor:axis&lt;op&gt;value[/hysteresis]", where axis is the index of
+ * a value or "mag" for the magnitude of the first three values, and op is one of:
+ * <ul>
+ * <li>'&gt;': Met while the value is above the threshold.</li>
+ * <li>'&lt;': Met while the value is below the threshold.</li>
+ * <li>'~': Met while the value changes faster than the threshold per second.</li>
+ * </ul>
+ * Once met, a condition is only unmet again when the value is past the threshold by the
+ * hysteresis, so that a value near the threshold does not flap. The first event always records
+ * the initial state.
+ *
+ * Transitions are kept in a preallocated ring buffer with a single writer, the event thread,
+ * and a single reader, which is woken up when a transition is recorded.
+ */
+class SensorTrigger {
+
+    enum Kind {
+        ABOVE,
+        BELOW,
+        RATE,
+        /** Every event is recorded, for one-shot sensors like significant motion. */
+        EVENT
+    }
+
+    /** A recorded transition. */
+    static class Transition {
+        long timestamp;
+        boolean active;
+        /** The value, or rate of change, that caused the transition. */
+        float value;
+    }
+
+    static final int AXIS_MAGNITUDE = -1;
+
+    static final int CAPACITY = 64;
+
+    private static final Pattern CONDITION_PATTERN = Pattern.compile(
+            "(.+):(\\w+)\\s*([<>~])\\s*([-+0-9.eE]+)(?:\\s*/\\s*([-+0-9.eE]+))?");
+
+    final Sensor sensor;
+    final String condition;
+    final Kind kind;
+    final int axis;
+    final float threshold;
+    final float hysteresis;
+
+    // evaluation state, only accessed on the event thread
+    private boolean mEvaluated = false;
+    private boolean mActive = false;
+    private float mPreviousValue;
+    private long mPreviousTimestamp = -1;
+
+    private final long[] mTimestamps = new long[CAPACITY];
+    private final boolean[] mStates = new boolean[CAPACITY];
+    private final float[] mValues = new float[CAPACITY];
+    /** The number of transitions that were recorded. */
+    private volatile long mWritten = 0;
+    private volatile Thread mWaiter;
+
+    SensorTrigger(@NonNull Sensor sensor, @NonNull String condition, @NonNull Kind kind, int axis,
+                  float threshold, float hysteresis) {
+        this.sensor = sensor;
+        this.condition = condition;
+        this.kind = kind;
+        this.axis = axis;
+        this.threshold = threshold;
+        this.hysteresis = Math.abs(hysteresis);
+    }
+
+    /** Create a trigger that records every event of a sensor. */
+    @NonNull
+    static SensorTrigger forEvents(@NonNull Sensor sensor) {
+        return new SensorTrigger(sensor, sensor.getName(), Kind.EVENT, 0, 0, 0);
+    }
+
+    /**
+     * Parse a condition.
+     *
+     * @throws IllegalArgumentException if the condition is invalid or its sensor is not found.
+     */
+    @NonNull
+    static SensorTrigger parse(@NonNull String condition, @NonNull SensorCatalog catalog) {
+        Matcher matcher = CONDITION_PATTERN.matcher(condition.trim());
+        if (!matcher.matches())
+            throw new IllegalArgumentException("Invalid condition: " + condition);
+
+        Sensor sensor = catalog.find(matcher.group(1));
+        if (sensor == null)
+            throw new IllegalArgumentException("No sensor for condition: " + condition);
+
+        int axis;
+        String axisString = matcher.group(2);
+        if ("mag".equalsIgnoreCase(axisString)) {
+            axis = AXIS_MAGNITUDE;
+        } else {
+            try {
+                axis = Integer.parseInt(axisString);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid axis in condition: " + condition);
+            }
+            if (axis < 0 || axis >= SensorRingBuffer.MAX_VALUES)
+                throw new IllegalArgumentException("Invalid axis in condition: " + condition);
+        }
+
+        Kind kind;
+        switch (matcher.group(3)) {
+            case ">": kind = Kind.ABOVE; break;
+            case "<": kind = Kind.BELOW; break;
+            default: kind = Kind.RATE; break;
+        }
+
+        try {
+            float threshold = Float.parseFloat(matcher.group(4));
+            float hysteresis = matcher.group(5) != null ? Float.parseFloat(matcher.group(5)) : 0;
+            return new SensorTrigger(sensor, condition.trim(), kind, axis, threshold, hysteresis);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number in condition: " + condition);
+        }
+    }
+
+    /** Evaluate the condition for an event. Must only be called from the event thread. */
+    void evaluate(@NonNull float[] values, int count, long timestamp) {
+        if (kind == Kind.EVENT) {
+            record(timestamp, true, count > 0 ? values[0] : 0);
+            return;
+        }
+
+        float value;
+        if (axis == AXIS_MAGNITUDE) {
+            float sum = 0;
+            for (int i = 0; i < Math.min(3, count); i++) sum += values[i] * values[i];
+            value = (float) Math.sqrt(sum);
+        } else if (axis < count) {
+            value = values[axis];
+        } else {
+            return;
+        }
+
+        boolean active;
+        switch (kind) {
+            case ABOVE:
+                active = mActive ? value > threshold - hysteresis : value > threshold;
+                break;
+            case BELOW:
+                active = mActive ? value < threshold + hysteresis : value < threshold;
+                break;
+            default:
+                long previousTimestamp = mPreviousTimestamp;
+                float previousValue = mPreviousValue;
+                mPreviousTimestamp = timestamp;
+                mPreviousValue = value;
+                if (previousTimestamp < 0 || timestamp <= previousTimestamp) return;
+
+                value = Math.abs(value - previousValue) * 1e9f / (timestamp - previousTimestamp);
+                active = mActive ? value > threshold - hysteresis : value > threshold;
+        }
+
+        if (!mEvaluated || active != mActive) {
+            mEvaluated = true;
+            mActive = active;
+            record(timestamp, active, value);
+        }
+    }
+
+    private void record(long timestamp, boolean active, float value) {
+        long written = mWritten;
+        int slot = (int) (written % CAPACITY);
+        mTimestamps[slot] = timestamp;
+        mStates[slot] = active;
+        mValues[slot] = value;
+        mWritten = written + 1;
+
+        Thread waiter = mWaiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    /** Get the number of transitions that were recorded so far. */
+    long getWritten() {
+        return mWritten;
+    }
+
+    /** Set the thread to wake up when a transition is recorded, or null for none. */
+    void setWaiter(Thread waiter) {
+        mWaiter = waiter;
+    }
+
+    /**
+     * Copy a recorded transition.
+     *
+     * @return Returns {@code false} if the transition was not recorded yet or was overwritten.
+     */
+    boolean read(long sequence, @NonNull Transition transition) {
+        if (sequence >= mWritten) return false;
+
+        int slot = (int) (sequence % CAPACITY);
+        transition.timestamp = mTimestamps[slot];
+        transition.active = mStates[slot];
+        transition.value = mValues[slot];
+
+        // the slot may have been overwritten while copying it, which starts once
+        // CAPACITY transitions were recorded after it
+        return mWritten - sequence < CAPACITY;
+    }
+
+}
@@ -6,10 +6,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
-import android.provider.ContactsContract.PhoneLookup;
+import android.provider.BaseColumns;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Conversations;
 import android.provider.Telephony.TextBasedSmsColumns;
+import android.text.TextUtils;
 import android.util.JsonWriter;
 
 import com.termux.api.TermuxApiReceiver;
@@ -19,8 +20,11 @@ import com.termux.shared.logger.Logger;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static android.provider.Telephony.TextBasedSmsColumns.*;
@@ -36,7 +40,17 @@ import androidx.annotation.Nullable;
  */
 public class SmsInboxAPI {
 
-    private static final String[] DISPLAY_NAME_PROJECTION = {PhoneLookup.DISPLAY_NAME};
+    /** The columns that are written for a message, see {@link #writeElement(Cursor, JsonWriter, ContactNameResolver)}. */
+    private static final String[] MESSAGE_PROJECTION = {BaseColumns._ID, THREAD_ID, ADDRESS, BODY, DATE, TYPE, READ};
+
+    /** The columns that the messages in the window of each conversation are found by. */
+    private static final String[] MESSAGE_ID_PROJECTION = {BaseColumns._ID, THREAD_ID};
+
+    /** The maximum number of messages that are read by id with a single query. */
+    private static final int MAX_MESSAGE_IDS_PER_QUERY = 1000;
+
+    /** Default number of conversations whose messages are fetched with a single query. */
+    private static final int DEFAULT_CONVERSATION_BATCH_SIZE = 500;
 
     private static final String LOG_TAG = "SmsInboxAPI";
 
@@ -54,6 +68,7 @@ public class SmsInboxAPI {
         final int conversationOffset = intent.getIntExtra("conversation-offset", -1);
         final int conversationLimit = intent.getIntExtra("conversation-limit", -1);
         final String conversationSelection = intent.getStringExtra("conversation-selection");
+        final int conversationBatchSize = intent.getIntExtra("conversation-batch-size", DEFAULT_CONVERSATION_BATCH_SIZE);
 
         /*
            NOTE: When conversation or messages are queried from the Android database, first the
@@ -111,7 +126,8 @@ public class SmsInboxAPI {
                             messageOffset, messageLimit,
                             messageSelection,
                             messageSortOrder,
-                            messageReturnNoOrderReverse);
+                            messageReturnNoOrderReverse,
+                            conversationBatchSize);
                 } else {
                     getAllSms(context, out, contentURI,
                             messageOffset, messageLimit,
@@ -133,7 +149,8 @@ public class SmsInboxAPI {
                                         int messageOffset, int messageLimit,
                                         String messageSelection,
                                         String messageSortOrder,
-                                        boolean messageReturnNoOrderReverse) throws IOException {
+                                        boolean messageReturnNoOrderReverse,
+                                        int conversationBatchSize) throws IOException {
         ContentResolver cr = context.getContentResolver();
 
         // `THREAD_ID` is used to select messages for a conversation, so do not allow caller to pass it.
@@ -143,34 +160,52 @@ public class SmsInboxAPI {
         }
 
         conversationSortOrder = getSortOrder(conversationSortOrder, conversationOffset, conversationLimit);
-        messageSortOrder = getSortOrder(messageSortOrder, messageOffset, messageLimit);
 
         int index;
+        List<Integer> threadIds = new ArrayList<>();
         try (Cursor conversationCursor = cr.query(Conversations.CONTENT_URI,
                 null, conversationSelection, null , conversationSortOrder)) {
             int conversationCount = conversationCursor.getCount();
-            if (conversationReturnNoOrderReverse) {
-                conversationCursor.moveToFirst();
-            } else {
-                conversationCursor.moveToLast();
-            }
+            index = conversationCursor.getColumnIndex(THREAD_ID);
+            if (index >= 0) {
+                if (conversationReturnNoOrderReverse) {
+                    conversationCursor.moveToFirst();
+                } else {
+                    conversationCursor.moveToLast();
+                }
 
-            Map<String, String> nameCache = new HashMap<>();
+                for (int i = 0; i < conversationCount; i++) {
+                    threadIds.add(conversationCursor.getInt(index));
 
-            if (conversationReturnNestedView) {
-                out.beginObject();
-            } else {
-                out.beginArray();
-            }
-            for (int i = 0; i < conversationCount; i++) {
-                index = conversationCursor.getColumnIndex(THREAD_ID);
-                if (index < 0) {
-                    conversationCursor.moveToPrevious();
-                    continue;
+                    if (conversationReturnNoOrderReverse) {
+                        conversationCursor.moveToNext();
+                    } else {
+                        conversationCursor.moveToPrevious();
+                    }
                 }
+            }
+        }
 
-                int id = conversationCursor.getInt(index);
+        ContactNameResolver nameResolver = ContactNameResolver.getInstance(context);
 
+        if (conversationReturnNestedView) {
+            out.beginObject();
+        } else {
+            out.beginArray();
+        }
+        if (conversationBatchSize > 0) {
+            for (int start = 0; start < threadIds.size(); start += conversationBatchSize) {
+                writeConversationBatch(cr, out, nameResolver,
+                        threadIds.subList(start, Math.min(start + conversationBatchSize, threadIds.size())),
+                        conversationReturnMultipleMessages, conversationReturnNestedView,
+                        messageOffset, messageLimit,
+                        messageSelection,
+                        messageSortOrder,
+                        messageReturnNoOrderReverse);
+            }
+        } else {
+            messageSortOrder = getSortOrder(messageSortOrder, messageOffset, messageLimit);
+            for (int id : threadIds) {
                 if (conversationReturnNestedView) {
                     out.name(String.valueOf(id));
                     out.beginArray();
@@ -197,7 +232,7 @@ public class SmsInboxAPI {
                         }
 
                         for (int j = 0; j < messageCount; j++) {
-                            writeElement(messageCursor, out, nameCache, context);
+                            writeElement(messageCursor, out, nameResolver);
 
                             if (messageReturnNoOrderReverse) {
                                 messageCursor.moveToNext();
@@ -207,7 +242,7 @@ public class SmsInboxAPI {
                         }
                     } else {
                         messageCursor.moveToFirst();
-                        writeElement(messageCursor, out, nameCache, context);
+                        writeElement(messageCursor, out, nameResolver);
                     }
                 }
 
@@ -216,23 +251,127 @@ public class SmsInboxAPI {
                 if (conversationReturnNestedView) {
                     out.endArray();
                 }
+            }
+        }
+        if (conversationReturnNestedView) {
+            out.endObject();
+        } else {
+            out.endArray();
+        }
+    }
 
-                if (conversationReturnNoOrderReverse) {
-                    conversationCursor.moveToNext();
-                } else {
-                    conversationCursor.moveToPrevious();
+    /**
+     * Write the messages of a batch of conversations with a few queries, instead of a query per
+     * conversation.
+     *
+     * The message offset and limit apply to each conversation, so they can not be passed to the
+     * queries. The first query therefore reads the ids of all messages of the conversations,
+     * sorted by thread, to find the messages in the window of each conversation. Only those
+     * messages are then read with all written columns, by id in chunks of
+     * {@link #MAX_MESSAGE_IDS_PER_QUERY}, so that the bodies of the messages that are not written
+     * are not read. Messages deleted between the queries are skipped.
+     */
+    private static void writeConversationBatch(ContentResolver cr, JsonWriter out, ContactNameResolver nameResolver,
+                                               List<Integer> threadIds,
+                                               boolean conversationReturnMultipleMessages, boolean conversationReturnNestedView,
+                                               int messageOffset, int messageLimit,
+                                               String messageSelection,
+                                               String messageSortOrder,
+                                               boolean messageReturnNoOrderReverse) throws IOException {
+        String selection = THREAD_ID + " IN (" + TextUtils.join(",", threadIds) + ")";
+        if (messageSelection != null && !messageSelection.isEmpty()) {
+            selection = messageSelection + " " + selection;
+        }
+        String sortOrder = THREAD_ID;
+        if (messageSortOrder != null && !messageSortOrder.isEmpty()) {
+            sortOrder += ", " + messageSortOrder;
+        }
+
+        int offset = Math.max(messageOffset, 0);
+        // only the first message of the window is written if multiple messages are not requested
+        long end = messageLimit < 0 ? Long.MAX_VALUE
+                : offset + (long) (conversationReturnMultipleMessages ? messageLimit : Math.min(messageLimit, 1));
+        boolean reverse = conversationReturnMultipleMessages && !messageReturnNoOrderReverse;
+
+        // the ids of the messages to write, in the order they are written
+        List<Long> messageIds = new ArrayList<>();
+        int[] messageCounts = new int[threadIds.size()];
+        try (Cursor idCursor = cr.query(Sms.CONTENT_URI, MESSAGE_ID_PROJECTION, selection, null, sortOrder)) {
+            Map<Integer, List<Long>> idsByThread = new HashMap<>();
+            if (idCursor != null) {
+                int idIndex = idCursor.getColumnIndexOrThrow(BaseColumns._ID);
+                int threadIndex = idCursor.getColumnIndexOrThrow(THREAD_ID);
+                List<Long> ids = null;
+                int threadId = 0;
+                int rank = 0;
+                while (idCursor.moveToNext()) {
+                    int id = idCursor.getInt(threadIndex);
+                    if (ids == null || id != threadId) {
+                        threadId = id;
+                        rank = 0;
+                        ids = new ArrayList<>();
+                        idsByThread.put(id, ids);
+                    }
+                    if (rank >= offset && rank < end) {
+                        ids.add(idCursor.getLong(idIndex));
+                    }
+                    rank++;
                 }
             }
-            if (conversationReturnNestedView) {
-                out.endObject();
-            } else {
-                out.endArray();
+
+            for (int i = 0; i < threadIds.size(); i++) {
+                List<Long> ids = idsByThread.get(threadIds.get(i));
+                if (ids == null) continue;
+                if (reverse) Collections.reverse(ids);
+                messageIds.addAll(ids);
+                messageCounts[i] = ids.size();
             }
         }
+
+        Cursor messageCursor = null;
+        try {
+            Map<Long, Integer> positions = new HashMap<>();
+            int chunkEnd = 0;
+            int next = 0;
+            for (int i = 0; i < threadIds.size(); i++) {
+                if (conversationReturnNestedView) {
+                    out.name(String.valueOf(threadIds.get(i)));
+                    out.beginArray();
+                }
+
+                for (int j = 0; j < messageCounts[i]; j++, next++) {
+                    if (next == chunkEnd) {
+                        if (messageCursor != null) messageCursor.close();
+                        chunkEnd = Math.min(next + MAX_MESSAGE_IDS_PER_QUERY, messageIds.size());
+                        messageCursor = cr.query(Sms.CONTENT_URI, MESSAGE_PROJECTION,
+                                BaseColumns._ID + " IN (" + TextUtils.join(",", messageIds.subList(next, chunkEnd)) + ")",
+                                null, null);
+                        positions.clear();
+                        if (messageCursor != null) {
+                            int idIndex = messageCursor.getColumnIndexOrThrow(BaseColumns._ID);
+                            while (messageCursor.moveToNext()) {
+                                positions.put(messageCursor.getLong(idIndex), messageCursor.getPosition());
+                            }
+                        }
+                    }
+
+                    Integer position = positions.get(messageIds.get(next));
+                    if (position != null && messageCursor.moveToPosition(position)) {
+                        writeElement(messageCursor, out, nameResolver);
+                    }
+                }
+
+                if (conversationReturnNestedView) {
+                    out.endArray();
+                }
+            }
+        } finally {
+            if (messageCursor != null) messageCursor.close();
+        }
     }
 
     @SuppressLint("SimpleDateFormat")
-    private static void writeElement(Cursor c, JsonWriter out, Map<String, String> nameCache, Context context) throws IOException {
+    private static void writeElement(Cursor c, JsonWriter out, ContactNameResolver nameResolver) throws IOException {
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
         int index;
@@ -243,7 +382,7 @@ public class SmsInboxAPI {
         // long smsSentDate = c.getLong(c.getColumnIndexOrThrow(TextBasedSmsColumns.DATE_SENT));
         int smsID = c.getInt(c.getColumnIndexOrThrow("_id"));
 
-        String smsSenderName = getContactNameFromNumber(nameCache, context, smsAddress);
+        String smsSenderName = nameResolver.getName(smsAddress);
         String messageType = getMessageType(c.getInt(c.getColumnIndexOrThrow(TYPE)));
 
         out.beginObject();
@@ -309,12 +448,11 @@ public class SmsInboxAPI {
                 messageCursor.moveToLast();
             }
 
-            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            Map<String, String> nameCache = new HashMap<>();
+            ContactNameResolver nameResolver = ContactNameResolver.getInstance(context);
 
             out.beginArray();
             for (int i = 0; i < messageCount; i++) {
-                writeElement(messageCursor, out, nameCache, context);
+                writeElement(messageCursor, out, nameResolver);
 
                 if (messageReturnNoOrderReverse) {
                     messageCursor.moveToNext();
@@ -326,27 +464,6 @@ public class SmsInboxAPI {
         }
     }
 
-    private static String getContactNameFromNumber(Map<String, String> cache, Context context, String number) {
-        if (cache.containsKey(number)) {
-            return cache.get(number);
-        }
-
-        int index;
-        Uri contactUri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
-        try (Cursor c = context.getContentResolver().query(contactUri, DISPLAY_NAME_PROJECTION, null, null, null)) {
-            String name = null;
-            if (c.moveToFirst()) {
-                index = c.getColumnIndex(PhoneLookup.DISPLAY_NAME);
-                if (index >= 0) {
-                    name = c.getString(index);
-                }
-            }
-
-            cache.put(number, name);
-            return name;
-        }
-    }
-
     private static String getMessageType(int type) {
         switch (type)
         {
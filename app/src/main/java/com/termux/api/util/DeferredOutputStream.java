@@ -0,0 +1,100 @@
+package com.termux.api.util;
+
+import android.net.LocalSocket;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+
+/**
+ * Output stream of a socket that may still be connecting. Data written before the connection is
+ * established is buffered, up to {@link #MAX_BUFFER_SIZE} bytes, so that a result can be computed
+ * while connecting instead of after it. Writing more than that, {@link #flush()} and
+ * {@link #close()} wait for the connection.
+ *
+ * Closing the stream does not close the socket.
+ */
+class DeferredOutputStream extends OutputStream {
+
+    static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    /** An output that is being connected. */
+    interface Connection {
+        /** @return Returns {@code true} if connecting finished, successfully or not. */
+        boolean isDone();
+
+        /** Wait for the connection and get its output. */
+        @NonNull
+        OutputStream await() throws IOException;
+    }
+
+    private final Connection mConnection;
+    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private OutputStream mOut;
+
+    DeferredOutputStream(@NonNull Future<LocalSocket> socket) {
+        this(new Connection() {
+            @Override
+            public boolean isDone() {
+                return socket.isDone();
+            }
+
+            @NonNull
+            @Override
+            public OutputStream await() throws IOException {
+                return ResultReturner.awaitSocket(socket).getOutputStream();
+            }
+        });
+    }
+
+    DeferredOutputStream(@NonNull Connection connection) {
+        mConnection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        OutputStream out = getOutputIfConnected(1);
+        if (out != null) out.write(b);
+        else mBuffer.write(b);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        OutputStream out = getOutputIfConnected(len);
+        if (out != null) out.write(b, off, len);
+        else mBuffer.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        getOutput().flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        getOutput().flush();
+    }
+
+    /** Get the output if connected or if the data to be written would not fit into the buffer. */
+    private OutputStream getOutputIfConnected(int length) throws IOException {
+        if (mOut != null || mConnection.isDone() || mBuffer.size() + length > MAX_BUFFER_SIZE)
+            return getOutput();
+        return null;
+    }
+
+    /** Wait for the connection and send the buffered data. */
+    @NonNull
+    private OutputStream getOutput() throws IOException {
+        if (mOut == null) {
+            OutputStream out = mConnection.await();
+            mBuffer.writeTo(out);
+            mBuffer = null;
+            mOut = out;
+        }
+        return mOut;
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.termux.api.util;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer that encodes the compact JSON written by {@link android.util.JsonWriter} as CBOR
+ * (RFC 8949) while it is written, so that APIs can keep writing their results with a
+ * {@link android.util.JsonWriter}.
+ *
+ * This only reduces the size of results on the wire. The value is still formatted as JSON text,
+ * which is then scanned again here, so producing CBOR costs somewhat more than producing compact
+ * JSON. Encoding CBOR directly would need APIs to write to another writer than
+ * {@link android.util.JsonWriter}, which is final and can not be given a CBOR backend.
+ *
+ * Arrays and objects are encoded with indefinite length as their size is not known in advance.
+ * Integers that fit in 64 bits are encoded as integers and other numbers as single precision
+ * floats if that is lossless, or double precision otherwise.
+ */
+class JsonCborWriter extends Writer {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_TEXT = 3;
+
+    private static final int INDEFINITE_ARRAY = 0x9f;
+    private static final int INDEFINITE_MAP = 0xbf;
+    private static final int BREAK = 0xff;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+
+    private final DataOutputStream mOut;
+
+    private final StringBuilder mToken = new StringBuilder();
+    private boolean mInString = false;
+    private boolean mInLiteral = false;
+    private boolean mEscaped = false;
+    /** The number of hex digits of a `\\u` escape still to be read, or 0 if not in one. */
+    private int mUnicodeDigits = 0;
+    private int mUnicodeValue = 0;
+
+    JsonCborWriter(@NonNull OutputStream out) {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    @Override
+    public void write(@NonNull char[] buf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++)
+            write(buf[i]);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (mInString) {
+            writeStringChar((char) c);
+            return;
+        }
+
+        if (mInLiteral) {
+            if (c != ',' && c != ':' && c != ']' && c != '}' && !Character.isWhitespace(c)) {
+                mToken.append((char) c);
+                return;
+            }
+            writeLiteral();
+        }
+
+        switch (c) {
+            case '{':
+                mOut.write(INDEFINITE_MAP);
+                break;
+            case '[':
+                mOut.write(INDEFINITE_ARRAY);
+                break;
+            case '}':
+            case ']':
+                mOut.write(BREAK);
+                break;
+            case '"':
+                mInString = true;
+                mToken.setLength(0);
+                break;
+            case ',':
+            case ':':
+                break;
+            default:
+                if (Character.isWhitespace(c)) break;
+                mInLiteral = true;
+                mToken.setLength(0);
+                mToken.append((char) c);
+        }
+    }
+
+    private void writeStringChar(char c) throws IOException {
+        if (mUnicodeDigits > 0) {
+            mUnicodeValue = (mUnicodeValue << 4) | Character.digit(c, 16);
+            if (--mUnicodeDigits == 0) mToken.append((char) mUnicodeValue);
+            return;
+        }
+
+        if (mEscaped) {
+            mEscaped = false;
+            switch (c) {
+                case 'b': mToken.append('\b'); break;
+                case 'f': mToken.append('\f'); break;
+                case 'n': mToken.append('\n'); break;
+                case 'r': mToken.append('\r'); break;
+                case 't': mToken.append('\t'); break;
+                case 'u':
+                    mUnicodeDigits = 4;
+                    mUnicodeValue = 0;
+                    break;
+                default: mToken.append(c);
+            }
+            return;
+        }
+
+        if (c == '\\') {
+            mEscaped = true;
+        } else if (c == '"') {
+            mInString = false;
+            byte[] bytes = mToken.toString().getBytes(StandardCharsets.UTF_8);
+            writeHead(MAJOR_TEXT, bytes.length);
+            mOut.write(bytes);
+        } else {
+            mToken.append(c);
+        }
+    }
+
+    private void writeLiteral() throws IOException {
+        mInLiteral = false;
+        String literal = mToken.toString();
+        switch (literal) {
+            case "true": mOut.write(TRUE); return;
+            case "false": mOut.write(FALSE); return;
+            case "null": mOut.write(NULL); return;
+        }
+
+        if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+            try {
+                long value = Long.parseLong(literal);
+                if (value >= 0) writeHead(MAJOR_UNSIGNED, value);
+                else writeHead(MAJOR_NEGATIVE, -1 - value);
+                return;
+            } catch (NumberFormatException ignored) {
+                // Too large or not an integer, like "NaN" or "Infinity", encode as a float.
+            }
+        }
+
+        double value = Double.parseDouble(literal);
+        float floatValue = (float) value;
+        if (floatValue == value || Double.isNaN(value)) {
+            mOut.write(FLOAT32);
+            mOut.writeFloat(floatValue);
+        } else {
+            mOut.write(FLOAT64);
+            mOut.writeDouble(value);
+        }
+    }
+
+    /** Write the initial byte and argument of a data item, treating the value as unsigned. */
+    private void writeHead(int majorType, long value) throws IOException {
+        int major = majorType << 5;
+        if (value >= 0 && value < 24) {
+            mOut.write(major | (int) value);
+        } else if (value >= 0 && value <= 0xff) {
+            mOut.write(major | 24);
+            mOut.write((int) value);
+        } else if (value >= 0 && value <= 0xffff) {
+            mOut.write(major | 25);
+            mOut.writeShort((int) value);
+        } else if (value >= 0 && value <= 0xffffffffL) {
+            mOut.write(major | 26);
+            mOut.writeInt((int) value);
+        } else {
+            mOut.write(major | 27);
+            mOut.writeLong(value);
+        }
+    }
+
+    /** End a top level value that is a number or literal and flush the output. */
+    void finish() throws IOException {
+        if (mInLiteral) writeLiteral();
+        mOut.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    /** Finish the value, but leave the output open as it belongs to {@link ResultReturner}. */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+}
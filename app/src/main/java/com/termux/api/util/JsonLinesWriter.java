@@ -0,0 +1,117 @@
+package com.termux.api.util;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that turns the compact JSON written by {@link android.util.JsonWriter} into newline
+ * delimited JSON. If the JSON value is an array, each of its elements is written on its own line
+ * without the enclosing brackets, otherwise the value is written as a single line.
+ *
+ * The output is flushed after a record if {@link #FLUSH_INTERVAL_MILLIS} has passed since the
+ * last flush, so that clients can process records while the rest is still being written.
+ */
+class JsonLinesWriter extends Writer {
+
+    static final long FLUSH_INTERVAL_MILLIS = 250;
+
+    private final Writer mOut;
+
+    private int mDepth = 0;
+    private boolean mInString = false;
+    private boolean mEscaped = false;
+    private boolean mTopLevelArray = false;
+    /** If characters of the current record were written without its trailing newline. */
+    private boolean mRecordOpen = false;
+    private long mLastFlushTime = SystemClock.elapsedRealtime();
+
+    JsonLinesWriter(@NonNull Writer out) {
+        mOut = out;
+    }
+
+    @Override
+    public void write(@NonNull char[] buf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++)
+            write(buf[i]);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (mInString) {
+            if (mEscaped) mEscaped = false;
+            else if (c == '\\') mEscaped = true;
+            else if (c == '"') mInString = false;
+            emit(c);
+            return;
+        }
+
+        switch (c) {
+            case '"':
+                mInString = true;
+                break;
+            case '[':
+                if (mDepth++ == 0) {
+                    mTopLevelArray = true;
+                    return;
+                }
+                break;
+            case '{':
+                mDepth++;
+                break;
+            case ']':
+                if (--mDepth == 0 && mTopLevelArray) {
+                    endRecord();
+                    return;
+                }
+                break;
+            case '}':
+                mDepth--;
+                break;
+            case ',':
+                if (mDepth == 1 && mTopLevelArray) {
+                    endRecord();
+                    return;
+                }
+                break;
+        }
+        emit(c);
+    }
+
+    private void emit(int c) throws IOException {
+        mOut.write(c);
+        mRecordOpen = true;
+    }
+
+    private void endRecord() throws IOException {
+        if (!mRecordOpen) return;
+        mOut.write('\n');
+        mRecordOpen = false;
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastFlushTime >= FLUSH_INTERVAL_MILLIS) {
+            mOut.flush();
+            mLastFlushTime = now;
+        }
+    }
+
+    /** End the last record, if the value was not an array. */
+    void finish() throws IOException {
+        endRecord();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        mOut.close();
+    }
+
+}
@@ -0,0 +1,236 @@
+package com.termux.api.util;
+
+import androidx.annotation.NonNull;
+
+import com.termux.shared.logger.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of threads that {@link ResultReturner} writes results on, so that a burst of API
+ * calls does not start a new thread for each of them. Idle threads are stopped after
+ * {@link #KEEP_ALIVE_SECONDS}.
+ *
+ * Tasks that arrive when all threads are busy wait in a queue of fixed capacity, if the pool has
+ * one. If the queue is full as well, the {@link OverflowPolicy} decides what happens to the task.
+ * At most a fixed number of tasks run on overflow threads at the same time, further tasks are
+ * rejected and passed to the rejection handler given to {@link #execute(Runnable, Runnable)},
+ * which must still end the task, like by returning an error to the client, as the client waits on
+ * its socket forever otherwise.
+ */
+public class ResultExecutor {
+
+    /** What to do with a task when all threads are busy and the queue is full. */
+    public enum OverflowPolicy {
+        /** Run the task on a new thread that is not part of the pool. */
+        NEW_THREAD,
+        /**
+         * Run the task on the thread that submitted it, which slows down the submitter. Tasks
+         * submitted from the main thread use {@link #NEW_THREAD} instead, to not block it.
+         */
+        CALLER_RUNS
+    }
+
+    public static final int KEEP_ALIVE_SECONDS = 30;
+
+    /** The maximum number of overflow threads of a pool that never rejects tasks. */
+    public static final int NO_LIMIT = -1;
+
+    private static final String LOG_TAG = "ResultExecutor";
+
+    private final String mName;
+    private final int mQueueCapacity;
+    private final ThreadPoolExecutor mExecutor;
+    private volatile OverflowPolicy mOverflowPolicy;
+    private volatile int mMaxOverflowThreads;
+
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+    private final AtomicInteger mOverflowActiveCount = new AtomicInteger();
+    private final AtomicInteger mOverflowThreadCount = new AtomicInteger();
+    private final AtomicLong mOverflowCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    /** A task and what to do if it is rejected. */
+    private static class Task implements Runnable {
+        final Runnable task;
+        final Runnable onRejected;
+
+        Task(@NonNull Runnable task, Runnable onRejected) {
+            this.task = task;
+            this.onRejected = onRejected;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * @param name The name of the pool, used for its thread names.
+     * @param maxThreads The maximum number of threads of the pool.
+     * @param queueCapacity The number of tasks that may wait for a thread, or 0 to not queue them.
+     * @param maxOverflowThreads The maximum number of tasks that run on overflow threads at the
+     *                           same time before tasks are rejected, or {@link #NO_LIMIT}.
+     * @param overflowPolicy What to do with tasks when the pool and queue are full.
+     */
+    public ResultExecutor(@NonNull String name, int maxThreads, int queueCapacity, int maxOverflowThreads,
+                          @NonNull OverflowPolicy overflowPolicy) {
+        if (maxThreads < 1) throw new IllegalArgumentException("maxThreads must be at least 1");
+        if (queueCapacity < 0) throw new IllegalArgumentException("queueCapacity must not be negative");
+
+        mName = name;
+        mQueueCapacity = queueCapacity;
+        mOverflowPolicy = overflowPolicy;
+        setMaxOverflowThreads(maxOverflowThreads);
+
+        BlockingQueue<Runnable> queue = queueCapacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity);
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                r -> new Thread(r, mName + "-" + mThreadCount.incrementAndGet()),
+                (r, executor) -> overflow((Task) r));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a task on the pool, or as decided by the {@link OverflowPolicy} if it is full.
+     *
+     * @throws RejectedExecutionException If the maximum number of overflow threads is reached.
+     */
+    public void execute(@NonNull Runnable task) {
+        execute(task, null);
+    }
+
+    /**
+     * Run a task on the pool, or as decided by the {@link OverflowPolicy} if it is full.
+     *
+     * @param onRejected Called on the submitting thread instead of running the task if the maximum
+     *                   number of overflow threads is reached. If {@code null}, a
+     *                   {@link RejectedExecutionException} is thrown instead.
+     */
+    public void execute(@NonNull Runnable task, Runnable onRejected) {
+        mExecutor.execute(new Task(task, onRejected));
+    }
+
+    private void overflow(@NonNull Task task) {
+        if (mOverflowPolicy == OverflowPolicy.CALLER_RUNS && !ResultReturner.isMainThread()) {
+            mOverflowCount.incrementAndGet();
+            Logger.logVerbose(LOG_TAG, mName + " is full, running task on the caller");
+            runCounted(task);
+            return;
+        }
+
+        int maxOverflowThreads = mMaxOverflowThreads;
+        int overflowThreads = mOverflowThreadCount.incrementAndGet();
+        if (maxOverflowThreads != NO_LIMIT && overflowThreads > maxOverflowThreads) {
+            mOverflowThreadCount.decrementAndGet();
+            mRejectedCount.incrementAndGet();
+            Logger.logError(LOG_TAG, mName + " is full and " + maxOverflowThreads + " overflow threads are running, rejecting task");
+            if (task.onRejected == null)
+                throw new RejectedExecutionException(mName + " is full");
+            task.onRejected.run();
+            return;
+        }
+
+        mOverflowCount.incrementAndGet();
+        Logger.logVerbose(LOG_TAG, mName + " is full, running task on a new thread");
+        new Thread(() -> {
+            try {
+                runCounted(task);
+            } finally {
+                mOverflowThreadCount.decrementAndGet();
+            }
+        }, mName + "-overflow").start();
+    }
+
+    private void runCounted(@NonNull Runnable task) {
+        mOverflowActiveCount.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            mOverflowActiveCount.decrementAndGet();
+        }
+    }
+
+    @NonNull
+    public String getName() {
+        return mName;
+    }
+
+    /** Set the maximum number of threads of the pool. */
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads < 1) throw new IllegalArgumentException("maxThreads must be at least 1");
+        // The core size must not exceed the maximum size while changing them.
+        if (maxThreads > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(maxThreads);
+            mExecutor.setCorePoolSize(maxThreads);
+        } else {
+            mExecutor.setCorePoolSize(maxThreads);
+            mExecutor.setMaximumPoolSize(maxThreads);
+        }
+    }
+
+    public int getMaxThreads() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /** Set the maximum number of tasks that run on overflow threads at the same time, or {@link #NO_LIMIT}. */
+    public void setMaxOverflowThreads(int maxOverflowThreads) {
+        if (maxOverflowThreads < 0 && maxOverflowThreads != NO_LIMIT)
+            throw new IllegalArgumentException("maxOverflowThreads must not be negative");
+        mMaxOverflowThreads = maxOverflowThreads;
+    }
+
+    public int getMaxOverflowThreads() {
+        return mMaxOverflowThreads;
+    }
+
+    public void setOverflowPolicy(@NonNull OverflowPolicy overflowPolicy) {
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    @NonNull
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /** Get the number of tasks that are running, including those that overflowed the pool. */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount() + mOverflowActiveCount.get();
+    }
+
+    /** Get the number of tasks waiting for a thread of the pool. */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    /** Get the number of tasks that were handled by the {@link OverflowPolicy} since the pool was created. */
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    /** Get the number of tasks that were rejected since the pool was created. */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return mName + " {active=" + getActiveCount() + ", queued=" + getQueuedCount() +
+                ", maxThreads=" + getMaxThreads() + ", queueCapacity=" + mQueueCapacity +
+                ", maxOverflowThreads=" + mMaxOverflowThreads + ", overflowed=" + getOverflowCount() +
+                ", rejected=" + getRejectedCount() + "}";
+    }
+
+}
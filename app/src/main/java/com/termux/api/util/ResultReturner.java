@@ -7,15 +7,21 @@ import android.content.BroadcastReceiver;
 import android.content.BroadcastReceiver.PendingResult;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.net.LocalSocketAddress.Namespace;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.PatternMatcher;
+import android.os.SystemClock;
 import android.util.JsonWriter;
 
 import androidx.annotation.NonNull;
 
+import com.termux.api.ApiRegistry;
+import com.termux.api.SocketSession;
 import com.termux.shared.android.PackageUtils;
 import com.termux.shared.file.FileUtils;
 import com.termux.shared.logger.Logger;
@@ -26,11 +32,19 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class ResultReturner {
 
@@ -51,6 +65,68 @@ public abstract class ResultReturner {
      */
     private static final String SOCKET_INPUT_EXTRA = "socket_input";
 
+    /**
+     * An extra intent parameter which specifies the {@link JsonFormat} of the output of
+     * {@link ResultJsonWriter} results, by its lower case name. Defaults to {@link JsonFormat#PRETTY}.
+     */
+    public static final String JSON_FORMAT_EXTRA = "json_format";
+
+    /** The format that {@link ResultJsonWriter} results are written in. */
+    public enum JsonFormat {
+        /** A single JSON value indented by two spaces. */
+        PRETTY,
+        /** A single JSON value without any whitespace. */
+        COMPACT,
+        /**
+         * Newline delimited JSON. Each element of an array is written on its own line and the
+         * output is flushed periodically, other values are written as a single line.
+         */
+        NDJSON,
+        /**
+         * Binary CBOR (RFC 8949) encoding of the JSON value, which is smaller on the wire and
+         * cheaper to parse for clients that support it. It is not cheaper to produce: the value
+         * is still formatted as JSON text by {@link JsonWriter} and that text is converted to
+         * CBOR while it is written, see {@link JsonCborWriter}.
+         */
+        CBOR
+    }
+
+    /**
+     * The executor that results are written on, for calls that return a single result without
+     * waiting for anything but the system. Tasks that find all threads busy wait in the queue,
+     * and only run on new threads once it is full, up to a limit past which the call fails with
+     * an error result.
+     */
+    private static final ResultExecutor RESULT_EXECUTOR = new ResultExecutor("ResultReturner-result",
+            Math.max(2, Runtime.getRuntime().availableProcessors()), 64, 16, ResultExecutor.OverflowPolicy.NEW_THREAD);
+
+    /**
+     * The executor that results are written on, for calls that wait until the user or a device
+     * responds or read input until the client closes it, see {@link ApiRegistry.ApiHandler#isBlocking()}
+     * and {@link WithInput}. These are never queued, as the queued calls could wait forever.
+     */
+    private static final ResultExecutor BLOCKING_EXECUTOR = new ResultExecutor("ResultReturner-blocking",
+            16, 0, 16, ResultExecutor.OverflowPolicy.NEW_THREAD);
+
+    /**
+     * The executor that results are written on, for calls whose output is a
+     * {@link ApiRegistry.OutputType#STREAM}. These may run for a long time and are never queued
+     * behind each other.
+     */
+    private static final ResultExecutor STREAM_EXECUTOR = new ResultExecutor("ResultReturner-stream",
+            16, 0, 16, ResultExecutor.OverflowPolicy.NEW_THREAD);
+
+    /**
+     * The executor that output sockets are connected on, while the result is being computed, and
+     * that the errors of results rejected by the other executors are written on. Its tasks are
+     * short, so it never rejects them.
+     */
+    private static final ResultExecutor CONNECT_EXECUTOR = new ResultExecutor("ResultReturner-connect",
+            4, 64, ResultExecutor.NO_LIMIT, ResultExecutor.OverflowPolicy.CALLER_RUNS);
+
+    /** Cache of {@link #getTermuxAppDataDirectories(Context)}. */
+    private static volatile List<String> sTermuxAppDataDirectories;
+
     public interface ResultWriter {
         void writeResult(PrintWriter out) throws Exception;
     }
@@ -162,10 +238,49 @@ public abstract class ResultReturner {
     }
 
     public static abstract class ResultJsonWriter implements ResultWriter {
+        private JsonFormat format = JsonFormat.PRETTY;
+        private OutputStream binaryOut;
+        private PrintWriter printWriter;
+
+        public final void setFormat(JsonFormat format) {
+            this.format = format;
+        }
+
+        /** Set the output stream that binary formats are written to, instead of the {@link PrintWriter}. */
+        public final void setBinaryOutput(OutputStream outputStream) {
+            this.binaryOut = outputStream;
+        }
+
+        /**
+         * Check if writing to the output failed, like when the client exited, as the
+         * {@link JsonWriter} does not report errors of its output. This flushes the output.
+         */
+        public final boolean checkError() {
+            return printWriter != null && printWriter.checkError();
+        }
+
         @Override
         public final void writeResult(PrintWriter out) throws Exception {
+            printWriter = out;
+            if (format == JsonFormat.CBOR) {
+                out.flush();
+                JsonCborWriter cborWriter = new JsonCborWriter(binaryOut);
+                writeJson(new JsonWriter(cborWriter));
+                cborWriter.finish();
+                return;
+            }
+
+            if (format == JsonFormat.NDJSON) {
+                JsonLinesWriter linesWriter = new JsonLinesWriter(out);
+                JsonWriter writer = new JsonWriter(linesWriter);
+                writeJson(writer);
+                linesWriter.finish();
+                return;
+            }
+
             JsonWriter writer = new JsonWriter(out);
-            writer.setIndent("  ");
+            if (format == JsonFormat.PRETTY)
+                writer.setIndent("  ");
             writeJson(writer);
             out.println(); // To add trailing newline.
         }
@@ -184,7 +299,75 @@ public abstract class ResultReturner {
         newIntent.putExtra("api_method", origIntent.getStringExtra("api_method"));
         newIntent.putExtra(SOCKET_OUTPUT_EXTRA, origIntent.getStringExtra(SOCKET_OUTPUT_EXTRA));
         newIntent.putExtra(SOCKET_INPUT_EXTRA, origIntent.getStringExtra(SOCKET_INPUT_EXTRA));
+        newIntent.putExtra(JSON_FORMAT_EXTRA, origIntent.getStringExtra(JSON_FORMAT_EXTRA));
+
+    }
+
+    /**
+     * Connect to the output of an API call, which is either a socket address or the address of a
+     * {@link SocketSession} request. Closing the returned stream closes the connection.
+     */
+    public static OutputStream connectOutput(@NonNull String outputSocketAddress) throws IOException {
+        OutputStream sessionOutput = SocketSession.getRequestOutput(outputSocketAddress);
+        if (sessionOutput != null) return sessionOutput;
+
+        LocalSocket outputSocket = new LocalSocket();
+        try {
+            outputSocket.connect(getApiLocalSocketAddress(ResultReturner.context, "output", outputSocketAddress));
+            return outputSocket.getOutputStream();
+        } catch (IOException | RuntimeException e) {
+            outputSocket.close();
+            throw e;
+        }
+    }
+
+    /** Connect to a socket on {@link #CONNECT_EXECUTOR}. */
+    @NonNull
+    private static Future<LocalSocket> connectAsync(@NonNull String socketLabel, @NonNull String socketAddress) {
+        FutureTask<LocalSocket> task = new FutureTask<>(() -> {
+            LocalSocket socket = new LocalSocket();
+            try {
+                Logger.logDebug(LOG_TAG, "Connecting to " + socketLabel + " socket \"" + socketAddress + "\"");
+                socket.connect(getApiLocalSocketAddress(ResultReturner.context, socketLabel, socketAddress));
+                return socket;
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+        });
+        CONNECT_EXECUTOR.execute(task);
+        return task;
+    }
 
+    /** Wait for a socket connected with {@link #connectAsync(String, String)}. */
+    @NonNull
+    static LocalSocket awaitSocket(@NonNull Future<LocalSocket> socket) throws IOException {
+        // Connect on this thread if the task is still queued, which does nothing if it was started
+        // already, instead of waiting for a thread of the connect executor.
+        if (socket instanceof RunnableFuture)
+            ((RunnableFuture<LocalSocket>) socket).run();
+        try {
+            return socket.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** Close a socket connected with {@link #connectAsync(String, String)}, unless connecting failed. */
+    private static void closeWhenConnected(@NonNull Future<LocalSocket> socket) throws IOException {
+        LocalSocket connected;
+        try {
+            connected = socket.get();
+        } catch (ExecutionException | InterruptedException e) {
+            return;
+        }
+        connected.close();
     }
 
     /**
@@ -198,19 +381,10 @@ public abstract class ResultReturner {
      *
      * - https://man7.org/linux/man-pages/man7/unix.7.html
      */
-    @SuppressLint("SdCardPath")
     public static LocalSocketAddress getApiLocalSocketAddress(@NonNull Context context,
                                                               @NonNull String socketLabel, @NonNull String socketAddress) {
         if (socketAddress.startsWith("/")) {
-            ApplicationInfo termuxApplicationInfo = PackageUtils.getApplicationInfoForPackage(context,
-                    TermuxConstants.TERMUX_PACKAGE_NAME);
-            if (termuxApplicationInfo == null) {
-                throw new RuntimeException("Failed to get ApplicationInfo for the Termux app package: " +
-                        TermuxConstants.TERMUX_PACKAGE_NAME);
-            }
-
-            List<String> termuxAppDataDirectories = Arrays.asList(termuxApplicationInfo.dataDir,
-                    "/data/data/" + TermuxConstants.TERMUX_PACKAGE_NAME);
+            List<String> termuxAppDataDirectories = getTermuxAppDataDirectories(context);
             if (!FileUtils.isPathInDirPaths(socketAddress, termuxAppDataDirectories, true)) {
                 throw new RuntimeException("The " + socketLabel + " socket address \"" + socketAddress + "\"" +
                         " is not under Termux app data directories: " + termuxAppDataDirectories);
@@ -222,12 +396,88 @@ public abstract class ResultReturner {
         }
     }
 
+    /** Get the executor that single results are written on. */
+    @NonNull
+    public static ResultExecutor getResultExecutor() {
+        return RESULT_EXECUTOR;
+    }
+
+    /** Get the executor that streamed results are written on. */
+    @NonNull
+    public static ResultExecutor getStreamExecutor() {
+        return STREAM_EXECUTOR;
+    }
+
+    /** Get the executor that results of blocking calls are written on. */
+    @NonNull
+    public static ResultExecutor getBlockingExecutor() {
+        return BLOCKING_EXECUTOR;
+    }
+
+    /** Get the executor that the result of an API call is written on. */
+    @NonNull
+    private static ResultExecutor getExecutor(ApiRegistry.ApiHandler apiHandler, ResultWriter resultWriter) {
+        if (apiHandler != null && apiHandler.getOutputType() == ApiRegistry.OutputType.STREAM)
+            return STREAM_EXECUTOR;
+        if (resultWriter instanceof WithInput || (apiHandler != null && apiHandler.isBlocking()))
+            return BLOCKING_EXECUTOR;
+        return RESULT_EXECUTOR;
+    }
+
+    static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Get the Termux app data directories that filesystem sockets must be under. They are cached
+     * as getting the {@link ApplicationInfo} is an IPC to the package manager, and invalidated
+     * when the Termux app package is updated.
+     */
+    @SuppressLint("SdCardPath")
+    @NonNull
+    private static List<String> getTermuxAppDataDirectories(@NonNull Context context) {
+        List<String> termuxAppDataDirectories = sTermuxAppDataDirectories;
+        if (termuxAppDataDirectories != null) return termuxAppDataDirectories;
+
+        ApplicationInfo termuxApplicationInfo = PackageUtils.getApplicationInfoForPackage(context,
+                TermuxConstants.TERMUX_PACKAGE_NAME);
+        if (termuxApplicationInfo == null) {
+            throw new RuntimeException("Failed to get ApplicationInfo for the Termux app package: " +
+                    TermuxConstants.TERMUX_PACKAGE_NAME);
+        }
+
+        termuxAppDataDirectories = Collections.unmodifiableList(Arrays.asList(termuxApplicationInfo.dataDir,
+                "/data/data/" + TermuxConstants.TERMUX_PACKAGE_NAME));
+        sTermuxAppDataDirectories = termuxAppDataDirectories;
+        return termuxAppDataDirectories;
+    }
+
+    /** Clear the cache of {@link #getTermuxAppDataDirectories(Context)}. */
+    static void clearTermuxAppDataDirectories() {
+        sTermuxAppDataDirectories = null;
+    }
+
+    /** Get the {@link JsonFormat} requested by the {@link #JSON_FORMAT_EXTRA} of an intent. */
+    @NonNull
+    public static JsonFormat getJsonFormat(@NonNull Intent intent) {
+        String format = intent.getStringExtra(JSON_FORMAT_EXTRA);
+        if (format == null || format.isEmpty()) return JsonFormat.PRETTY;
+        try {
+            return JsonFormat.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            Logger.logError(LOG_TAG, "Unsupported '" + JSON_FORMAT_EXTRA + "' extra: '" + format + "', using pretty");
+            return JsonFormat.PRETTY;
+        }
+    }
+
     public static boolean shouldRunThreadForResultRunnable(Object context) {
         return !(context instanceof IntentService);
     }
 
     /**
-     * Run in a separate thread, unless the context is an IntentService.
+     * Run on {@link #getResultExecutor()}, {@link #getBlockingExecutor()} or {@link #getStreamExecutor()},
+     * depending on the API and the result writer, unless the context is an IntentService. If the
+     * executor rejects the call, an error is written instead of the result.
      */
     public static void returnData(Object context, final Intent intent, final ResultWriter resultWriter) {
         final BroadcastReceiver receiver = (BroadcastReceiver) ((context instanceof BroadcastReceiver) ? context : null);
@@ -238,34 +488,84 @@ public abstract class ResultReturner {
         // lambda in case its run in a thread as it will not be included by default.
         final Throwable callerStackTrace = shouldRunThreadForResultRunnable(context) ? new Exception("Called by:") : null;
 
+        final ApiRegistry.ApiHandler apiHandler = ApiRegistry.get(intent.getStringExtra("api_method"));
+
+        // Start connecting to the output socket right away, so that connecting overlaps with
+        // waiting for a thread and with computing the result.
+        final String outputAddress = intent.getStringExtra(SOCKET_OUTPUT_EXTRA);
+        final Future<LocalSocket> outputConnect = outputAddress == null || outputAddress.isEmpty() ||
+                outputAddress.startsWith(SocketSession.ADDRESS_PREFIX) ? null : connectAsync("output", outputAddress);
+        final AtomicBoolean rejected = new AtomicBoolean();
+
         final Runnable runnable = () -> {
+            final long startTime = SystemClock.elapsedRealtime();
+            boolean acquired = false;
+            boolean success = false;
             PrintWriter writer = null;
             LocalSocket outputSocket = null;
+            SocketSession.RequestOutputStream sessionOutput = null;
             try {
-                outputSocket = new LocalSocket();
                 String outputSocketAddress = intent.getStringExtra(SOCKET_OUTPUT_EXTRA);
                 if (outputSocketAddress == null || outputSocketAddress.isEmpty())
                     throw new IOException("Missing '" + SOCKET_OUTPUT_EXTRA + "' extra");
-                Logger.logDebug(LOG_TAG, "Connecting to output socket \"" + outputSocketAddress + "\"");
-                outputSocket.connect(getApiLocalSocketAddress(ResultReturner.context, "output", outputSocketAddress));
-                writer = new PrintWriter(outputSocket.getOutputStream());
+                OutputStream outputStream;
+                sessionOutput = SocketSession.getRequestOutput(outputSocketAddress);
+                if (sessionOutput != null) {
+                    outputStream = sessionOutput;
+                } else if (resultWriter instanceof ResultJsonWriter && apiHandler != null &&
+                        apiHandler.isSideEffectFree() && !rejected.get()) {
+                    // The result of an API that only reads data can be computed before the
+                    // connection is established. Other results wait for it, so that nothing is
+                    // changed for a client that is gone.
+                    outputStream = new DeferredOutputStream(outputConnect);
+                } else {
+                    outputSocket = awaitSocket(outputConnect);
+                    outputStream = outputSocket.getOutputStream();
+                }
+                writer = new PrintWriter(outputStream);
+
+                int resultCode = 0;
+                if (rejected.get()) {
+                    writer.println("Too many concurrent calls, try again later");
+                    resultCode = 1;
+                    if (sessionOutput != null) sessionOutput.setResultCode(1);
+                } else if (apiHandler != null) {
+                    acquired = apiHandler.acquireResult();
+                    if (!acquired) {
+                        writer.println("Too many concurrent '" + apiHandler.getName() + "' calls, try again later");
+                        resultCode = 1;
+                        if (sessionOutput != null) sessionOutput.setResultCode(1);
+                    }
+                }
 
-                if (resultWriter != null) {
+                if (resultWriter != null && !rejected.get() && (apiHandler == null || acquired)) {
+                    if (resultWriter instanceof ResultJsonWriter) {
+                        ((ResultJsonWriter) resultWriter).setFormat(getJsonFormat(intent));
+                        ((ResultJsonWriter) resultWriter).setBinaryOutput(outputStream);
+                    }
                     if(resultWriter instanceof WithAncillaryFd) {
+                      if (outputSocket == null)
+                          throw new IOException("File descriptors can not be sent in a session");
                       ((WithAncillaryFd) resultWriter).setOutputSocketForFds(outputSocket);
                     }
                     if (resultWriter instanceof BinaryOutput) {
                         BinaryOutput bout = (BinaryOutput) resultWriter;
-                        bout.setOutput(outputSocket.getOutputStream());
+                        bout.setOutput(outputStream);
                     }
                     if (resultWriter instanceof WithInput) {
-                        try (LocalSocket inputSocket = new LocalSocket()) {
-                            String inputSocketAddress = intent.getStringExtra(SOCKET_INPUT_EXTRA);
-                            if (inputSocketAddress == null || inputSocketAddress.isEmpty())
-                                throw new IOException("Missing '" + SOCKET_INPUT_EXTRA + "' extra");
-                            inputSocket.connect(getApiLocalSocketAddress(ResultReturner.context, "input", inputSocketAddress));
-                            ((WithInput) resultWriter).setInput(inputSocket.getInputStream());
+                        String inputSocketAddress = intent.getStringExtra(SOCKET_INPUT_EXTRA);
+                        if (inputSocketAddress == null || inputSocketAddress.isEmpty())
+                            throw new IOException("Missing '" + SOCKET_INPUT_EXTRA + "' extra");
+                        InputStream sessionInput = SocketSession.getRequestInput(inputSocketAddress);
+                        if (sessionInput != null) {
+                            ((WithInput) resultWriter).setInput(sessionInput);
                             resultWriter.writeResult(writer);
+                        } else {
+                            try (LocalSocket inputSocket = new LocalSocket()) {
+                                inputSocket.connect(getApiLocalSocketAddress(ResultReturner.context, "input", inputSocketAddress));
+                                ((WithInput) resultWriter).setInput(inputSocket.getInputStream());
+                                resultWriter.writeResult(writer);
+                            }
                         }
                     } else {
                         resultWriter.writeResult(writer);
@@ -277,10 +577,11 @@ public abstract class ResultReturner {
 
 
                 if (asyncResult != null && receiver.isOrderedBroadcast()) {
-                    asyncResult.setResultCode(0);
+                    asyncResult.setResultCode(resultCode);
                 } else if (activity != null) {
-                    activity.setResult(0);
+                    activity.setResult(resultCode);
                 }
+                success = resultCode == 0;
             } catch (Throwable t) {
                 String message = "Error in " + LOG_TAG;
                 if (callerStackTrace != null)
@@ -290,17 +591,25 @@ public abstract class ResultReturner {
                 TermuxPluginUtils.sendPluginCommandErrorNotification(ResultReturner.context, LOG_TAG,
                         TermuxConstants.TERMUX_API_APP_NAME + " Error", message, t);
 
+                if (sessionOutput != null) {
+                    sessionOutput.setResultCode(1);
+                }
                 if (asyncResult != null && receiver != null && receiver.isOrderedBroadcast()) {
                     asyncResult.setResultCode(1);
                 } else if (activity != null) {
                     activity.setResult(1);
                 }
             } finally {
+                if (acquired)
+                    apiHandler.releaseResult(startTime, success);
+
                 try {
                     if (writer != null)
                         writer.close();
-                    if (outputSocket != null)
-                        outputSocket.close();
+                    else if (sessionOutput != null)
+                        sessionOutput.close();
+                    if (outputConnect != null)
+                        closeWhenConnected(outputConnect);
                 } catch (Exception e) {
                     Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close", e);
                 }
@@ -318,7 +627,10 @@ public abstract class ResultReturner {
         };
 
         if (shouldRunThreadForResultRunnable(context)) {
-            new Thread(runnable).start();
+            getExecutor(apiHandler, resultWriter).execute(runnable, () -> {
+                rejected.set(true);
+                CONNECT_EXECUTOR.execute(runnable);
+            });
         } else {
             runnable.run();
        }
@@ -326,6 +638,21 @@ public abstract class ResultReturner {
 
     public static void setContext(Context context) {
         ResultReturner.context = context.getApplicationContext();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        filter.addDataSchemeSpecificPart(TermuxConstants.TERMUX_PACKAGE_NAME, PatternMatcher.PATTERN_LITERAL);
+        ResultReturner.context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Logger.logDebug(LOG_TAG, "Termux app package changed, clearing cached data directories");
+                clearTermuxAppDataDirectories();
+            }
+        }, filter);
     }
 
 }
@@ -0,0 +1,150 @@
+package com.termux.api.util;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.termux.shared.logger.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream that writes to a file in large buffered chunks, starting a new file when the
+ * current one reaches a maximum size or age, optionally compressed with gzip.
+ *
+ * Without rotation the data is written to the file itself, otherwise to numbered files next to
+ * it, like "sensors.log.1", "sensors.log.2" and so on. Compressed files get a ".gz" suffix.
+ * Files are only rotated on {@link #flush()}, so that a record written between two flushes
+ * never spans two files.
+ *
+ * The counters may be read from any thread while another one writes.
+ */
+public class RotatingFileOutputStream extends OutputStream {
+
+    /** Called after a new file was started, to write a header to it for example. */
+    public interface RotationListener {
+        void onRotated(@NonNull File file) throws IOException;
+    }
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String LOG_TAG = "RotatingFileOutputStream";
+
+    private final File mFile;
+    private final long mMaxFileSize;
+    private final long mMaxFileAgeMillis;
+    private final boolean mCompress;
+    private RotationListener mRotationListener;
+
+    private OutputStream mOut;
+    private volatile File mCurrentFile;
+    private volatile int mFileCount = 0;
+    private volatile long mBytesWritten = 0;
+    private long mFileBytesWritten = 0;
+    private long mFileStartTime = 0;
+
+    /**
+     * @param maxFileSize The number of bytes after which a new file is started, or 0 to not
+     *                    rotate by size. Compressed files rotate on the uncompressed size.
+     * @param maxFileAgeMillis The time after which a new file is started, or 0 to not rotate by
+     *                         time.
+     * @param compress If files should be compressed with gzip.
+     */
+    public RotatingFileOutputStream(@NonNull File file, long maxFileSize, long maxFileAgeMillis, boolean compress) {
+        mFile = file;
+        mMaxFileSize = Math.max(0, maxFileSize);
+        mMaxFileAgeMillis = Math.max(0, maxFileAgeMillis);
+        mCompress = compress;
+    }
+
+    public void setRotationListener(RotationListener rotationListener) {
+        mRotationListener = rotationListener;
+    }
+
+    /** Get the number of bytes written so far, before compression. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Get the number of files that were started so far. */
+    public int getFileCount() {
+        return mFileCount;
+    }
+
+    /** Get the file that is currently written, or the file passed if none was started yet. */
+    @NonNull
+    public File getCurrentFile() {
+        File file = mCurrentFile;
+        return file != null ? file : mFile;
+    }
+
+    private boolean isRotating() {
+        return mMaxFileSize > 0 || mMaxFileAgeMillis > 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getOutput().write(b);
+        mFileBytesWritten++;
+        mBytesWritten++;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        getOutput().write(b, off, len);
+        mFileBytesWritten += len;
+        mBytesWritten += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mOut == null) return;
+        mOut.flush();
+
+        if ((mMaxFileSize > 0 && mFileBytesWritten >= mMaxFileSize) ||
+                (mMaxFileAgeMillis > 0 && SystemClock.elapsedRealtime() - mFileStartTime >= mMaxFileAgeMillis)) {
+            mOut.close();
+            mOut = null;
+            openNextFile();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    @NonNull
+    private OutputStream getOutput() throws IOException {
+        if (mOut == null) openNextFile();
+        return mOut;
+    }
+
+    private void openNextFile() throws IOException {
+        String path = mFile.getAbsolutePath();
+        if (isRotating()) path += "." + (mFileCount + 1);
+        if (mCompress) path += ".gz";
+        File file = new File(path);
+
+        FileOutputStream fileOut = new FileOutputStream(file);
+        mOut = mCompress ? new GZIPOutputStream(fileOut, BUFFER_SIZE) : new BufferedOutputStream(fileOut, BUFFER_SIZE);
+        mCurrentFile = file;
+        mFileCount++;
+        mFileBytesWritten = 0;
+        mFileStartTime = SystemClock.elapsedRealtime();
+        Logger.logInfo(LOG_TAG, "Writing to " + path);
+
+        if (mFileCount > 1 && mRotationListener != null) {
+            mRotationListener.onRotated(file);
+        }
+    }
+
+}
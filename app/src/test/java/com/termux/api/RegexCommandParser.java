@@ -0,0 +1,173 @@
+package com.termux.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regex cascade that {@link SocketListener} used to parse command lines before
+ * {@link SocketCommandParser} replaced it, kept as the reference that the parser is compared to.
+ *
+ * Each option type is matched and removed from the command line in a separate pass. Only the
+ * first invalid value of each type is reported, as the old code stopped reading a type at its
+ * first error.
+ */
+class RegexCommandParser {
+
+    private static final Pattern EXTRA_STRING = Pattern.compile("(-e|--es|--esa) +([^ ]+) +\"(.*?)(?<!\\\\)\"", Pattern.DOTALL);
+    private static final Pattern EXTRA_BOOLEAN = Pattern.compile("--ez +([^ ]+) +([^ ]+)");
+    private static final Pattern EXTRA_INT = Pattern.compile("--ei +([^ ]+) +(-?[0-9]+)");
+    private static final Pattern EXTRA_FLOAT = Pattern.compile("--ef +([^ ]+) +(-?[0-9]+(?:\\.[0-9]+))");
+    private static final Pattern EXTRA_INT_LIST = Pattern.compile("--eia +([^ ]+) +(-?[0-9]+(?:,-?[0-9]+)*)");
+    private static final Pattern EXTRA_LONG_LIST = Pattern.compile("--ela +([^ ]+) +(-?[0-9]+(?:,-?[0-9]+)*)");
+    private static final Pattern EXTRA_UNSUPPORTED = Pattern.compile("--e[^izs ] +[^ ]+ +[^ ]+");
+    private static final Pattern ACTION = Pattern.compile("-a *([^ ]+)");
+
+    String action;
+    /** The extras in the order they were put in the intent, so that later types win. */
+    final Map<String, Object> extras = new LinkedHashMap<>();
+    /** The newline terminated error messages, or {@code null} if there are none. */
+    String errors;
+
+    static RegexCommandParser parse(String cmdline) {
+        RegexCommandParser parser = new RegexCommandParser();
+        parser.run(cmdline);
+        return parser;
+    }
+
+    private void run(String cmdline) {
+        Map<String, String> stringExtras = new LinkedHashMap<>();
+        Map<String, String[]> stringArrayExtras = new LinkedHashMap<>();
+        Map<String, Boolean> booleanExtras = new LinkedHashMap<>();
+        Map<String, Integer> intExtras = new LinkedHashMap<>();
+        Map<String, Float> floatExtras = new LinkedHashMap<>();
+        Map<String, int[]> intArrayExtras = new LinkedHashMap<>();
+        Map<String, long[]> longArrayExtras = new LinkedHashMap<>();
+        StringBuilder out = new StringBuilder();
+
+        Matcher m = EXTRA_STRING.matcher(cmdline);
+        while (m.find()) {
+            String option = m.group(1);
+            if ("-e".equals(option) || "--es".equals(option)) {
+                stringExtras.put(m.group(2), Objects.requireNonNull(m.group(3)).replaceAll("\\\\\"", "\""));
+            } else {
+                String[] list = Objects.requireNonNull(m.group(3)).split("(?<!\\\\),");
+                for (int i = 0; i < list.length; i++) {
+                    list[i] = list[i].replaceFirst("\\\\,", ",");
+                }
+                stringArrayExtras.put(m.group(2), list);
+            }
+        }
+        cmdline = m.replaceAll("");
+
+        m = EXTRA_BOOLEAN.matcher(cmdline);
+        while (m.find()) {
+            String value = m.group(2);
+            value = value != null ? value.toLowerCase() : null;
+            Boolean arg = null;
+            if ("true".equals(value) || "t".equals(value)) {
+                arg = true;
+            } else if ("false".equals(value) || "f".equals(value)) {
+                arg = false;
+            } else {
+                try {
+                    if (value != null)
+                        arg = Integer.decode(value) != 0;
+                } catch (NumberFormatException ex) {
+                    // Ignore
+                }
+            }
+            if (arg == null) {
+                out.append("Invalid boolean extra: ").append(m.group(0)).append('\n');
+                break;
+            }
+            booleanExtras.put(m.group(1), arg);
+        }
+        cmdline = m.replaceAll("");
+
+        m = EXTRA_INT.matcher(cmdline);
+        while (m.find()) {
+            try {
+                intExtras.put(m.group(1), Integer.parseInt(Objects.requireNonNull(m.group(2))));
+            } catch (NumberFormatException e) {
+                out.append("Invalid integer extra: ").append(m.group(0)).append('\n');
+                break;
+            }
+        }
+        cmdline = m.replaceAll("");
+
+        m = EXTRA_FLOAT.matcher(cmdline);
+        while (m.find()) {
+            try {
+                floatExtras.put(m.group(1), Float.parseFloat(Objects.requireNonNull(m.group(2))));
+            } catch (NumberFormatException e) {
+                out.append("Invalid float extra: ").append(m.group(0)).append('\n');
+                break;
+            }
+        }
+        cmdline = m.replaceAll("");
+
+        m = EXTRA_INT_LIST.matcher(cmdline);
+        while (m.find()) {
+            try {
+                String[] parts = Objects.requireNonNull(m.group(2)).split(",");
+                int[] ints = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    ints[i] = Integer.parseInt(parts[i]);
+                }
+                intArrayExtras.put(m.group(1), ints);
+            } catch (NumberFormatException e) {
+                out.append("Invalid int array extra: ").append(m.group(0)).append('\n');
+                break;
+            }
+        }
+        cmdline = m.replaceAll("");
+
+        m = EXTRA_LONG_LIST.matcher(cmdline);
+        while (m.find()) {
+            try {
+                String[] parts = Objects.requireNonNull(m.group(2)).split(",");
+                long[] longs = new long[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    longs[i] = Long.parseLong(parts[i]);
+                }
+                longArrayExtras.put(m.group(1), longs);
+            } catch (NumberFormatException e) {
+                out.append("Invalid long array extra: ").append(m.group(0)).append('\n');
+                break;
+            }
+        }
+        cmdline = m.replaceAll("");
+
+        m = ACTION.matcher(cmdline);
+        while (m.find()) {
+            action = m.group(1);
+        }
+        cmdline = m.replaceAll("");
+
+        m = EXTRA_UNSUPPORTED.matcher(cmdline);
+        if (m.find()) {
+            out.append("Unsupported argument type: ").append(m.group(0)).append('\n');
+        }
+        cmdline = m.replaceAll("");
+
+        cmdline = cmdline.replaceAll("\\s", "");
+        if (!"".equals(cmdline)) {
+            out.append("Unsupported options: ").append(cmdline).append('\n');
+        }
+
+        errors = out.length() > 0 ? out.toString() : null;
+
+        // the order in which SocketListener put the extras in the intent
+        extras.putAll(stringExtras);
+        extras.putAll(stringArrayExtras);
+        extras.putAll(intExtras);
+        extras.putAll(booleanExtras);
+        extras.putAll(floatExtras);
+        extras.putAll(intArrayExtras);
+        extras.putAll(longArrayExtras);
+    }
+
+}
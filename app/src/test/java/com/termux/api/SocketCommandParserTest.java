@@ -0,0 +1,172 @@
+package com.termux.api;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link SocketCommandParser} against a golden corpus of command lines with their expected
+ * action, extras and error messages, and against the regex cascade it replaced,
+ * {@link RegexCommandParser}.
+ *
+ * Each case of the corpus starts with a "&gt; " line holding the command line, followed by
+ * either the "action:" and "extra:" lines of the result, or its "error:" lines. Backslashes,
+ * newlines and tabs in command lines and values are escaped as "\\", "\n" and "\t".
+ */
+public class SocketCommandParserTest {
+
+    private static final String CORPUS = "socket_command_corpus.txt";
+
+    private static class Case {
+        final int line;
+        final String cmdline;
+        final List<String> expected = new ArrayList<>();
+
+        Case(int line, String cmdline) {
+            this.line = line;
+            this.cmdline = cmdline;
+        }
+    }
+
+    @Test
+    public void testCorpus() throws IOException {
+        List<Case> cases = readCorpus();
+        assertTrue("Corpus is empty", !cases.isEmpty());
+
+        for (Case c : cases) {
+            SocketCommandParser parser = SocketCommandParser.parse(c.cmdline);
+            List<String> actual = render(parser.getAction(), parser.getExtras(), parser.getErrors());
+            assertEquals(CORPUS + ":" + c.line + " " + escape(c.cmdline), c.expected, actual);
+        }
+    }
+
+    @Test
+    public void testCorpusMatchesRegexParser() throws IOException {
+        for (Case c : readCorpus()) {
+            RegexCommandParser regexParser = RegexCommandParser.parse(c.cmdline);
+            assertEquals(CORPUS + ":" + c.line + " " + escape(c.cmdline), c.expected,
+                    render(regexParser.action, regexParser.extras, regexParser.errors));
+        }
+    }
+
+    /**
+     * Compare the parser with the regex cascade on generated command lines, which mix valid
+     * options with the malformed input that the parser has to re-parse type by type.
+     */
+    @Test
+    public void testGeneratedCommandLinesMatchRegexParser() {
+        String[] tokens = {"-e", "--es", "--esa", "--ez", "--ei", "--ef", "--eia", "--ela", "--eu", "-a", "-a1",
+                "key", "k2", "-e", "--ez", "\"", "\\\"", "\"a b\"", "\"x,y\\,z,\"", "\"-e k \"", "true", "F", "0x1",
+                "maybe", "12", "-7", "99999999999", "1.5", "-2.25", "1,2,-3", "1,99999999999", "3,", ",", "\n", "\t",
+                "  ", "é"};
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder cmdline = new StringBuilder();
+            int count = 1 + random.nextInt(8);
+            for (int j = 0; j < count; j++) {
+                if (j > 0 && random.nextInt(6) != 0) cmdline.append(random.nextInt(4) == 0 ? "  " : " ");
+                cmdline.append(tokens[random.nextInt(tokens.length)]);
+            }
+
+            String text = cmdline.toString();
+            SocketCommandParser parser = SocketCommandParser.parse(text);
+            RegexCommandParser regexParser = RegexCommandParser.parse(text);
+            assertEquals(escape(text), render(regexParser.action, regexParser.extras, regexParser.errors),
+                    render(parser.getAction(), parser.getExtras(), parser.getErrors()));
+        }
+    }
+
+    private static List<Case> readCorpus() throws IOException {
+        InputStream stream = SocketCommandParserTest.class.getClassLoader().getResourceAsStream(CORPUS);
+        assertNotNull("Missing " + CORPUS, stream);
+
+        List<Case> cases = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            Case c = null;
+            int lineNumber = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (line.startsWith("> ")) {
+                    c = new Case(lineNumber, unescape(line.substring(2)));
+                    cases.add(c);
+                } else if (c != null) {
+                    c.expected.add(line);
+                } else {
+                    throw new IOException(CORPUS + ":" + lineNumber + ": Result without a command line");
+                }
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * Render a result as the lines of the corpus, with the extras sorted by key. Only the errors
+     * are rendered if there are any, as the request is rejected without using the extras then.
+     */
+    private static List<String> render(String action, Map<String, Object> extras, String errors) {
+        List<String> lines = new ArrayList<>();
+        if (errors != null) {
+            for (String error : errors.split("\n")) lines.add("error: " + escape(error));
+            return lines;
+        }
+
+        if (action != null) lines.add("action: " + escape(action));
+        for (Map.Entry<String, Object> e : new TreeMap<>(extras).entrySet()) {
+            lines.add("extra: " + escape(e.getKey()) + " = " + renderValue(e.getValue()));
+        }
+        return lines;
+    }
+
+    private static String renderValue(Object value) {
+        if (value instanceof String) return "string \"" + escape((String) value) + "\"";
+        if (value instanceof String[]) {
+            StringBuilder builder = new StringBuilder("string[] [");
+            String[] strings = (String[]) value;
+            for (int i = 0; i < strings.length; i++) {
+                if (i > 0) builder.append(", ");
+                builder.append('"').append(escape(strings[i])).append('"');
+            }
+            return builder.append(']').toString();
+        }
+        if (value instanceof Integer) return "int " + value;
+        if (value instanceof Boolean) return "boolean " + value;
+        if (value instanceof Float) return "float " + value;
+        if (value instanceof int[]) return "int[] " + Arrays.toString((int[]) value);
+        if (value instanceof long[]) return "long[] " + Arrays.toString((long[]) value);
+        throw new IllegalArgumentException("Unexpected extra type: " + value.getClass().getName());
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\n", "\\n").replace("\t", "\\t");
+    }
+
+    private static String unescape(String text) {
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.termux.api.apis;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link SensorAggregator} counts events in the window of their timestamp.
+ */
+public class SensorAggregatorTest {
+
+    @Test
+    public void testEventsBeforeWindowAreLate() {
+        // the sensor of the buffer is not used, events of a null sensor are aggregated for it
+        SensorAggregator aggregator = new SensorAggregator(Collections.singletonList(new SensorRingBuffer(null, 4)));
+        aggregator.reset(1000, 2000);
+        assertTrue(aggregator.isEmpty());
+
+        aggregator.onEvent(sample(1500, 1));
+        aggregator.onEvent(sample(1999, 3));
+        assertFalse(aggregator.isEmpty());
+        assertEquals(2, aggregator.getCount(0));
+        assertEquals(2, aggregator.getMean(0, 0), 0);
+
+        aggregator.reset(2000, 3000);
+        // a batched event of the previous window that is read after it was written
+        aggregator.onEvent(sample(1900, 100));
+        aggregator.onEvent(sample(2000, 5));
+        assertEquals(1, aggregator.getCount(0));
+        assertEquals(5, aggregator.getMax(0, 0), 0);
+        assertEquals(1, aggregator.getLateCount());
+        assertEquals(2000, aggregator.getWindowStart());
+        assertEquals(3000, aggregator.getWindowEnd());
+    }
+
+    private static SensorSample sample(long timestamp, float value) {
+        SensorSample sample = new SensorSample();
+        sample.timestamp = timestamp;
+        sample.count = 1;
+        sample.values[0] = value;
+        return sample;
+    }
+
+}
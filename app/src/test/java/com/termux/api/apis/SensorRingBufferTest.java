@@ -0,0 +1,63 @@
+package com.termux.api.apis;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a blocking reader of a {@link SensorRingBuffer} that stops reading stalls the writer
+ * only once, instead of for every event.
+ */
+public class SensorRingBufferTest {
+
+    private static final float[] VALUES = {1, 2, 3};
+
+    @Test
+    public void testStuckReaderStallsWriterOnce() {
+        // the sensor is only handed to readers, so the buffer works without one
+        SensorRingBuffer buffer = new SensorRingBuffer(null, 4);
+        AtomicLong position = new AtomicLong(0);
+        buffer.addGate(position);
+
+        for (int i = 0; i < buffer.getCapacity(); i++) {
+            buffer.write(VALUES, VALUES.length, i, 0);
+        }
+
+        long start = System.nanoTime();
+        buffer.write(VALUES, VALUES.length, 4, 0);
+        long stall = System.nanoTime() - start;
+        assertTrue("Writer did not wait for the reader: " + stall + "ns", stall >= SensorRingBuffer.MAX_BLOCK_NANOS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            buffer.write(VALUES, VALUES.length, 5 + i, 0);
+        }
+        long total = System.nanoTime() - start;
+        assertTrue("Writer still waits for the stuck reader: " + TimeUnit.NANOSECONDS.toMillis(total) + "ms",
+                total < SensorRingBuffer.MAX_BLOCK_NANOS);
+        assertEquals(5 + 100, buffer.getSequence());
+
+        // removing a gate that was released already does nothing
+        buffer.removeGate(position);
+    }
+
+    @Test
+    public void testReaderThatKeepsUpIsNotOverwritten() {
+        SensorRingBuffer buffer = new SensorRingBuffer(null, 4);
+        AtomicLong position = new AtomicLong(0);
+        buffer.addGate(position);
+        SensorSample sample = new SensorSample();
+
+        for (int i = 0; i < 20; i++) {
+            buffer.write(VALUES, VALUES.length, i, 0);
+            assertTrue(buffer.read(position.get(), sample));
+            assertEquals(i, sample.timestamp);
+            position.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,355 @@
+package com.termux.api.apis;
+
+import android.app.Application;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.ContactsContract;
+import android.provider.Telephony.TextBasedSmsColumns;
+import android.util.JsonWriter;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the conversation list of {@link SmsInboxAPI} written with a query per conversation and
+ * with batched queries, against a fake SMS provider that counts the queries, rows and bytes it
+ * returns. Both must write the messages of the requested window of each conversation, in the
+ * requested order.
+ *
+ * The batched queries read the ids of every message of the conversations, but only the rows of
+ * the messages that are written, while the per conversation queries read just the rows in the
+ * window of each conversation, with all columns.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class SmsInboxAPITest {
+
+    private static final int THREADS = 500;
+    private static final int MESSAGES_PER_THREAD = 100;
+    private static final int BODY_LENGTH = 160;
+
+    private static final Pattern MESSAGE_ID = Pattern.compile("\"_id\":(\\d+)");
+
+    private FakeSmsProvider mProvider;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(FakeContactsProvider.class, ContactsContract.AUTHORITY);
+        mProvider = Robolectric.setupContentProvider(FakeSmsProvider.class, "sms");
+        mProvider.seed(THREADS, MESSAGES_PER_THREAD, BODY_LENGTH);
+    }
+
+    @Test
+    public void benchmarkConversationBatches() throws IOException {
+        for (boolean multipleMessages : new boolean[]{true, false}) {
+            for (int limit : new int[]{1, 10}) {
+                checkConversations(multipleMessages, 0, limit, "date DESC", false);
+            }
+        }
+    }
+
+    @Test
+    public void testMessageWindowsAndOrder() throws IOException {
+        checkConversations(true, 5, 10, "date DESC", false);
+        checkConversations(true, 5, 10, "date DESC", true);
+        checkConversations(true, 0, 10, "date ASC", false);
+        checkConversations(true, 95, 10, "date ASC", true);
+        checkConversations(false, 3, 10, "date DESC", false);
+        checkConversations(false, 3, 10, "date ASC", true);
+    }
+
+    /**
+     * Write the conversation list with a query per conversation and with batched queries, and
+     * check that both write the expected messages in the expected order.
+     */
+    private void checkConversations(boolean multipleMessages, int offset, int limit, String sortOrder,
+                                    boolean noReverse) throws IOException {
+        String label = (multipleMessages ? "multiple" : "single") + " messages, offset " + offset +
+                ", limit " + limit + ", " + sortOrder + (noReverse ? ", not reversed" : "");
+
+        mProvider.resetCounts();
+        long start = System.nanoTime();
+        String perThread = getConversations(multipleMessages, offset, limit, sortOrder, noReverse, 0);
+        long perThreadMicros = (System.nanoTime() - start) / 1000;
+        Counts perThreadCounts = mProvider.counts;
+
+        mProvider.resetCounts();
+        start = System.nanoTime();
+        String batched = getConversations(multipleMessages, offset, limit, sortOrder, noReverse, 500);
+        long batchedMicros = (System.nanoTime() - start) / 1000;
+        Counts batchedCounts = mProvider.counts;
+
+        List<Long> expected = getExpectedMessageIds(multipleMessages, offset, limit,
+                sortOrder.endsWith("ASC"), noReverse);
+        assertEquals(label, expected, getMessageIds(perThread));
+        assertEquals(label, expected, getMessageIds(batched));
+        assertEquals(label, perThread, batched);
+
+        report(label + ", " + expected.size() + " written:\n" +
+                "  per thread: " + perThreadCounts + ", " + perThreadMicros + "us\n" +
+                "  batched:    " + batchedCounts + ", " + batchedMicros + "us");
+
+        assertTrue(label, batchedCounts.queries < perThreadCounts.queries);
+        // only the bodies of the messages that are written are read
+        assertEquals(label, expected.size(), batchedCounts.bodies);
+    }
+
+    private static String getConversations(boolean multipleMessages, int offset, int limit, String sortOrder,
+                                           boolean noReverse, int batchSize) throws IOException {
+        StringWriter output = new StringWriter();
+        JsonWriter out = new JsonWriter(output);
+        SmsInboxAPI.getConversations(RuntimeEnvironment.getApplication(), out,
+                -1, -1, null, "date DESC",
+                multipleMessages, false, false,
+                offset, limit, null, sortOrder, noReverse,
+                batchSize);
+        out.flush();
+        return output.toString();
+    }
+
+    /**
+     * Get the ids of the messages that should be written, from the ids and dates that
+     * {@link FakeSmsProvider#seed(int, int, int)} gives them.
+     */
+    private static List<Long> getExpectedMessageIds(boolean multipleMessages, int offset, int limit,
+                                                    boolean ascending, boolean noReverse) {
+        List<Long> ids = new ArrayList<>();
+        int count = multipleMessages ? limit : 1;
+        // the conversations are written from the oldest, which has the lowest thread id
+        for (int thread = 1; thread <= THREADS; thread++) {
+            List<Long> window = new ArrayList<>();
+            for (int rank = offset; rank < Math.min(offset + count, MESSAGES_PER_THREAD); rank++) {
+                // the messages of a thread are seeded from the latest
+                int i = ascending ? MESSAGES_PER_THREAD - 1 - rank : rank;
+                window.add((long) (thread - 1) * MESSAGES_PER_THREAD + i + 1);
+            }
+            if (multipleMessages && !noReverse) Collections.reverse(window);
+            ids.addAll(window);
+        }
+        return ids;
+    }
+
+    private static List<Long> getMessageIds(String output) {
+        List<Long> ids = new ArrayList<>();
+        Matcher matcher = MESSAGE_ID.matcher(output);
+        while (matcher.find()) ids.add(Long.parseLong(matcher.group(1)));
+        return ids;
+    }
+
+    /** Print the result of a benchmark, if enabled with the `termux.api.benchmark` system property. */
+    private static void report(@NonNull String message) {
+        if (Boolean.getBoolean("termux.api.benchmark"))
+            System.out.println(message);
+    }
+
+    /** The queries, rows and bytes that a provider returned. */
+    static class Counts {
+        int queries;
+        long rows;
+        long bytes;
+        long bodies;
+
+        @NonNull
+        @Override
+        public String toString() {
+            return queries + " queries, " + rows + " rows, " + bytes + " bytes, " + bodies + " bodies";
+        }
+    }
+
+    /** Contacts provider without any contacts. */
+    public static class FakeContactsProvider extends EmptyProvider {
+        @Override
+        public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                            @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+            return new MatrixCursor(projection);
+        }
+    }
+
+    /**
+     * SMS provider that supports the selections and sort orders used by
+     * {@link SmsInboxAPI#getConversations}. Messages are sorted by the columns of the sort order,
+     * by date descending without one like the real provider, and then "LIMIT" and "OFFSET" are
+     * applied. Conversations are always returned from the latest.
+     */
+    public static class FakeSmsProvider extends EmptyProvider {
+        private static final String[] COLUMNS = {BaseColumns._ID, TextBasedSmsColumns.THREAD_ID,
+                TextBasedSmsColumns.ADDRESS, TextBasedSmsColumns.BODY, TextBasedSmsColumns.DATE,
+                TextBasedSmsColumns.TYPE, TextBasedSmsColumns.READ};
+        private static final String[] CONVERSATION_COLUMNS = {TextBasedSmsColumns.THREAD_ID, "msg_count", "snippet"};
+
+        private static final Pattern THREAD_SELECTION = Pattern.compile("thread_id == '(\\d+)'");
+        private static final Pattern IN_SELECTION = Pattern.compile("(thread_id|_id) IN \\(([\\d,]*)\\)");
+        private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+)");
+        private static final Pattern OFFSET = Pattern.compile("OFFSET (\\d+)");
+        private static final String DEFAULT_SORT_ORDER = TextBasedSmsColumns.DATE + " DESC";
+
+        /** The messages as values of {@link #COLUMNS}, in no particular order. */
+        private final List<Object[]> mMessages = new ArrayList<>();
+        private int mThreads;
+        Counts counts = new Counts();
+
+        void seed(int threads, int messagesPerThread, int bodyLength) {
+            mThreads = threads;
+            char[] body = new char[bodyLength];
+            Arrays.fill(body, 'x');
+            long id = 1;
+            for (int thread = 1; thread <= threads; thread++) {
+                for (int i = 0; i < messagesPerThread; i++) {
+                    long date = 1_600_000_000_000L + thread * 1000L * messagesPerThread - i * 1000L;
+                    mMessages.add(new Object[]{id++, thread, "+1555" + (1000000 + thread), new String(body),
+                            date, i % 2 == 0 ? TextBasedSmsColumns.MESSAGE_TYPE_INBOX : TextBasedSmsColumns.MESSAGE_TYPE_SENT,
+                            1});
+                }
+            }
+            // so that only sorting returns the messages in order
+            Collections.shuffle(mMessages, new Random(1));
+        }
+
+        void resetCounts() {
+            counts = new Counts();
+        }
+
+        @Override
+        public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                            @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+            counts.queries++;
+            if ("conversations".equals(uri.getLastPathSegment())) {
+                MatrixCursor cursor = new MatrixCursor(CONVERSATION_COLUMNS);
+                // the latest conversation has the highest thread id
+                for (int thread = mThreads; thread >= 1; thread--) {
+                    cursor.addRow(new Object[]{thread, 0, ""});
+                }
+                return cursor;
+            }
+
+            List<Object[]> rows = new ArrayList<>();
+            Matcher thread = selection == null ? null : THREAD_SELECTION.matcher(selection);
+            Matcher in = selection == null ? null : IN_SELECTION.matcher(selection);
+            if (thread != null && thread.find()) {
+                int id = Integer.parseInt(thread.group(1));
+                for (Object[] message : mMessages) {
+                    if ((int) message[1] == id) rows.add(message);
+                }
+            } else if (in != null && in.find()) {
+                int column = BaseColumns._ID.equals(in.group(1)) ? 0 : 1;
+                Set<Long> ids = new HashSet<>();
+                for (String value : in.group(2).split(",")) ids.add(Long.parseLong(value));
+                for (Object[] message : mMessages) {
+                    if (ids.contains(((Number) message[column]).longValue())) rows.add(message);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported selection: " + selection);
+            }
+
+            String order = sortOrder == null ? DEFAULT_SORT_ORDER : sortOrder.replaceFirst(" LIMIT .*$", "").trim();
+            if (!order.isEmpty()) {
+                rows.sort(getComparator(order));
+            }
+
+            if (sortOrder != null) {
+                Matcher offset = OFFSET.matcher(sortOrder);
+                int from = offset.find() ? Math.min(Integer.parseInt(offset.group(1)), rows.size()) : 0;
+                Matcher limit = LIMIT.matcher(sortOrder);
+                int to = limit.find() ? Math.min(from + Integer.parseInt(limit.group(1)), rows.size()) : rows.size();
+                rows = rows.subList(from, to);
+            }
+
+            String[] columns = projection != null ? projection : COLUMNS;
+            int[] indexes = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) indexes[i] = Arrays.asList(COLUMNS).indexOf(columns[i]);
+
+            MatrixCursor cursor = new MatrixCursor(columns);
+            for (Object[] message : rows) {
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    Object value = message[indexes[i]];
+                    row[i] = value;
+                    counts.bytes += value instanceof String ? ((String) value).getBytes(StandardCharsets.UTF_8).length : 8;
+                    if (TextBasedSmsColumns.BODY.equals(columns[i])) counts.bodies++;
+                }
+                cursor.addRow(row);
+                counts.rows++;
+            }
+            return cursor;
+        }
+
+        /** Get the comparator of messages for a sort order like "thread_id, date DESC". */
+        private static Comparator<Object[]> getComparator(String order) {
+            Comparator<Object[]> comparator = (a, b) -> 0;
+            for (String term : order.split(",")) {
+                String[] parts = term.trim().split("\\s+");
+                int column = Arrays.asList(COLUMNS).indexOf(parts[0]);
+                if (column < 0 || parts.length > 2 || (parts.length == 2 && !parts[1].matches("(?i)ASC|DESC")))
+                    throw new IllegalArgumentException("Unsupported sort order: " + order);
+
+                Comparator<Object[]> byColumn = (a, b) -> a[column] instanceof Number ?
+                        Long.compare(((Number) a[column]).longValue(), ((Number) b[column]).longValue()) :
+                        ((String) a[column]).compareTo((String) b[column]);
+                comparator = comparator.thenComparing(parts.length == 2 && parts[1].equalsIgnoreCase("DESC") ?
+                        byColumn.reversed() : byColumn);
+            }
+            return comparator;
+        }
+    }
+
+    /** Read-only provider that only needs to implement queries. */
+    public abstract static class EmptyProvider extends ContentProvider {
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Nullable
+        @Override
+        public String getType(@NonNull Uri uri) {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                          @Nullable String[] selectionArgs) {
+            return 0;
+        }
+    }
+
+}
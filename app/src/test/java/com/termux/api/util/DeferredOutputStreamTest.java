@@ -0,0 +1,103 @@
+package com.termux.api.util;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that {@link DeferredOutputStream} sends the same bytes as writing to the connected output
+ * directly.
+ */
+public class DeferredOutputStreamTest {
+
+    /** The simulated time that connecting to the output socket takes. */
+    private static final long CONNECT_MILLIS = 20;
+
+    /** An output that is connected after a delay on its own thread. */
+    private static class DelayedConnection implements DeferredOutputStream.Connection {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final CountDownLatch mConnected = new CountDownLatch(1);
+
+        DelayedConnection(long delayMillis) {
+            Thread thread = new Thread(() -> {
+                sleep(delayMillis);
+                mConnected.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public boolean isDone() {
+            return mConnected.getCount() == 0;
+        }
+
+        @NonNull
+        @Override
+        public OutputStream await() throws IOException {
+            try {
+                mConnected.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return output;
+        }
+    }
+
+    @Test
+    public void testBufferedDataIsSentOnceConnected() throws IOException {
+        DelayedConnection connection = new DelayedConnection(TimeUnit.SECONDS.toMillis(10));
+        DeferredOutputStream out = new DeferredOutputStream(connection);
+        byte[] data = createResult(1000);
+        out.write(data);
+        assertFalse(connection.isDone());
+        assertEquals(0, connection.output.size());
+
+        DelayedConnection connected = new DelayedConnection(0);
+        out = new DeferredOutputStream(connected);
+        out.write(data, 0, 10);
+        out.write(data, 10, data.length - 10);
+        out.close();
+        assertArrayEquals(data, connected.output.toByteArray());
+    }
+
+    @Test
+    public void testLargeResultIsWrittenWhole() throws IOException {
+        byte[] data = createResult(3 * DeferredOutputStream.MAX_BUFFER_SIZE);
+        DelayedConnection connection = new DelayedConnection(CONNECT_MILLIS);
+        DeferredOutputStream out = new DeferredOutputStream(connection);
+        for (int i = 0; i < data.length; i += 1000) {
+            out.write(data, i, Math.min(1000, data.length - i));
+        }
+        out.close();
+        assertArrayEquals(data, connection.output.toByteArray());
+    }
+
+    @NonNull
+    private static byte[] createResult(int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) ('a' + i % 26);
+        }
+        return result;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.termux.api.util;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.net.LocalSocketAddress;
+import android.net.LocalSocketAddress.Namespace;
+
+import androidx.annotation.NonNull;
+
+import com.termux.shared.termux.TermuxConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Checks that {@link ResultReturner#getApiLocalSocketAddress(Context, String, String)} only allows
+ * filesystem sockets under the Termux app data directories, and measures what caching the
+ * directories saves over getting the {@link ApplicationInfo} of the Termux app for every socket.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class ResultReturnerTest {
+
+    private static final String DATA_DIR = "/data/user/0/" + TermuxConstants.TERMUX_PACKAGE_NAME;
+    private static final String SOCKET = DATA_DIR + "/files/usr/tmp/termux-api-output";
+    private static final int BENCHMARK_ITERATIONS = 10000;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        installTermuxApp(DATA_DIR);
+        ResultReturner.clearTermuxAppDataDirectories();
+    }
+
+    @After
+    public void tearDown() {
+        ResultReturner.clearTermuxAppDataDirectories();
+    }
+
+    @Test
+    public void testFilesystemSocketMustBeUnderDataDirectories() {
+        LocalSocketAddress address = ResultReturner.getApiLocalSocketAddress(mContext, "output", SOCKET);
+        assertEquals(Namespace.FILESYSTEM, address.getNamespace());
+        assertEquals(SOCKET, address.getName());
+
+        String legacySocket = "/data/data/" + TermuxConstants.TERMUX_PACKAGE_NAME + "/files/usr/tmp/termux-api-output";
+        assertEquals(Namespace.FILESYSTEM,
+                ResultReturner.getApiLocalSocketAddress(mContext, "output", legacySocket).getNamespace());
+
+        assertEquals(Namespace.ABSTRACT,
+                ResultReturner.getApiLocalSocketAddress(mContext, "output", "termux-api-output").getNamespace());
+
+        assertThrows(RuntimeException.class, () ->
+                ResultReturner.getApiLocalSocketAddress(mContext, "output", "/data/local/tmp/termux-api-output"));
+    }
+
+    @Test
+    public void testDataDirectoriesAreReadAgainOnceCleared() {
+        ResultReturner.getApiLocalSocketAddress(mContext, "output", SOCKET);
+
+        String movedDataDir = "/data/user/10/" + TermuxConstants.TERMUX_PACKAGE_NAME;
+        String movedSocket = movedDataDir + "/files/usr/tmp/termux-api-output";
+        installTermuxApp(movedDataDir);
+        assertThrows(RuntimeException.class, () ->
+                ResultReturner.getApiLocalSocketAddress(mContext, "output", movedSocket));
+
+        // as done when the Termux app package changes
+        ResultReturner.clearTermuxAppDataDirectories();
+        assertEquals(movedSocket, ResultReturner.getApiLocalSocketAddress(mContext, "output", movedSocket).getName());
+    }
+
+    /**
+     * Compare resolving filesystem socket addresses with the cached data directories against
+     * getting the {@link ApplicationInfo} for every address, as was done before the cache. The
+     * package manager of Robolectric is not an IPC, so this is the lower bound of what is saved.
+     */
+    @Test
+    public void benchmarkCachedDataDirectories() {
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            ResultReturner.clearTermuxAppDataDirectories();
+            assertEquals(SOCKET, ResultReturner.getApiLocalSocketAddress(mContext, "output", SOCKET).getName());
+        }
+        long uncachedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            assertEquals(SOCKET, ResultReturner.getApiLocalSocketAddress(mContext, "output", SOCKET).getName());
+        }
+        long cachedNanos = System.nanoTime() - start;
+
+        report("uncached " + uncachedNanos / BENCHMARK_ITERATIONS + "ns/address, " +
+                "cached " + cachedNanos / BENCHMARK_ITERATIONS + "ns/address");
+    }
+
+    private void installTermuxApp(@NonNull String dataDir) {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = TermuxConstants.TERMUX_PACKAGE_NAME;
+        packageInfo.applicationInfo = new ApplicationInfo();
+        packageInfo.applicationInfo.packageName = TermuxConstants.TERMUX_PACKAGE_NAME;
+        packageInfo.applicationInfo.dataDir = dataDir;
+        Shadows.shadowOf(mContext.getPackageManager()).installPackage(packageInfo);
+    }
+
+    /** Print the result of a benchmark, if enabled with the `termux.api.benchmark` system property. */
+    private static void report(@NonNull String message) {
+        if (Boolean.getBoolean("termux.api.benchmark"))
+            System.out.println(message);
+    }
+
+}